@@ -12,7 +12,6 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
@@ -21,9 +20,9 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
 import java.util.List;
 
+import io.palaima.smoothbluetooth.Scrollback;
 import io.palaima.smoothbluetooth.SmoothBluetooth;
 import io.palaima.smoothbluetooth.Device;
 
@@ -52,10 +51,10 @@ public class MainActivity extends AppCompatActivity {
 
     private CheckBox mCRLFBox;
 
-    private List<Integer> mBuffer = new ArrayList<>();
-    private List<String> mResponseBuffer = new ArrayList<>();
+    // Last 1000 responses ending with the '>' prompt, at most 64 KB
+    private Scrollback mResponses = new Scrollback(64 * 1024, 1000, '>');
 
-    private ArrayAdapter<String> mResponsesAdapter;
+    private ResponsesAdapter mResponsesAdapter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -68,7 +67,7 @@ public class MainActivity extends AppCompatActivity {
         mSmoothBluetooth.setListener(mListener);
 
         ListView responseListView = (ListView) findViewById(R.id.responses);
-        mResponsesAdapter = new ArrayAdapter<>( this, android.R.layout.simple_list_item_1, mResponseBuffer);
+        mResponsesAdapter = new ResponsesAdapter(this, mResponses);
         responseListView.setAdapter(mResponsesAdapter);
 
         mCRLFBox = (CheckBox) findViewById(R.id.carrage);
@@ -89,7 +88,7 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 mSmoothBluetooth.disconnect();
-                mResponseBuffer.clear();
+                mResponses.clear();
                 mResponsesAdapter.notifyDataSetChanged();
             }
         });
@@ -241,15 +240,8 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
         public void onDataReceived(int data) {
-            mBuffer.add(data);
-            if (data == 62 && !mBuffer.isEmpty()) {
-            //if (data == 0x0D && !mBuffer.isEmpty() && mBuffer.get(mBuffer.size()-2) == 0xA0) {
-                StringBuilder sb = new StringBuilder();
-                for (int integer : mBuffer) {
-                    sb.append((char)integer);
-                }
-                mBuffer.clear();
-                mResponseBuffer.add(0, sb.toString());
+            mResponses.append(data);
+            if (data == 62) {
                 mResponsesAdapter.notifyDataSetChanged();
             }
         }
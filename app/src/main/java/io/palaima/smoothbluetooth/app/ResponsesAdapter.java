@@ -0,0 +1,52 @@
+package io.palaima.smoothbluetooth.app;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import io.palaima.smoothbluetooth.Scrollback;
+
+/**
+ * Shows the lines of a {@link Scrollback}, newest first. Only the rows on screen are turned
+ * into Strings.
+ */
+public class ResponsesAdapter extends BaseAdapter {
+
+    private final Context mContext;
+    private final Scrollback mScrollback;
+
+    public ResponsesAdapter(Context context, Scrollback scrollback) {
+        this.mContext = context;
+        this.mScrollback = scrollback;
+    }
+
+    @Override
+    public int getCount() {
+        return mScrollback.getLineCount();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mScrollback.getLine(getCount() - 1 - position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            LayoutInflater inflater = (LayoutInflater) mContext
+                    .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            view = (TextView) inflater.inflate(android.R.layout.simple_list_item_1, parent, false);
+        }
+        view.setText((String) getItem(position));
+        return view;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Drives a {@link BluetoothService} through thousands of connect, transfer, disconnect and
+ * reconnect cycles over a {@link SimulatedTransport} which refuses connects, stalls writes and
+ * drops links at random. Every {@link #CHECKPOINT} cycles it stops the service, collects
+ * garbage and samples live threads, heap in use and open links. The run fails if any of them
+ * grew past the first sample by more than some slack. Cycle times are reported as percentiles.
+ *
+ * <pre>./gradlew :benchmarks:soak -Pcycles=10000</pre>
+ */
+public final class ConnectionSoak implements BluetoothService.Callback {
+
+    static final int DEFAULT_CYCLES = 2000;
+    static final int CHECKPOINT = 250;
+    static final int PAYLOAD_SIZE = 4096;
+    static final long TIMEOUT_MILLIS = 5000;
+    // Timers of the library let their idle threads go after a second
+    static final long SETTLE_MILLIS = 1500;
+    static final int THREAD_SLACK = 2;
+    static final long HEAP_SLACK_BYTES = 4 * 1024 * 1024;
+
+    private static final String ADDRESS = "00:00:00:00:00:01";
+
+    private final SimulatedTransport mTransport;
+    private final BluetoothService mService;
+    private final Random mRandom;
+    private final Histogram mCycleTime = new Histogram();
+
+    // Guarded by this
+    private long mReceived;
+    private int mConnects;
+    private int mFailedConnects;
+    private int mDrops;
+
+    private int mBaselineThreads = -1;
+    private long mBaselineHeap;
+
+    ConnectionSoak(long seed) {
+        SimulatedTransport.Profile profile = new SimulatedTransport.Profile.Builder()
+                .latency(2, 1)
+                .refuseConnects(0.05)
+                .stallWrites(0.01, 50)
+                .disconnect(0.002)
+                .seed(seed)
+                .build();
+        mTransport = new SimulatedTransport(profile, SimulatedDevices.echo());
+        mService = new BluetoothService(mTransport, this);
+        mRandom = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CYCLES;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        boolean ok;
+        try {
+            ok = new ConnectionSoak(seed).run(cycles);
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+            ok = false;
+        }
+        // Leaked threads must not keep a failed run alive
+        System.exit(ok ? 0 : 1);
+    }
+
+    boolean run(int cycles) throws InterruptedException {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        for (int cycle = 1; cycle <= cycles; cycle++) {
+            long start = System.nanoTime();
+            try {
+                if (connect()) {
+                    mRandom.nextBytes(payload);
+                    transfer(payload);
+                    // Half of the cycles disconnect, the others reconnect over the live link
+                    if (mRandom.nextBoolean()) {
+                        mService.stop();
+                    }
+                }
+            } catch (IllegalStateException e) {
+                throw new IllegalStateException("cycle " + cycle + ": " + e.getMessage()
+                        + ", threads=" + ManagementFactory.getThreadMXBean().getThreadCount()
+                        + " links=" + mTransport.getOpenLinkCount());
+            }
+            mCycleTime.record((System.nanoTime() - start) / 1000000L);
+            if (cycle % CHECKPOINT == 0 && !checkpoint(cycle)) {
+                return false;
+            }
+        }
+        mService.stop();
+        synchronized (this) {
+            System.out.println("connects=" + mConnects + " failed=" + mFailedConnects
+                    + " drops=" + mDrops);
+        }
+        System.out.println("cycle ms: " + mCycleTime.snapshot());
+        return true;
+    }
+
+    // The service calls back holding its lock, so it is never called holding ours
+    private boolean connect() throws InterruptedException {
+        int connects;
+        int failed;
+        synchronized (this) {
+            connects = mConnects;
+            failed = mFailedConnects;
+        }
+        mService.connect(ADDRESS);
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (mConnects == connects && mFailedConnects == failed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IllegalStateException("Connect got stuck");
+                }
+                wait(remaining);
+            }
+            return mConnects != connects;
+        }
+    }
+
+    // Waits for the echo, or for a fault dropping the link on the way
+    private void transfer(byte[] payload) throws InterruptedException {
+        long expected;
+        int drops;
+        synchronized (this) {
+            expected = mReceived + payload.length;
+            drops = mDrops;
+        }
+        mService.write(payload);
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (mReceived < expected && mDrops == drops) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IllegalStateException("Transfer got stuck");
+                }
+                wait(remaining);
+            }
+        }
+    }
+
+    private boolean checkpoint(int cycle) throws InterruptedException {
+        mService.stop();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mTransport.getOpenLinkCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(SETTLE_MILLIS);
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        Runtime runtime = Runtime.getRuntime();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        int links = mTransport.getOpenLinkCount();
+        System.out.println("cycle " + cycle + ": threads=" + threads + " heap="
+                + heap / 1024 + "K links=" + links + " cycle ms: " + mCycleTime.snapshot());
+        if (mBaselineThreads < 0) {
+            mBaselineThreads = threads;
+            mBaselineHeap = heap;
+        }
+        boolean ok = true;
+        if (threads > mBaselineThreads + THREAD_SLACK) {
+            System.out.println("Thread leak: " + threads + " live, " + mBaselineThreads
+                    + " at the first checkpoint");
+            ok = false;
+        }
+        if (heap > mBaselineHeap + HEAP_SLACK_BYTES) {
+            System.out.println("Heap leak: " + heap / 1024 + "K in use, " + mBaselineHeap / 1024
+                    + "K at the first checkpoint");
+            ok = false;
+        }
+        if (links > 0) {
+            System.out.println("Link leak: " + links + " open after stop()");
+            ok = false;
+        }
+        return ok;
+    }
+
+    @Override
+    public synchronized void onStateChanged(int oldState, int newState) {
+        if (newState == BluetoothService.STATE_CONNECTED) {
+            mConnects++;
+        } else if (oldState == BluetoothService.STATE_CONNECTING) {
+            mFailedConnects++;
+        } else if (oldState == BluetoothService.STATE_CONNECTED) {
+            mDrops++;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void onConnected(String address) {
+    }
+
+    @Override
+    public synchronized void onDataRead(byte[] buffer, int length) {
+        mReceived += length;
+        notifyAll();
+    }
+
+    @Override
+    public void onDataWritten(byte[] buffer) {
+    }
+
+    @Override
+    public void onChannelData(int channel, byte[] buffer, int offset, int length) {
+    }
+}
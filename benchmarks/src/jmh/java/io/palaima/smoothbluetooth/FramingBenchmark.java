@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of cutting prompt terminated replies out of the byte stream as the listener sees it.
+ * One operation frames a capture of {@link #REPLIES} ELM327 style replies.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FramingBenchmark {
+
+    static final int REPLIES = 100;
+
+    private static final int PROMPT = '>';
+
+    private int[] mStream;
+    private byte[] mStreamBytes;
+    private Blackhole mBlackhole;
+    private DelimiterFramer mFramer;
+
+    // State of the sample application framing
+    private final List<Integer> mBoxedBuffer = new ArrayList<>();
+
+    // State of the primitive framing
+    private final byte[] mFrameBuffer = new byte[256];
+    private int mFrameLength;
+
+    @Setup
+    public void setUp() {
+        StringBuilder capture = new StringBuilder();
+        for (int i = 0; i < REPLIES; i++) {
+            capture.append("41 0C 1A F8 \r\r>");
+        }
+        mStream = new int[capture.length()];
+        for (int i = 0; i < mStream.length; i++) {
+            mStream[i] = capture.charAt(i);
+        }
+        mStreamBytes = capture.toString().getBytes();
+        DelimiterFramer.FrameListener listener = new DelimiterFramer.FrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int length) {
+                mBlackhole.consume(length);
+            }
+
+            @Override
+            public void onFrameTooLong() {
+            }
+        };
+        mFramer = new DelimiterFramer(PROMPT, mFrameBuffer.length, listener);
+    }
+
+    /**
+     * What the sample MainActivity does: boxes every byte and builds a String per reply.
+     */
+    @Benchmark
+    public void sampleActivity(Blackhole blackhole) {
+        for (int data : mStream) {
+            mBoxedBuffer.add(data);
+            if (data == PROMPT) {
+                StringBuilder sb = new StringBuilder();
+                for (int integer : mBoxedBuffer) {
+                    sb.append((char) integer);
+                }
+                mBoxedBuffer.clear();
+                blackhole.consume(sb.toString());
+            }
+        }
+    }
+
+    /**
+     * Accumulates into a reused byte array, the reply is handed on without copying.
+     */
+    @Benchmark
+    public void primitiveBuffer(Blackhole blackhole) {
+        for (int data : mStream) {
+            mFrameBuffer[mFrameLength++] = (byte) data;
+            if (data == PROMPT) {
+                blackhole.consume(mFrameLength);
+                mFrameLength = 0;
+            }
+        }
+    }
+
+    /**
+     * The framer behind {@link SmoothBluetooth#request(String, long)}, fed whole reads.
+     */
+    @Benchmark
+    public void delimiterFramer(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mFramer.onData(mStreamBytes, 0, mStreamBytes.length);
+    }
+}
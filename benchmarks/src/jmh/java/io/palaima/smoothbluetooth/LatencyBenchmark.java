@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from the remote end writing a message until the listener has seen its last byte.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LatencyBenchmark {
+
+    @Param({"1", "1024"})
+    public int readBufferSize;
+
+    @Param({"1", "32"})
+    public int messageSize;
+
+    private ServiceHarness mHarness;
+    private byte[] mMessage;
+    private long mExpected;
+
+    @Setup
+    public void setUp() throws Exception {
+        mHarness = new ServiceHarness(readBufferSize);
+        mMessage = new byte[messageSize];
+        mExpected = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mHarness.close();
+    }
+
+    @Benchmark
+    public long readToListener() throws Exception {
+        mHarness.remoteOut.write(mMessage);
+        mExpected += mMessage.length;
+        return mHarness.awaitReceived(mExpected);
+    }
+}
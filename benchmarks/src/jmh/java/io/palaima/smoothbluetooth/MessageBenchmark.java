@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one typed message from {@code sendMessage} to the listener, without the link: the
+ * sending router hands its pooled buffer straight to the receiving router. Together with
+ * {@code gc.alloc.rate.norm} this shows what encoding and decoding allocate per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MessageBenchmark {
+
+    static class Reading {
+        final int mSensor;
+        final long mTimestamp;
+        final double mValue;
+        final String mUnit;
+
+        Reading(int sensor, long timestamp, double value, String unit) {
+            mSensor = sensor;
+            mTimestamp = timestamp;
+            mValue = value;
+            mUnit = unit;
+        }
+    }
+
+    static final MessageCodec<Reading> CODEC = new MessageCodec<Reading>() {
+        @Override
+        public void encode(Reading message, MessageBuffer out) {
+            out.writeVarint(message.mSensor)
+                    .writeLong(message.mTimestamp)
+                    .writeDouble(message.mValue)
+                    .writeString(message.mUnit);
+        }
+
+        @Override
+        public Reading decode(MessageBuffer in) {
+            return new Reading(in.readVarint(), in.readLong(), in.readDouble(), in.readString());
+        }
+    };
+
+    private MessageRouter mSender;
+    private MessageRouter mReceiver;
+    private Reading mReading;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setUp() {
+        Metrics metrics = new Metrics();
+        mReceiver = new MessageRouter(null, metrics);
+        mReceiver.register(1, Reading.class, CODEC);
+        mReceiver.addListener(Reading.class, new MessageListener<Reading>() {
+            @Override
+            public void onMessage(Reading message) {
+                mBlackhole.consume(message);
+            }
+        }, null);
+        mSender = new MessageRouter(new MessageRouter.Sender() {
+            @Override
+            public boolean send(MessageBuffer buffer, int offset, int priority) {
+                mReceiver.onData(buffer.array(), offset, buffer.position() - offset);
+                buffer.release();
+                return true;
+            }
+        }, metrics);
+        mSender.register(1, Reading.class, CODEC);
+        mReading = new Reading(12, System.currentTimeMillis(), 21.5, "\u00B0C");
+    }
+
+    @Benchmark
+    public void roundTrip(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mSender.send(mReading, BluetoothService.PRIORITY_NORMAL);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receive throughput from the remote end of the link to the listener. One operation is one
+ * payload, bytes/s is ops/s times {@code payloadSize}. A read buffer of 1 is the per-byte path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ReceiveBenchmark {
+
+    @Param({"1", "64", "1024"})
+    public int readBufferSize;
+
+    @Param({"16", "4096"})
+    public int payloadSize;
+
+    private ServiceHarness mHarness;
+    private byte[] mPayload;
+    private long mExpected;
+
+    @Setup
+    public void setUp() throws Exception {
+        mHarness = new ServiceHarness(readBufferSize);
+        mPayload = new byte[payloadSize];
+        new Random(42).nextBytes(mPayload);
+        mExpected = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mHarness.close();
+    }
+
+    @Benchmark
+    public long receive() throws Exception {
+        mHarness.remoteOut.write(mPayload);
+        mExpected += mPayload.length;
+        return mHarness.awaitReceived(mExpected);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the send path up to the socket. The remote end is drained by a background thread.
+ * {@code stringConcat} is what {@code send(String, true)} used to do before the payload and
+ * CRLF were joined in the service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SendBenchmark {
+
+    @Param({"ATZ", "0100 0105 010C 010D 0111 011F"})
+    public String command;
+
+    private ServiceHarness mHarness;
+    private Thread mDrain;
+    private byte[] mCommandBytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        mHarness = new ServiceHarness(BluetoothService.DEFAULT_READ_BUFFER_SIZE);
+        mCommandBytes = command.getBytes();
+        final InputStream in = mHarness.remoteIn;
+        mDrain = new Thread("SendBenchmarkDrain") {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    while (in.read(buffer) >= 0) {
+                        // discard
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        mDrain.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mHarness.close();
+        mDrain.join();
+    }
+
+    @Benchmark
+    public void stringConcat() {
+        mHarness.service.write((command + "\r\n").getBytes());
+    }
+
+    @Benchmark
+    public void stringCrlf() {
+        mHarness.service.write(command, true);
+    }
+
+    @Benchmark
+    public void bytesCrlf() {
+        mHarness.service.write(mCommandBytes, true);
+    }
+
+    @Benchmark
+    public void bytes() {
+        mHarness.service.write(mCommandBytes);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Connects a {@link BluetoothService} to the remote end of an in-memory link, or to whatever
+ * device the given transport simulates. Reads are
+ * handed to a dispatcher thread the same way {@code SmoothBluetooth} hands them to its
+ * Handler: the chunk is copied and the listener gets it byte by byte.
+ */
+class ServiceHarness implements BluetoothService.Callback {
+
+    private static final byte[] STOP = new byte[0];
+
+    final Transport transport;
+    final BluetoothService service;
+    // Remote end of the link, only for PipeTransport
+    final Transport.Link remote;
+    final InputStream remoteIn;
+    final OutputStream remoteOut;
+
+    private final LinkedBlockingQueue<byte[]> mDispatchQueue = new LinkedBlockingQueue<>();
+    private final Thread mDispatcher;
+
+    // Only touched by the dispatcher thread
+    private int mChecksum;
+
+    // Guarded by this
+    private long mReceived;
+    private long mLastReceivedNanos;
+
+    ServiceHarness(int readBufferSize) throws IOException {
+        this(new PipeTransport(), readBufferSize);
+    }
+
+    ServiceHarness(Transport transport, int readBufferSize) throws IOException {
+        this.transport = transport;
+        Transport.Acceptor acceptor = null;
+        if (transport instanceof PipeTransport) {
+            acceptor = transport.listen("harness", BluetoothService.UUID_OTHER_DEVICE, true);
+        }
+        service = new BluetoothService(transport, this);
+        service.setReadBufferSize(readBufferSize);
+        service.connect("00:00:00:00:00:00");
+        if (acceptor != null) {
+            remote = acceptor.accept();
+            acceptor.close();
+            remoteIn = remote.getInputStream();
+            remoteOut = remote.getOutputStream();
+        } else {
+            remote = null;
+            remoteIn = null;
+            remoteOut = null;
+        }
+        waitForState(BluetoothService.STATE_CONNECTED);
+
+        mDispatcher = new Thread("HarnessDispatcher") {
+            @Override
+            public void run() {
+                try {
+                    byte[] chunk;
+                    while ((chunk = mDispatchQueue.take()) != STOP) {
+                        for (byte data : chunk) {
+                            onDataReceived(data & 0xFF);
+                        }
+                        delivered(chunk.length);
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        mDispatcher.start();
+    }
+
+    /**
+     * Listener stand-in, runs on the dispatcher thread.
+     */
+    void onDataReceived(int data) {
+        mChecksum += data;
+    }
+
+    private synchronized void delivered(int count) {
+        mReceived += count;
+        mLastReceivedNanos = System.nanoTime();
+        notifyAll();
+    }
+
+    synchronized long received() {
+        return mReceived;
+    }
+
+    /**
+     * Blocks until the listener has seen {@code total} bytes since the harness was created.
+     * Returns the time the last of them arrived.
+     */
+    synchronized long awaitReceived(long total) throws InterruptedException {
+        while (mReceived < total) {
+            wait();
+        }
+        return mLastReceivedNanos;
+    }
+
+    void waitForState(int state) throws IOException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getState() != state) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Service stuck in state " + service.getState());
+            }
+            Thread.yield();
+        }
+    }
+
+    void close() throws IOException, InterruptedException {
+        service.stop();
+        if (remote != null) {
+            remote.close();
+        }
+        mDispatchQueue.add(STOP);
+        mDispatcher.join();
+    }
+
+    @Override
+    public void onStateChanged(int oldState, int newState) {
+    }
+
+    @Override
+    public void onConnected(String address) {
+    }
+
+    @Override
+    public void onDataRead(byte[] buffer, int length) {
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, 0, data, 0, length);
+        mDispatchQueue.add(data);
+    }
+
+    @Override
+    public void onDataWritten(byte[] buffer) {
+    }
+
+    @Override
+    public void onChannelData(int channel, byte[] buffer, int offset, int length) {
+    }
+}
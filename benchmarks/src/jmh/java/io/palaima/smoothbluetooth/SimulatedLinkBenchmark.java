@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command round trips against a simulated ELM327 adapter behind an RFCOMM shaped link.
+ * Every benchmark thread drives its own device, run with {@code -t} to load many devices
+ * at once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SimulatedLinkBenchmark {
+
+    private static final String COMMAND = "010C";
+    private static final byte[] COMMAND_BYTES = (COMMAND + "\r").getBytes();
+    private static final String REPLY = "41 0C 1A F8";
+    // Reply, two CRs and the prompt
+    private static final int REPLY_LENGTH = REPLY.length() + 3;
+
+    @Param({"700000", "9600"})
+    public int bitsPerSecond;
+
+    @Param({"0", "20"})
+    public int latencyMillis;
+
+    @Param({"1024"})
+    public int readBufferSize;
+
+    private ServiceHarness mHarness;
+    private long mExpected;
+
+    @Setup
+    public void setUp() throws Exception {
+        SimulatedTransport.Profile profile = new SimulatedTransport.Profile.Builder()
+                .bandwidth(bitsPerSecond)
+                .latency(latencyMillis, latencyMillis / 4)
+                .build();
+        mHarness = new ServiceHarness(new SimulatedTransport(profile,
+                SimulatedDevices.prompt(Collections.singletonMap(COMMAND, REPLY))),
+                readBufferSize);
+        // Initial prompt
+        mHarness.awaitReceived(1);
+        mExpected = 1;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mHarness.close();
+    }
+
+    @Benchmark
+    public long roundTrip() throws Exception {
+        mHarness.service.write(COMMAND_BYTES);
+        mExpected += REPLY_LENGTH;
+        return mHarness.awaitReceived(mExpected);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+/**
+ * Picks the read buffer size and the bulk chunk size from what the link does.
+ *
+ * <p>The read buffer doubles while most reads fill it and halves while no read comes near a
+ * quarter of it. The chunk size follows the write throughput: a chunk should take about
+ * {@link #TARGET_WRITE_MILLIS} to write, long enough that per write costs don't matter and
+ * short enough that {@code HIGH} data doesn't wait long behind it. While messages pile up in
+ * the queue it may take twice as long. Both stay within the configured bounds.
+ */
+final class AdaptiveSizing {
+
+    static final int DEFAULT_MIN_READ_SIZE = 64;
+    static final int DEFAULT_MAX_READ_SIZE = 16 * 1024;
+    static final int DEFAULT_MIN_CHUNK_SIZE = 128;
+    static final int DEFAULT_MAX_CHUNK_SIZE = 16 * 1024;
+    static final long TARGET_WRITE_MILLIS = 20;
+    // Reads and writes looked at before sizes change, slow writes count up to a window sooner
+    static final int READ_WINDOW = 32;
+    static final int WRITE_WINDOW = 16;
+    static final long WRITE_WINDOW_MILLIS = 250;
+    // Queued messages from which the writer counts as behind
+    static final int BACKLOG_DEPTH = 8;
+
+    private final int mMinReadSize;
+    private final int mMaxReadSize;
+    private final int mMinChunkSize;
+    private final int mMaxChunkSize;
+
+    // Read thread only
+    private int mReads;
+    private int mFullReads;
+    private int mLargestRead;
+
+    // Write thread only
+    private int mWrites;
+    private long mWriteBytes;
+    private long mWriteNanos;
+    // Bytes per second, smoothed over windows
+    private double mRate;
+
+    AdaptiveSizing(int minReadSize, int maxReadSize, int minChunkSize, int maxChunkSize) {
+        if (minReadSize < 1 || maxReadSize < minReadSize || minChunkSize < 1
+                || maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("Bad size bounds");
+        }
+        mMinReadSize = minReadSize;
+        mMaxReadSize = maxReadSize;
+        mMinChunkSize = minChunkSize;
+        mMaxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * Read thread, after each read. Returns the buffer size for the next read.
+     */
+    int onRead(int count, int bufferSize) {
+        mReads++;
+        if (count >= bufferSize) {
+            mFullReads++;
+        }
+        mLargestRead = Math.max(mLargestRead, count);
+        int size = bufferSize;
+        if (mReads == READ_WINDOW) {
+            if (mFullReads > READ_WINDOW / 2) {
+                size = bufferSize * 2;
+            } else if (mLargestRead <= bufferSize / 4) {
+                size = bufferSize / 2;
+            }
+            mReads = 0;
+            mFullReads = 0;
+            mLargestRead = 0;
+        }
+        return Math.max(mMinReadSize, Math.min(mMaxReadSize, size));
+    }
+
+    /**
+     * Write thread, after each chunk. Returns the chunk size for the next one.
+     */
+    int onWrite(int bytes, long nanos, int queueDepth, int chunkSize) {
+        mWrites++;
+        mWriteBytes += bytes;
+        mWriteNanos += nanos;
+        int size = chunkSize;
+        if (mWrites == WRITE_WINDOW || mWriteNanos >= WRITE_WINDOW_MILLIS * 1000000) {
+            double rate = mWriteBytes * 1e9 / Math.max(mWriteNanos, 1);
+            mRate = mRate == 0 ? rate : (mRate * 3 + rate) / 4;
+            double target = mRate * TARGET_WRITE_MILLIS / 1000;
+            if (queueDepth >= BACKLOG_DEPTH) {
+                target *= 2;
+            }
+            size = (int) Math.min(target, Integer.MAX_VALUE);
+            mWrites = 0;
+            mWriteBytes = 0;
+            mWriteNanos = 0;
+        }
+        return Math.max(mMinChunkSize, Math.min(mMaxChunkSize, size));
+    }
+}
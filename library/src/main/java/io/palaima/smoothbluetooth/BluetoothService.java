@@ -15,14 +15,6 @@
  */
 package io.palaima.smoothbluetooth;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
-import android.os.Handler;
-import android.os.Message;
-import android.util.Log;
-
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -38,23 +30,41 @@ class BluetoothService {
     public static final int STATE_CONNECTED = 3;  	// now connected to a remote device
     public static final int STATE_NULL = -1;  	 	// now service is null
 
-    // Message types sent from the BluetoothChatService Handler
-    public static final int MESSAGE_STATE_CHANGE = 1;
-    public static final int MESSAGE_READ = 2;
-    public static final int MESSAGE_WRITE = 3;
-    public static final int MESSAGE_DEVICE_NAME = 4;
-    public static final int MESSAGE_TOAST = 5;
+    // Receives connection events. Called from the service threads, so implementations
+    // hand them over to their own thread.
+    interface Callback {
+        void onStateChanged(int oldState, int newState);
+        void onConnected(String address);
+        // buffer is reused by the next read, copy what has to outlive the call
+        void onDataRead(byte[] buffer, int length);
+        void onDataWritten(byte[] buffer);
+        // Data of a logical channel other than 0, buffer is reused as well
+        void onChannelData(int channel, byte[] buffer, int offset, int length);
+    }
+
+    // Size of a single socket read, 1 reads and dispatches byte by byte
+    public static final int DEFAULT_READ_BUFFER_SIZE = 1024;
 
+    // Outbound priorities. High priority writes go out whole and before anything normal,
+    // normal writes go out in chunks so high priority ones never wait for more than a chunk.
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    private static final int PRIORITIES = 2;
+
+    public static final int DEFAULT_BULK_CHUNK_SIZE = 1024;
+
+    private static final byte[] CRLF = {0x0D, 0x0A};
 
     private static final String NAME_SECURE = "Bluetooth Secure";
 
-    private static final UUID UUID_ANDROID_DEVICE =
+    static final UUID UUID_ANDROID_DEVICE =
             UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-    private static final UUID UUID_OTHER_DEVICE =
+    static final UUID UUID_OTHER_DEVICE =
             UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
+    private final Transport mTransport;
+    private final Callback mCallback;
+    private final Metrics mMetrics;
 
     private boolean mIsSecure = true;
 
@@ -63,22 +73,59 @@ class BluetoothService {
     private ConnectedThread mConnectedThread;
     private int mState;
     private boolean isAndroid;
+    private volatile int mReadBufferSize = DEFAULT_READ_BUFFER_SIZE;
+    private volatile int mBulkChunkSize = DEFAULT_BULK_CHUNK_SIZE;
+    private volatile AdaptiveSizing mAdaptiveSizing;
+    // Set when a connection dropped, the next connect() counts as a reconnect
+    private boolean mConnectionLost;
+    private volatile TrafficRecorder mRecorder;
+    private volatile boolean mCompression;
+    private volatile byte[] mCompressionDictionary;
+    private volatile boolean mChannels;
+    private volatile boolean mFlowControl;
+    private volatile int mFlowWindow = PeerLink.DEFAULT_WINDOW;
+    private volatile boolean mReliable;
+    private volatile int mReliableBufferSize = ReliableSession.DEFAULT_CAPACITY;
+    private volatile long mMonitorInterval;
+    private volatile int mMonitorMaxMissed;
+    private volatile byte[] mMonitorProbe;
+    // Outlive connections until stop(), guarded by this
+    private ReliableSession mSession;
+    private OutboundQueue mReliableQueue;
+    // Write thread of the last connection which carried the reliable queue, guarded by this
+    private Thread mLastWriter;
+
+    public BluetoothService(Transport transport, Callback callback) {
+        this(transport, callback, new Metrics());
+    }
 
-    public BluetoothService(Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
+    public BluetoothService(Transport transport, Callback callback, Metrics metrics) {
+        mTransport = transport;
         mState = BluetoothService.STATE_NONE;
-        mHandler = handler;
+        mCallback = callback;
+        mMetrics = metrics;
+        mMetrics.readBufferSize.set(mReadBufferSize);
+        mMetrics.writeChunkSize.set(mBulkChunkSize);
+    }
+
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    // Record all traffic from now on, null stops recording
+    public void setTrafficRecorder(TrafficRecorder recorder) {
+        mRecorder = recorder;
     }
 
 
     // Set the current state of the chat connection
     // state : An integer defining the current connection state
     private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + mState + " -> " + state);
+        int oldState = mState;
         mState = state;
 
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(BluetoothService.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+        // Give the new state to the callback so the UI Activity can update
+        mCallback.onStateChanged(oldState, state);
     }
 
     // Return the current connection state.
@@ -86,6 +133,90 @@ class BluetoothService {
         return mState;
     }
 
+    // Set how many bytes a single socket read may return. Takes effect with the next connection.
+    public void setReadBufferSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Read buffer size must be positive");
+        }
+        mReadBufferSize = size;
+        mMetrics.readBufferSize.set(size);
+    }
+
+    // Set the largest piece a normal priority write is split into
+    public void setBulkChunkSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Bulk chunk size must be positive");
+        }
+        mBulkChunkSize = size;
+        mMetrics.writeChunkSize.set(size);
+    }
+
+    // Let the read buffer and bulk chunk size follow what the link does, within the bounds
+    // of sizing, null keeps them where they are. The sizes set before are where it starts.
+    public void setAdaptiveSizing(AdaptiveSizing sizing) {
+        mAdaptiveSizing = sizing;
+    }
+
+    // Offer compression to peers running this library, Android devices only. Both sides
+    // must enable it, with the same dictionary if any. Takes effect with the next connection.
+    public void setCompression(boolean enabled, byte[] dictionary) {
+        mCompression = enabled;
+        mCompressionDictionary = dictionary;
+    }
+
+    // Offer logical channels to peers running this library, Android devices only. Takes
+    // effect with the next connection.
+    public void setChannels(boolean enabled) {
+        mChannels = enabled;
+    }
+
+    // Offer credit based flow control to peers running this library, Android devices only.
+    // The peer sends at most window bytes ahead of what consumed() reported, so whoever
+    // handles the data must report it. Takes effect with the next connection.
+    public void setFlowControl(boolean enabled, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        mFlowControl = enabled;
+        mFlowWindow = window;
+    }
+
+    // Offer reliable delivery to peers running this library, Android devices only. Data
+    // sent but not acknowledged, up to bufferSize bytes, is sent again when the next
+    // connection resumes the session. The session lasts until stop(). Takes effect with
+    // the next connection.
+    public void setReliable(boolean enabled, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        mReliable = enabled;
+        mReliableBufferSize = bufferSize;
+    }
+
+    // Probe the link every intervalMillis and drop it once maxMissed probes in a row went
+    // unanswered, 0 turns it off. A null probe is the built-in ping of Android links, which
+    // the peer answers if it runs this library with the monitor or any other feature on.
+    // Any other probe is written as is, and any data received after it answers it. Takes
+    // effect with the next connection.
+    public void setLinkMonitor(long intervalMillis, int maxMissed, byte[] probe) {
+        if (intervalMillis < 0 || intervalMillis > 0 && maxMissed < 1) {
+            throw new IllegalArgumentException("Bad link monitor settings");
+        }
+        mMonitorInterval = intervalMillis;
+        mMonitorMaxMissed = maxMissed;
+        mMonitorProbe = probe != null ? probe.clone() : null;
+    }
+
+    // Report bytes of onDataRead() and onChannelData() the app is done with, any thread
+    public void consumed(int bytes) {
+        ConnectedThread r;
+        synchronized (this) {
+            if (mState != BluetoothService.STATE_CONNECTED) return;
+            r = mConnectedThread;
+        }
+        r.consumed(bytes);
+    }
+
     // Start the chat service. Specifically start AcceptThread to begin a
     // session in listening (server) mode. Called by the Activity onResume()
     public synchronized void start(boolean android, boolean secure) {
@@ -106,9 +237,8 @@ class BluetoothService {
     }
 
     // Start the ConnectThread to initiate a connection to a remote device
-    // device : The BluetoothDevice to tryConnect
-    // secure : Socket Security type - Secure (true) , Insecure (false)
-    public synchronized void connect(BluetoothDevice device) {
+    // address : The address of the device to tryConnect
+    public synchronized void connect(String address) {
         // Cancel any thread attempting to make a connection
         if (mState == BluetoothService.STATE_CONNECTING) {
             if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
@@ -117,19 +247,23 @@ class BluetoothService {
         // Cancel any thread currently running a connection
         if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
 
+        mMetrics.connects.increment();
+        if (mConnectionLost) {
+            mConnectionLost = false;
+            mMetrics.reconnects.increment();
+        }
+
         // Start the thread to tryConnect with the given device
-        mConnectThread = new ConnectThread(device);
+        mConnectThread = new ConnectThread(address);
         mConnectThread.start();
         setState(BluetoothService.STATE_CONNECTING);
     }
 
     /**
      * Start the ConnectedThread to begin managing a Bluetooth connection
-     * @param socket  The BluetoothSocket on which the connection was made
-     * @param device  The BluetoothDevice that has been connected
+     * @param link  The link on which the connection was made
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
+    public synchronized void connected(Transport.Link link, final String socketType) {
         // Cancel the thread that completed the connection
         if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
 
@@ -143,12 +277,11 @@ class BluetoothService {
         }
 
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
+        mConnectedThread = new ConnectedThread(link, socketType);
         mConnectedThread.start();
 
-        // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(MESSAGE_DEVICE_NAME);
-        mHandler.sendMessage(msg);
+        // Send the address of the connected device back to the UI Activity
+        mCallback.onConnected(link.getAddress());
 
         setState(BluetoothService.STATE_CONNECTED);
     }
@@ -170,21 +303,96 @@ class BluetoothService {
             mSecureAcceptThread.kill();
             mSecureAcceptThread = null;
         }
+
+        // The next connection starts a new session, unacknowledged data is gone
+        if (mSession != null) {
+            mSession = null;
+            mMetrics.reliableUnacked.set(0);
+        }
+        if (mReliableQueue != null) {
+            mReliableQueue.close();
+            mReliableQueue = null;
+            mLastWriter = null;
+        }
         setState(BluetoothService.STATE_NONE);
     }
 
-    // Write to the ConnectedThread in an unsynchronized manner
+    // Queue bytes for the write thread of the ConnectedThread. The bytes are copied,
+    // so the caller may reuse the array right away.
     // out : The bytes to write
     public void write(byte[] out) {
+        write(out, 0, out.length, false, PRIORITY_NORMAL);
+    }
+
+    // crlf : Append CR and LF after the bytes
+    public void write(byte[] out, boolean crlf) {
+        write(out, 0, out.length, crlf, PRIORITY_NORMAL);
+    }
+
+    public void write(String out, boolean crlf) {
+        byte[] bytes = out.getBytes();
+        enqueue(bytes, 0, bytes.length, crlf, PRIORITY_NORMAL);
+    }
+
+    public void write(byte[] out, int offset, int length, boolean crlf) {
+        write(out, offset, length, crlf, PRIORITY_NORMAL);
+    }
+
+    // priority : PRIORITY_HIGH or PRIORITY_NORMAL
+    public void write(byte[] out, int offset, int length, boolean crlf, int priority) {
+        byte[] copy = new byte[length];
+        System.arraycopy(out, offset, copy, 0, length);
+        enqueue(copy, 0, length, crlf, priority);
+    }
+
+    // Takes over the array. Returns false if not connected.
+    boolean enqueue(byte[] out, int offset, int length, boolean crlf, int priority) {
+        return enqueue(new OutboundQueue.Message(out, offset, length, crlf, priority));
+    }
+
+    // Like write(out), but takes over the array and turns it away instead of waiting while
+    // the queue is full. Returns false if not connected or full.
+    boolean tryWrite(byte[] out) {
+        return enqueue(new OutboundQueue.Message(out, 0, out.length, false, PRIORITY_NORMAL),
+                false);
+    }
+
+    // Write channel data, the caller's array is copied. Written bytes are added to bytesOut.
+    // Returns false if not connected. Dropped if the peer has no channels.
+    public boolean writeChannel(int channel, byte[] out, int offset, int length, int priority,
+            Counter bytesOut) {
+        if (channel < 1 || channel >= OutboundQueue.CHANNELS) {
+            throw new IllegalArgumentException("Channel out of range: " + channel);
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(out, offset, copy, 0, length);
+        return enqueue(new OutboundQueue.Message(copy, 0, length, false, priority, channel,
+                bytesOut));
+    }
+
+    // Queue a pooled buffer without copying it, it goes back to its pool once written.
+    // Returns false if not connected, the caller keeps the buffer then.
+    boolean write(MessageBuffer buffer, int offset, int priority) {
+        return enqueue(new OutboundQueue.Message(buffer, offset, priority));
+    }
+
+    private boolean enqueue(OutboundQueue.Message message) {
+        return enqueue(message, true);
+    }
+
+    private boolean enqueue(OutboundQueue.Message message, boolean block) {
+        if (message.mPriority < 0 || message.mPriority >= PRIORITIES) {
+            throw new IllegalArgumentException("Unknown priority " + message.mPriority);
+        }
         // Create temporary object
         ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
-            if (mState != BluetoothService.STATE_CONNECTED) return;
+            if (mState != BluetoothService.STATE_CONNECTED) return false;
             r = mConnectedThread;
         }
-        // Perform the write unsynchronized
-        r.write(out);
+        // Queue the write unsynchronized
+        return r.write(message, block);
     }
 
     // Indicate that the connection attempt failed and notify the UI Activity
@@ -195,6 +403,9 @@ class BluetoothService {
 
     // Indicate that the connection was lost and notify the UI Activity
     private void connectionLost() {
+        synchronized (this) {
+            mConnectionLost = true;
+        }
         // Start the service over to restart listening mode
         BluetoothService.this.start(isAndroid, mIsSecure);
     }
@@ -204,33 +415,27 @@ class BluetoothService {
     // (or until cancelled)
     private class AcceptThread extends Thread {
         // The local server socket
-        private BluetoothServerSocket mmServerSocket;
+        private Transport.Acceptor mmServerSocket;
         private String mSocketType;
         boolean isRunning = true;
 
         public AcceptThread(boolean isAndroid, boolean secure) {
-            BluetoothServerSocket tmp = null;
+            Transport.Acceptor tmp = null;
 
             // Create a new listening server socket
             try {
-                if (secure) {
-                    if(isAndroid)
-                        tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, UUID_ANDROID_DEVICE);
-                    else
-                        tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, UUID_OTHER_DEVICE);
-                } else {
-                    if(isAndroid)
-                        tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_SECURE, UUID_ANDROID_DEVICE);
-                    else
-                        tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_SECURE, UUID_OTHER_DEVICE);
-                }
+                tmp = mTransport.listen(NAME_SECURE, isAndroid ? UUID_ANDROID_DEVICE : UUID_OTHER_DEVICE, secure);
             } catch (IOException e) { }
             mmServerSocket = tmp;
         }
 
         public void run() {
             setName("AcceptThread" + mSocketType);
-            BluetoothSocket socket;
+            Transport.Link socket;
+
+            if (mmServerSocket == null) {
+                return;
+            }
 
             // Listen to the server socket if we're not connected
             while (mState != BluetoothService.STATE_CONNECTED && isRunning) {
@@ -249,8 +454,7 @@ class BluetoothService {
                             case BluetoothService.STATE_LISTEN:
                             case BluetoothService.STATE_CONNECTING:
                                 // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice(),
-                                        mSocketType);
+                                connected(socket, mSocketType);
                                 break;
                             case BluetoothService.STATE_NONE:
                             case BluetoothService.STATE_CONNECTED:
@@ -282,39 +486,29 @@ class BluetoothService {
     // with a device. It runs straight through
     // the connection either succeeds or fails
     private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+        private final Transport.Link mmSocket;
         private String mSocketType;
+        private final long mmStartNanos = System.nanoTime();
+        // Set by cancel(), a failure after it is no reason to start listening again
+        private volatile boolean mmCancelled;
 
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectThread(String address) {
+            Transport.Link tmp = null;
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+            // Get a link for a connection with the given device
             try {
-                if (mIsSecure) {
-                    if (isAndroid) {
-                        tmp = device.createRfcommSocketToServiceRecord(UUID_ANDROID_DEVICE);
-                    } else {
-                        tmp = device.createRfcommSocketToServiceRecord(UUID_OTHER_DEVICE);
-                    }
-                } else {
-                    if (isAndroid) {
-                        tmp = device.createInsecureRfcommSocketToServiceRecord(UUID_ANDROID_DEVICE);
-                    } else {
-                        tmp = device.createInsecureRfcommSocketToServiceRecord(UUID_OTHER_DEVICE);
-                    }
-                }
+                tmp = mTransport.createLink(address, isAndroid ? UUID_ANDROID_DEVICE : UUID_OTHER_DEVICE, mIsSecure);
             } catch (IOException e) { }
             mmSocket = tmp;
         }
 
         public void run() {
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+            if (mmSocket == null) {
+                connectionFailed();
+                return;
+            }
 
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the link
             try {
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
@@ -324,22 +518,36 @@ class BluetoothService {
                 try {
                     mmSocket.close();
                 } catch (IOException e2) { }
-                connectionFailed();
+                if (!mmCancelled) {
+                    connectionFailed();
+                }
                 return;
             }
 
-            // Reset the ConnectThread because we're done
+            mMetrics.connectLatency.record((System.nanoTime() - mmStartNanos) / 1000000L);
+
             synchronized (BluetoothService.this) {
+                if (mmCancelled) {
+                    // Connected just as stop() or another connect() gave up on us
+                    try {
+                        mmSocket.close();
+                    } catch (IOException e) { }
+                    return;
+                }
+                // Reset the ConnectThread because we're done
                 mConnectThread = null;
-            }
 
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+                // Start the connected thread
+                connected(mmSocket, mSocketType);
+            }
         }
 
         public void cancel() {
+            mmCancelled = true;
             try {
-                mmSocket.close();
+                if (mmSocket != null) {
+                    mmSocket.close();
+                }
             } catch (IOException e) { }
         }
     }
@@ -347,55 +555,334 @@ class BluetoothService {
     // This thread runs during a connection with a remote device.
     // It handles all incoming and outgoing transmissions.
     private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+        private final Transport.Link mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
+        // Framing with the peer, only on Android links
+        private final PeerLink mmPeer;
+        // Replaced by the read thread with adaptive sizing
+        private byte[] mmReadBuffer;
+        private final OutboundQueue mmQueue;
+        // With reliable delivery the queue goes on with the next connection
+        private final boolean mmKeepQueue;
+        private final Thread mmPreviousWriter;
+        private final WriteThread mmWriteThread = new WriteThread();
+        private final LinkMonitor mmMonitor;
+        // Probe of the app's own, any data read answers it
+        private final boolean mmRawProbe;
+        // Set by cancel(), the read thread then ends without starting over
+        private volatile boolean mmCancelled;
+
+        public ConnectedThread(Transport.Link socket, String socketType) {
             mmSocket = socket;
+            mmReadBuffer = new byte[mReadBufferSize];
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the link input and output streams
             try {
                 tmpIn = socket.getInputStream();
                 tmpOut = socket.getOutputStream();
             } catch (IOException e) { }
 
+            final byte[] probe = mMonitorProbe;
+            mmRawProbe = probe != null;
+            if (mMonitorInterval > 0) {
+                mmMonitor = new LinkMonitor(mMonitorInterval, mMonitorMaxMissed,
+                        new LinkMonitor.Probe() {
+                    @Override
+                    public boolean send(long nonce) {
+                        if (probe == null) {
+                            return mmPeer != null && mmPeer.ping(nonce);
+                        }
+                        // High priority never waits for room in the queue
+                        return write(new OutboundQueue.Message(probe.clone(), 0, probe.length,
+                                false, PRIORITY_HIGH), true);
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        // The read thread fails and takes the usual way, as if the peer
+                        // had closed the link
+                        close();
+                    }
+                }, mMetrics);
+            } else {
+                mmMonitor = null;
+            }
+
+            if (isAndroid && tmpIn != null && tmpOut != null) {
+                boolean reliable = mReliable;
+                int capabilities = (mCompression ? PeerLink.CAP_DEFLATE : 0)
+                        | (mChannels ? PeerLink.CAP_CHANNELS : 0)
+                        | (mFlowControl ? PeerLink.CAP_FLOW_CONTROL : 0)
+                        | (reliable ? PeerLink.CAP_RELIABLE : 0);
+                // Pings are answered whenever we speak the protocol anyway
+                if (capabilities != 0 || mmMonitor != null && !mmRawProbe) {
+                    capabilities |= PeerLink.CAP_PING;
+                }
+                if (reliable && mSession == null) {
+                    mSession = new ReliableSession(mReliableBufferSize, mMetrics.reliableUnacked);
+                    mReliableQueue = new OutboundQueue(PRIORITIES, mMetrics.writeQueueDepth);
+                }
+                mmKeepQueue = reliable;
+                mmPeer = new PeerLink(tmpIn, tmpOut, capabilities, mCompressionDictionary,
+                        mFlowWindow, reliable ? mSession : null,
+                        mMetrics, new PeerLink.ChannelSink() {
+                    @Override
+                    public void onChannelData(int channel, byte[] buffer, int offset, int length) {
+                        mMetrics.bytesIn.add(length);
+                        if (mmMonitor != null) {
+                            mmMonitor.pause();
+                            try {
+                                mCallback.onChannelData(channel, buffer, offset, length);
+                            } finally {
+                                mmMonitor.resume();
+                            }
+                        } else {
+                            mCallback.onChannelData(channel, buffer, offset, length);
+                        }
+                    }
+                }, mmMonitor, new Runnable() {
+                    @Override
+                    public void run() {
+                        mmQueue.wake();
+                    }
+                });
+                tmpIn = mmPeer.getInputStream();
+                tmpOut = mmPeer.getOutputStream();
+            } else {
+                mmPeer = null;
+                mmKeepQueue = false;
+            }
+            if (mmKeepQueue) {
+                mmQueue = mReliableQueue;
+                mmQueue.resume();
+                mmPreviousWriter = mLastWriter;
+                mLastWriter = mmWriteThread;
+            } else {
+                mmQueue = new OutboundQueue(PRIORITIES, mMetrics.writeQueueDepth);
+                mmPreviousWriter = null;
+            }
+
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
         }
 
         public void run() {
+            if (mmPreviousWriter != null) {
+                // Only one writer may take from the kept queue at a time
+                try {
+                    mmPreviousWriter.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            try {
+                if (mmPeer != null) {
+                    mmPeer.open();
+                }
+            } catch (IOException e) {
+                if (!mmCancelled) {
+                    connectionLost();
+                }
+                return;
+            }
+            mmWriteThread.start();
+            if (mmMonitor != null) {
+                mmMonitor.start();
+            }
             // Keep listening to the InputStream while connected
             while (true) {
                 try {
-                    int data = mmInStream.read();
-                    mHandler.obtainMessage(BluetoothService.MESSAGE_READ, data).sendToTarget();
+                    int count = mmInStream.read(mmReadBuffer, 0, mmReadBuffer.length);
+                    if (count < 0) {
+                        throw new IOException("End of stream");
+                    }
+                    mMetrics.bytesIn.add(count);
+                    mMetrics.readSize.record(count);
+                    if (mmRawProbe && mmMonitor != null) {
+                        mmMonitor.onData();
+                    }
+                    TrafficRecorder recorder = mRecorder;
+                    if (recorder != null) {
+                        recorder.record(TrafficRecorder.DIRECTION_IN, mmReadBuffer, 0, count);
+                    }
+                    if (mmMonitor != null) {
+                        // The app may hold the read thread here for backpressure, answers to
+                        // probes go unread meanwhile
+                        mmMonitor.pause();
+                        try {
+                            mCallback.onDataRead(mmReadBuffer, count);
+                        } finally {
+                            mmMonitor.resume();
+                        }
+                    } else {
+                        mCallback.onDataRead(mmReadBuffer, count);
+                    }
+                    AdaptiveSizing sizing = mAdaptiveSizing;
+                    if (sizing != null) {
+                        // The callback is done with the buffer, it may be swapped
+                        int size = sizing.onRead(count, mmReadBuffer.length);
+                        if (size != mmReadBuffer.length) {
+                            mmReadBuffer = new byte[size];
+                            mReadBufferSize = size;
+                            mMetrics.readBufferSize.set(size);
+                        }
+                    }
                 } catch (IOException e) {
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    BluetoothService.this.start(isAndroid, mIsSecure);
+                    // Unless stop() or a new connection closed it, start over listening
+                    if (!mmCancelled) {
+                        connectionLost();
+                    }
                     break;
                 }
             }
         }
 
-        // Write to the connected OutStream.
-        // @param buffer  The bytes to write
-        public void write(byte[] buffer) {
+        // Queue a message for the write thread, blocks while the queue is full unless block is
+        // false. Returns false if the message was turned away.
+        public boolean write(OutboundQueue.Message message, boolean block) {
             try {
-                mmOutStream.write(buffer);
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(BluetoothService.MESSAGE_WRITE
-                        , -1, -1, buffer).sendToTarget();
-            } catch (IOException e) { }
+                return mmQueue.offer(message, block);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        public void consumed(int bytes) {
+            if (mmPeer != null) {
+                mmPeer.grant(bytes);
+            }
         }
 
         public void cancel() {
+            mmCancelled = true;
+            close();
+        }
+
+        // Ends the connection, the read thread starts over unless it was cancelled
+        private void close() {
+            if (mmMonitor != null) {
+                mmMonitor.stop();
+            }
+            if (mmKeepQueue) {
+                // Leave the queue to the next connection, only this writer stops
+                mmQueue.suspend();
+                mmWriteThread.interrupt();
+            } else {
+                mmQueue.close();
+            }
+            if (mmPeer != null) {
+                mmPeer.close();
+            }
             try {
                 mmSocket.close();
             } catch (IOException e) { }
         }
+
+        // Writes queued messages to the connected OutStream, most urgent first
+        private class WriteThread extends Thread {
+            // Joins payload and CRLF into a single socket write, so they are logged as one
+            // with reliable delivery
+            private byte[] mmWriteBuffer = new byte[256];
+
+            public void run() {
+                setName("WriteThread");
+                try {
+                    OutboundQueue.Message message;
+                    while ((message = mmQueue.peek()) != null) {
+                        if (mmPeer != null) {
+                            // Credit and acknowledgements for the peer go out ahead of data
+                            mmPeer.sendControl();
+                        }
+                        if (message == OutboundQueue.WAKEUP) {
+                            continue;
+                        }
+                        // A writer stopped by a reconnect may leave a finished message behind
+                        if (message.remaining() > 0 || message.mOffset == message.mStart) {
+                            int offset = message.mOffset;
+                            long start = System.nanoTime();
+                            writeChunk(message);
+                            written(message.mOffset - offset, System.nanoTime() - start);
+                        }
+                        mmQueue.advance(message);
+                        if (message.remaining() == 0) {
+                            mMetrics.framesOut.increment();
+                            if (message.mChannel != 0) {
+                                // Channel data stays out of the plain stream callbacks
+                            } else if (message.mBuffer != null) {
+                                // Pooled, must not escape
+                                message.mBuffer.release();
+                            } else {
+                                // Share the sent message back to the UI Activity
+                                mCallback.onDataWritten(message.mData);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                } catch (IOException e) {
+                    // The link is broken, closing it ends the read thread which starts over
+                    close();
+                }
+            }
+
+            private void written(int bytes, long nanos) {
+                mMetrics.writeTime.record(nanos / 1000);
+                AdaptiveSizing sizing = mAdaptiveSizing;
+                if (sizing != null) {
+                    int size = sizing.onWrite(bytes, nanos, mmQueue.size(), mBulkChunkSize);
+                    if (size != mBulkChunkSize) {
+                        mBulkChunkSize = size;
+                        mMetrics.writeChunkSize.set(size);
+                    }
+                }
+            }
+
+            private void writeChunk(OutboundQueue.Message message) throws IOException {
+                int length = message.remaining();
+                if (message.mPriority != PRIORITY_HIGH) {
+                    length = Math.min(length, mBulkChunkSize);
+                }
+                boolean crlf = message.mCrlf && length == message.remaining();
+                int offset = message.mOffset;
+                byte[] buffer = message.mData;
+                if (mmPeer != null) {
+                    // With reliable delivery the chunk is taken for good once this returns
+                    mmPeer.reserve(crlf ? length + CRLF.length : length);
+                }
+                message.mOffset += length;
+                if (message.mChannel != 0) {
+                    // Not recorded, a capture holds the plain stream only
+                    if (mmPeer != null && mmPeer.write(message.mChannel, buffer, offset, length)) {
+                        mMetrics.bytesOut.add(length);
+                        if (message.mBytesOut != null) {
+                            message.mBytesOut.add(length);
+                        }
+                    }
+                    return;
+                }
+                if (!crlf) {
+                    mmOutStream.write(buffer, offset, length);
+                } else {
+                    if (mmWriteBuffer.length < length + CRLF.length) {
+                        mmWriteBuffer = new byte[length + CRLF.length];
+                    }
+                    System.arraycopy(buffer, offset, mmWriteBuffer, 0, length);
+                    System.arraycopy(CRLF, 0, mmWriteBuffer, length, CRLF.length);
+                    mmOutStream.write(mmWriteBuffer, 0, length + CRLF.length);
+                }
+
+                TrafficRecorder recorder = mRecorder;
+                if (recorder != null) {
+                    recorder.record(TrafficRecorder.DIRECTION_OUT, buffer, offset, length);
+                    if (crlf) {
+                        recorder.record(TrafficRecorder.DIRECTION_OUT, CRLF, 0, CRLF.length);
+                    }
+                }
+                mMetrics.bytesOut.add(crlf ? length + CRLF.length : length);
+            }
+        }
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Bounded single direction byte pipe. Unlike {@link java.io.PipedInputStream} it is not bound
+ * to the threads which used it, so it can be fed from thread pools.
+ * Closing it makes pending writes fail, readers drain what is left and then get end of stream.
+ */
+class BytePipe {
+
+    private final byte[] mBuffer;
+    private int mHead;
+    private int mSize;
+    private boolean mClosed;
+
+    private final InputStream mSource = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return BytePipe.this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return BytePipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return BytePipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            BytePipe.this.close();
+        }
+    };
+
+    private final OutputStream mSink = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            BytePipe.this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            BytePipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            BytePipe.this.close();
+        }
+    };
+
+    BytePipe(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    InputStream source() {
+        return mSource;
+    }
+
+    OutputStream sink() {
+        return mSink;
+    }
+
+    synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            while (mSize == 0) {
+                if (mClosed) {
+                    return -1;
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        int count = Math.min(len, mSize);
+        int first = Math.min(count, mBuffer.length - mHead);
+        System.arraycopy(mBuffer, mHead, b, off, first);
+        System.arraycopy(mBuffer, 0, b, off + first, count - first);
+        mHead = (mHead + count) % mBuffer.length;
+        mSize -= count;
+        notifyAll();
+        return count;
+    }
+
+    synchronized void write(byte[] b, int off, int len) throws IOException {
+        try {
+            while (len > 0) {
+                if (mClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (mSize == mBuffer.length) {
+                    wait();
+                    continue;
+                }
+                int tail = (mHead + mSize) % mBuffer.length;
+                int count = Math.min(len, Math.min(mBuffer.length - mSize, mBuffer.length - tail));
+                System.arraycopy(b, off, mBuffer, tail, count);
+                mSize += count;
+                off += count;
+                len -= count;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    synchronized int available() {
+        return mSize;
+    }
+
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+}
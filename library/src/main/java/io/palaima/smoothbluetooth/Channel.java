@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A numbered stream sharing the link with the plain data stream and with other channels, see
+ * {@link SmoothBluetooth#openChannel(int, Channel.Listener)}. Channels take turns on the link
+ * a chunk at a time, so a bulk transfer on one channel doesn't hold up another.
+ */
+public class Channel {
+
+    public interface Listener {
+        /**
+         * @param data a copy, owned by the listener
+         */
+        void onDataReceived(Channel channel, byte[] data);
+    }
+
+    interface Writer {
+        boolean write(Channel channel, byte[] data, int offset, int length, boolean urgent);
+    }
+
+    private final int mId;
+    private final Listener mListener;
+    private final Executor mExecutor;
+    private final Writer mWriter;
+    private final ChannelMultiplexer mMultiplexer;
+    final Counter mBytesIn = new Counter();
+    final Counter mBytesOut = new Counter();
+
+    Channel(int id, Listener listener, Executor executor, Writer writer,
+            ChannelMultiplexer multiplexer) {
+        mId = id;
+        mListener = listener;
+        mExecutor = executor;
+        mWriter = writer;
+        mMultiplexer = multiplexer;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public boolean send(byte[] data) {
+        return send(data, 0, data.length, false);
+    }
+
+    /**
+     * Queues the data, copied, for this channel.
+     *
+     * @param urgent sends ahead of everything not urgent, like {@code Priority.HIGH}
+     * @return false if not connected
+     */
+    public boolean send(byte[] data, int offset, int length, boolean urgent) {
+        return mWriter.write(this, data, offset, length, urgent);
+    }
+
+    /**
+     * Bytes received on this channel.
+     */
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+
+    /**
+     * Bytes of this channel written to the link.
+     */
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+
+    /**
+     * Stops receiving, data still arriving for this channel is dropped.
+     */
+    public void close() {
+        mMultiplexer.remove(this);
+    }
+
+    // On the read thread
+    void deliver(byte[] buffer, int offset, int length) {
+        mBytesIn.add(length);
+        final byte[] data = new byte[length];
+        System.arraycopy(buffer, offset, data, 0, length);
+        if (mExecutor == null) {
+            mListener.onDataReceived(this, data);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onDataReceived(Channel.this, data);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "Channel " + mId + " in=" + getBytesIn() + " out=" + getBytesOut();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Open channels by number, routes channel data from the read thread to them.
+ */
+class ChannelMultiplexer {
+
+    static final int MIN_CHANNEL = 1;
+    static final int MAX_CHANNEL = OutboundQueue.CHANNELS - 1;
+
+    private final Channel.Writer mWriter;
+    private final Counter mDropped;
+    // Copied on change, read lock free by the read thread
+    private volatile Channel[] mChannels = new Channel[OutboundQueue.CHANNELS];
+
+    ChannelMultiplexer(Channel.Writer writer, Counter dropped) {
+        mWriter = writer;
+        mDropped = dropped;
+    }
+
+    synchronized Channel open(int id, Channel.Listener listener, Executor executor) {
+        if (id < MIN_CHANNEL || id > MAX_CHANNEL) {
+            throw new IllegalArgumentException("Channel out of range: " + id);
+        }
+        if (mChannels[id] != null) {
+            throw new IllegalArgumentException("Channel already open: " + id);
+        }
+        Channel channel = new Channel(id, listener, executor, mWriter, this);
+        Channel[] channels = mChannels.clone();
+        channels[id] = channel;
+        mChannels = channels;
+        return channel;
+    }
+
+    synchronized void remove(Channel channel) {
+        if (mChannels[channel.getId()] == channel) {
+            Channel[] channels = mChannels.clone();
+            channels[channel.getId()] = null;
+            mChannels = channels;
+        }
+    }
+
+    Channel get(int id) {
+        return id >= MIN_CHANNEL && id <= MAX_CHANNEL ? mChannels[id] : null;
+    }
+
+    void onChannelData(int id, byte[] buffer, int offset, int length) {
+        Channel channel = get(id);
+        if (channel == null) {
+            mDropped.add(length);
+            return;
+        }
+        channel.deliver(buffer, offset, length);
+    }
+}
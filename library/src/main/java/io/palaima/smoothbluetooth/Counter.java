@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metric which only holds a value, used for totals as well as for gauges like queue depth.
+ */
+public final class Counter {
+
+    private final AtomicLong mValue = new AtomicLong();
+
+    Counter() {
+    }
+
+    void increment() {
+        mValue.incrementAndGet();
+    }
+
+    void decrement() {
+        mValue.decrementAndGet();
+    }
+
+    void add(long delta) {
+        mValue.addAndGet(delta);
+    }
+
+    void set(long value) {
+        mValue.set(value);
+    }
+
+    public long get() {
+        return mValue.get();
+    }
+}
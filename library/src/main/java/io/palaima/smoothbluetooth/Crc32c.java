@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), the checksum of iSCSI and SCTP, which catches more of the burst
+ * errors a radio link produces than CRC-32. {@code java.util.zip.CRC32C} needs Java 9, so this
+ * is table driven, four bytes per step.
+ */
+final class Crc32c implements Checksum {
+
+    // Reversed 0x1EDC6F41
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[] T0 = new int[256];
+    private static final int[] T1 = new int[256];
+    private static final int[] T2 = new int[256];
+    private static final int[] T3 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? c >>> 1 ^ POLYNOMIAL : c >>> 1;
+            }
+            T0[i] = c;
+        }
+        for (int i = 0; i < 256; i++) {
+            T1[i] = T0[i] >>> 8 ^ T0[T0[i] & 0xFF];
+            T2[i] = T1[i] >>> 8 ^ T0[T1[i] & 0xFF];
+            T3[i] = T2[i] >>> 8 ^ T0[T2[i] & 0xFF];
+        }
+    }
+
+    // Inverted, as the algorithm runs it
+    private int mCrc = 0xFFFFFFFF;
+
+    static int compute(byte[] buffer, int offset, int length) {
+        return ~update(0xFFFFFFFF, buffer, offset, length);
+    }
+
+    private static int update(int crc, byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        for (; offset + 4 <= end; offset += 4) {
+            crc ^= buffer[offset] & 0xFF | (buffer[offset + 1] & 0xFF) << 8
+                    | (buffer[offset + 2] & 0xFF) << 16 | buffer[offset + 3] << 24;
+            crc = T3[crc & 0xFF] ^ T2[crc >>> 8 & 0xFF] ^ T1[crc >>> 16 & 0xFF] ^ T0[crc >>> 24];
+        }
+        for (; offset < end; offset++) {
+            crc = crc >>> 8 ^ T0[(crc ^ buffer[offset]) & 0xFF];
+        }
+        return crc;
+    }
+
+    @Override
+    public void update(int b) {
+        mCrc = mCrc >>> 8 ^ T0[(mCrc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] buffer, int offset, int length) {
+        mCrc = update(mCrc, buffer, offset, length);
+    }
+
+    @Override
+    public long getValue() {
+        return ~mCrc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        mCrc = 0xFFFFFFFF;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Received data as a stream with backpressure, see {@link SmoothBluetooth#getDataPublisher()}.
+ * The interfaces have the shape of Reactive Streams, {@link ReactiveDataPublisher} adapts it
+ * to an {@code org.reactivestreams.Publisher}.
+ *
+ * <p>Every read from the link becomes one {@link ByteBuffer}, delivered on the bluetooth read
+ * thread. While the subscriber has no outstanding demand the read thread waits instead of
+ * reading, the link's buffers fill up and the other device has to slow down. Nothing is
+ * buffered here.
+ *
+ * <p>One subscriber at a time. The subscription completes when the connection ends,
+ * subscribe again for the next one. While subscribed, received data doesn't go to
+ * {@link SmoothBluetooth.Listener#onDataReceived(int)}, typed messages or requests.
+ */
+public final class DataPublisher {
+
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * @param data a copy, owned by the subscriber
+         */
+        void onNext(ByteBuffer data);
+
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * Lets {@code n} more reads through, {@link Long#MAX_VALUE} for no limit.
+         */
+        void request(long n);
+
+        /**
+         * Stops the stream, received data goes the usual way again.
+         */
+        void cancel();
+    }
+
+    // Guarded by this
+    private Sub mSubscription;
+
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        Sub subscription = new Sub(subscriber);
+        boolean rejected;
+        synchronized (this) {
+            rejected = mSubscription != null;
+            if (rejected) {
+                subscription.mmTerminated = true;
+            } else {
+                mSubscription = subscription;
+            }
+        }
+        subscriber.onSubscribe(subscription);
+        if (rejected) {
+            subscriber.onError(new IllegalStateException("Already subscribed"));
+        }
+    }
+
+    public synchronized boolean hasSubscriber() {
+        return mSubscription != null;
+    }
+
+    /**
+     * Hands a read to the subscriber, waiting for demand first. On the read thread.
+     *
+     * @return false if there is no subscriber, then the data goes the usual way
+     */
+    boolean onData(byte[] buffer, int length) {
+        Sub subscription;
+        synchronized (this) {
+            subscription = mSubscription;
+            if (subscription == null) {
+                return false;
+            }
+            // Not reading is what slows the other device down
+            while (subscription.mmDemand == 0 && !subscription.mmTerminated) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (subscription.mmTerminated) {
+                return false;
+            }
+            if (subscription.mmDemand != Long.MAX_VALUE) {
+                subscription.mmDemand--;
+            }
+            subscription.mmDelivering = true;
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, 0, data, 0, length);
+        try {
+            subscription.mmSubscriber.onNext(ByteBuffer.wrap(data));
+        } catch (RuntimeException e) {
+            // A broken subscriber, don't let it take the read thread down
+            subscription.cancel();
+        }
+        boolean terminate;
+        Throwable error;
+        synchronized (this) {
+            subscription.mmDelivering = false;
+            terminate = subscription.mmPendingTerminal;
+            error = subscription.mmError;
+        }
+        if (terminate) {
+            signalTerminal(subscription, error);
+        }
+        return true;
+    }
+
+    /**
+     * The connection ended, completes the subscription.
+     */
+    void onDisconnected() {
+        Sub subscription;
+        synchronized (this) {
+            subscription = mSubscription;
+        }
+        if (subscription != null) {
+            terminate(subscription, null);
+        }
+    }
+
+    // Ends the subscription with onComplete, or onError if error is set. The signal waits
+    // for onNext to return, signals must not overlap.
+    private void terminate(Sub subscription, Throwable error) {
+        synchronized (this) {
+            if (subscription.mmTerminated) {
+                return;
+            }
+            subscription.mmTerminated = true;
+            if (mSubscription == subscription) {
+                mSubscription = null;
+            }
+            notifyAll();
+            if (subscription.mmDelivering) {
+                subscription.mmPendingTerminal = true;
+                subscription.mmError = error;
+                return;
+            }
+        }
+        signalTerminal(subscription, error);
+    }
+
+    private static void signalTerminal(Sub subscription, Throwable error) {
+        if (error != null) {
+            subscription.mmSubscriber.onError(error);
+        } else {
+            subscription.mmSubscriber.onComplete();
+        }
+    }
+
+    private final class Sub implements Subscription {
+        private final Subscriber mmSubscriber;
+        // Guarded by DataPublisher.this
+        private long mmDemand;
+        private boolean mmTerminated;
+        private boolean mmDelivering;
+        private boolean mmPendingTerminal;
+        private Throwable mmError;
+
+        Sub(Subscriber subscriber) {
+            mmSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                terminate(this, new IllegalArgumentException("Request must be positive: " + n));
+                return;
+            }
+            synchronized (DataPublisher.this) {
+                if (mmTerminated) {
+                    return;
+                }
+                mmDemand = mmDemand + n < 0 ? Long.MAX_VALUE : mmDemand + n;
+                DataPublisher.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (DataPublisher.this) {
+                // Nothing is signalled after a cancel
+                mmTerminated = true;
+                mmPendingTerminal = false;
+                if (mSubscription == this) {
+                    mSubscription = null;
+                }
+                DataPublisher.this.notifyAll();
+            }
+        }
+    }
+}
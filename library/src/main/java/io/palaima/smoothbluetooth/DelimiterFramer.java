@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.Arrays;
+
+/**
+ * Cuts a byte stream into frames which end with a delimiter byte, like the {@code >} prompt
+ * of ELM327 adapters. Frames are handed out without the delimiter, in a buffer which is reused
+ * for the next frame. A frame longer than the maximum is dropped, its delimiter is reported
+ * so the frames after it still line up.
+ */
+class DelimiterFramer {
+
+    interface FrameListener {
+        void onFrame(byte[] buffer, int length);
+        // Instead of onFrame() for a frame longer than the maximum
+        void onFrameTooLong();
+    }
+
+    private final int mDelimiter;
+    private final int mMaxLength;
+    private final FrameListener mListener;
+    private byte[] mFrame;
+    private int mLength;
+    private boolean mTooLong;
+
+    DelimiterFramer(int delimiter, int maxLength, FrameListener listener) {
+        if (maxLength < 1) {
+            throw new IllegalArgumentException("Frames must hold at least a byte");
+        }
+        mDelimiter = delimiter & 0xFF;
+        mMaxLength = maxLength;
+        mListener = listener;
+        mFrame = new byte[Math.min(64, maxLength)];
+    }
+
+    void onData(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte data = buffer[i];
+            if ((data & 0xFF) == mDelimiter) {
+                if (mTooLong) {
+                    mListener.onFrameTooLong();
+                } else {
+                    mListener.onFrame(mFrame, mLength);
+                }
+                reset();
+            } else if (mLength == mMaxLength) {
+                mTooLong = true;
+            } else {
+                if (mLength == mFrame.length) {
+                    mFrame = Arrays.copyOf(mFrame, Math.min(mFrame.length * 2, mMaxLength));
+                }
+                mFrame[mLength++] = data;
+            }
+        }
+    }
+
+    void reset() {
+        mLength = 0;
+        mTooLong = false;
+    }
+}
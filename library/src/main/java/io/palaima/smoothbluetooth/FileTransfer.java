@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.File;
+
+/**
+ * A file on its way to or from the other device, see {@link FileTransferChannel}.
+ */
+public final class FileTransfer {
+
+    public interface Listener {
+        /**
+         * Called as chunks are verified, at most every
+         * {@link FileTransferChannel#PROGRESS_INTERVAL_MILLIS} milliseconds.
+         */
+        void onProgress(FileTransfer transfer);
+
+        /**
+         * Sent: the other device verified and stored all of it. Received: the file is in place.
+         */
+        void onComplete(FileTransfer transfer);
+
+        /**
+         * @param error {@link java.util.concurrent.CancellationException} if either side
+         *              cancelled, otherwise what went wrong
+         */
+        void onFailure(FileTransfer transfer, Exception error);
+    }
+
+    private final FileTransferChannel mOwner;
+    final long mId;
+    private final String mName;
+    private final long mLength;
+    private final File mFile;
+    private volatile long mTransferred;
+    // Where this run started, data verified by an earlier run doesn't count for throughput
+    private long mStartOffset = -1;
+    private long mStartNanos;
+    // Last progress report
+    long mReportedNanos;
+    private volatile boolean mDone;
+
+    FileTransfer(FileTransferChannel owner, long id, String name, long length, File file) {
+        mOwner = owner;
+        mId = id;
+        mName = name;
+        mLength = length;
+        mFile = file;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Size in bytes.
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Where a received file is stored, null for a file being sent.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    public boolean isIncoming() {
+        return mFile != null;
+    }
+
+    /**
+     * Bytes the receiving side verified, including what an earlier, interrupted run got across.
+     */
+    public long getBytesTransferred() {
+        return mTransferred;
+    }
+
+    /**
+     * Bytes per second verified since the transfer started or resumed, averaged over that time.
+     */
+    public synchronized double getThroughput() {
+        long elapsed = System.nanoTime() - mStartNanos;
+        if (mStartOffset < 0 || elapsed <= 0) {
+            return 0;
+        }
+        return (mTransferred - mStartOffset) * 1e9 / elapsed;
+    }
+
+    /**
+     * True once completed, failed or cancelled.
+     */
+    public boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Stops the transfer on both sides. A partly received file is deleted.
+     */
+    public void cancel() {
+        mOwner.cancel(this);
+    }
+
+    // Returns false if already done, so the outcome is reported once
+    synchronized boolean finish() {
+        if (mDone) {
+            return false;
+        }
+        mDone = true;
+        return true;
+    }
+
+    synchronized void progress(long transferred) {
+        if (mStartOffset < 0) {
+            mStartOffset = transferred;
+            mStartNanos = System.nanoTime();
+        }
+        mTransferred = transferred;
+    }
+
+    @Override
+    public String toString() {
+        return (isIncoming() ? "Receiving " : "Sending ") + mName + " " + mTransferred + "/"
+                + mLength;
+    }
+}
@@ -0,0 +1,1011 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Sends files to the other device and receives files from it over a {@link Channel}, see
+ * {@link SmoothBluetooth#openFileTransferChannel(int, Receiver, FileTransfer.Listener)}.
+ *
+ * <p>A file goes out in chunks of {@link #setChunkSize(int)} bytes, each checked with CRC-32C,
+ * and up to {@link #setWindow(int)} chunks are on their way before the receiver acknowledges.
+ * A corrupt or missing chunk makes the receiver ask for everything from its last verified
+ * offset again. After a disconnect the sender keeps offering the file, and once connected
+ * again the receiver answers with its verified offset and the transfer goes on from there.
+ *
+ * <p>The receiver writes verified data straight to a {@code .part} file next to the
+ * destination and renames it once complete. A part file left over is resumed from as well,
+ * so a transfer also survives a restart of the app, provided the same file is sent again.
+ * The offer carries the CRC-32C of the whole file, which the receiver keeps in a
+ * {@code .part.id} file next to the part file, and a part file of another file with the same
+ * name is started over. Files sent from a stream can't be read ahead for it, a part file of
+ * theirs is only resumed within the same transfer.
+ */
+public class FileTransferChannel {
+
+    public interface Receiver {
+        /**
+         * Where to store a file the other device offers, null refuses it. Called on the
+         * transfer thread of the channel.
+         */
+        File getDestination(String name, long length);
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    public static final int MAX_CHUNK_SIZE = 256 * 1024;
+    public static final int DEFAULT_WINDOW = 8;
+    public static final long PROGRESS_INTERVAL_MILLIS = 200;
+    // Without word from the receiver for this long, the sender offers the file again
+    static final long RETRY_MILLIS = 3000;
+    // While disconnected, how often the sender tries to offer the file
+    static final long OFFLINE_RETRY_MILLIS = 100;
+    static final String PART_SUFFIX = ".part";
+    // Length and fingerprint of the file a part file belongs to
+    static final String ID_SUFFIX = ".id";
+    static final int ID_LENGTH = 16;
+    // Fingerprint of a file sent from a stream
+    static final long NO_FINGERPRINT = -1;
+
+    // Records, chunks of the channel stream don't keep message boundaries. The header is
+    // magic, type, body length, CRC-32C of the body and a check of the header itself, so a
+    // record cut off by a disconnect can be told from the next one.
+    static final int MAGIC = 0xF17E;
+    static final int HEADER_LENGTH = 13;
+    // id, length, fingerprint, UTF-8 name. The fingerprint is the CRC-32C of the whole file or
+    // NO_FINGERPRINT.
+    static final int TYPE_OFFER = 1;
+    // id, offset verified so far
+    static final int TYPE_ACK = 2;
+    // id, offset to send everything from again
+    static final int TYPE_NACK = 3;
+    // id, offset, data
+    static final int TYPE_CHUNK = 4;
+    // id
+    static final int TYPE_CANCEL = 5;
+    private static final int MAX_BODY_LENGTH = 16 + MAX_CHUNK_SIZE;
+    // Finished transfers remembered, to answer an offer whose last acknowledgement got lost
+    private static final int MAX_COMPLETED = 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Receiver mReceiver;
+    private final FileTransfer.Listener mListener;
+    private final Executor mExecutor;
+    private final Metrics mMetrics;
+    // Handles received records and writes to disk, off the read and main threads
+    private final ExecutorService mIo;
+    private final SecureRandom mRandom = new SecureRandom();
+    private volatile Channel mChannel;
+    private volatile int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile int mWindow = DEFAULT_WINDOW;
+    private volatile boolean mClosed;
+    // Guarded by this
+    private final Map<Long, Sender> mSenders = new HashMap<>();
+
+    // On the io thread only
+    private final Map<Long, Incoming> mIncoming = new HashMap<>();
+    @SuppressWarnings("serial")
+    private final Map<Long, Long> mCompleted = new LinkedHashMap<Long, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_COMPLETED;
+        }
+    };
+    private byte[] mRecord = new byte[256];
+    private int mRecordLength;
+    private boolean mNewConnection;
+
+    FileTransferChannel(Receiver receiver, FileTransfer.Listener listener, Executor executor,
+            Metrics metrics) {
+        mReceiver = receiver;
+        mListener = listener;
+        mExecutor = executor;
+        mMetrics = metrics;
+        mIo = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FileTransferChannel");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // The channel listener runs on the io thread
+    void attach(Channel channel) {
+        mChannel = channel;
+    }
+
+    Channel.Listener channelListener() {
+        return new Channel.Listener() {
+            @Override
+            public void onDataReceived(Channel channel, byte[] data) {
+                onData(data);
+            }
+        };
+    }
+
+    Executor ioExecutor() {
+        return mIo;
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Bytes per chunk for transfers started from now on, 16 KB by default.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size out of range: " + chunkSize);
+        }
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Chunks sent ahead of the receiver's acknowledgement for transfers started from now on,
+     * 8 by default.
+     */
+    public void setWindow(int chunks) {
+        if (chunks < 1) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        mWindow = chunks;
+    }
+
+    public FileTransfer send(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        return send(in.getChannel(), file.getName());
+    }
+
+    /**
+     * Sends the file, which the other device learns by {@code name}. Runs on a thread of its
+     * own, the channel is closed when done.
+     */
+    public FileTransfer send(FileChannel file, String name) throws IOException {
+        return start(new FileSource(file), name, file.size());
+    }
+
+    /**
+     * Sends {@code length} bytes of the stream, which is closed when done. A stream can't go
+     * back, so if the receiver lost data it already acknowledged the transfer fails.
+     */
+    public FileTransfer send(InputStream in, String name, long length) {
+        return start(new StreamSource(in), name, length);
+    }
+
+    private FileTransfer start(Source source, String name, long length) {
+        if (mClosed) {
+            source.close();
+            throw new IllegalStateException("Channel closed");
+        }
+        Sender sender;
+        synchronized (this) {
+            long id;
+            do {
+                id = mRandom.nextLong();
+            } while (id == 0 || mSenders.containsKey(id));
+            FileTransfer transfer = new FileTransfer(this, id, name, length, null);
+            sender = new Sender(transfer, source, mChunkSize, (long) mWindow * mChunkSize);
+            mSenders.put(id, sender);
+        }
+        sender.start();
+        return sender.mmTransfer;
+    }
+
+    /**
+     * Stops sending and receiving. Transfers in progress fail with a
+     * {@link CancellationException}, without telling the other device, so partly received
+     * files are kept and can be resumed later.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        Channel channel = mChannel;
+        if (channel != null) {
+            channel.close();
+        }
+        List<Sender> senders;
+        synchronized (this) {
+            senders = new ArrayList<>(mSenders.values());
+        }
+        for (Sender sender : senders) {
+            sender.cancel(false);
+        }
+        mIo.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Iterator<Incoming> it = mIncoming.values().iterator(); it.hasNext(); ) {
+                    Incoming incoming = it.next();
+                    it.remove();
+                    incoming.close();
+                    fail(incoming.mmTransfer, new CancellationException("Channel closed"));
+                }
+            }
+        });
+        mIo.shutdown();
+    }
+
+    // A new connection, called on the bluetooth thread
+    void onConnected() {
+        List<Sender> senders;
+        synchronized (this) {
+            senders = new ArrayList<>(mSenders.values());
+        }
+        for (Sender sender : senders) {
+            sender.onConnected();
+        }
+        try {
+            mIo.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mNewConnection = true;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    void cancel(final FileTransfer transfer) {
+        if (!transfer.isIncoming()) {
+            Sender sender;
+            synchronized (this) {
+                sender = mSenders.get(transfer.mId);
+            }
+            if (sender != null) {
+                sender.cancel(true);
+            }
+            return;
+        }
+        try {
+            mIo.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Incoming incoming = mIncoming.remove(transfer.mId);
+                    if (incoming != null) {
+                        incoming.delete();
+                        sendControl(TYPE_CANCEL, transfer.mId, 0);
+                        fail(transfer, new CancellationException("Cancelled"));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed, the transfer failed already
+        }
+    }
+
+    private boolean send(byte[] record, int length) {
+        Channel channel = mChannel;
+        // Not urgent, a record must not be split by another one on the same channel
+        return channel != null && channel.send(record, 0, length, false);
+    }
+
+    private boolean sendControl(int type, long id, long offset) {
+        byte[] record = new byte[HEADER_LENGTH + 16];
+        ReliableSession.putLong(record, HEADER_LENGTH, id);
+        ReliableSession.putLong(record, HEADER_LENGTH + 8, offset);
+        seal(record, type, 16);
+        return send(record, record.length);
+    }
+
+    // Fills in the header of a record whose body is in place
+    static void seal(byte[] record, int type, int bodyLength) {
+        record[0] = (byte) (MAGIC >> 8);
+        record[1] = (byte) MAGIC;
+        record[2] = (byte) type;
+        PeerLink.putInt(record, 3, bodyLength);
+        PeerLink.putInt(record, 7, Crc32c.compute(record, HEADER_LENGTH, bodyLength));
+        int check = Crc32c.compute(record, 0, HEADER_LENGTH - 2);
+        record[11] = (byte) (check >> 8);
+        record[12] = (byte) check;
+    }
+
+    // Body length of the record starting at offset, -1 if there is no valid header
+    static int checkHeader(byte[] buffer, int offset) {
+        if ((buffer[offset] & 0xFF) != MAGIC >> 8 || (buffer[offset + 1] & 0xFF) != (MAGIC & 0xFF)) {
+            return -1;
+        }
+        int check = Crc32c.compute(buffer, offset, HEADER_LENGTH - 2);
+        if (buffer[offset + 11] != (byte) (check >> 8) || buffer[offset + 12] != (byte) check) {
+            return -1;
+        }
+        int length = PeerLink.getInt(buffer, offset + 3);
+        return length >= 0 && length <= MAX_BODY_LENGTH ? length : -1;
+    }
+
+    // On the io thread
+    private void onData(byte[] data) {
+        if (mNewConnection) {
+            mNewConnection = false;
+            // Unless reliable delivery resumed the stream, the rest of a record cut off by the
+            // disconnect never comes and the new connection starts with a record of its own
+            if (mRecordLength > 0 && data.length >= HEADER_LENGTH && checkHeader(data, 0) >= 0) {
+                mRecordLength = 0;
+            }
+        }
+        if (mRecord.length < mRecordLength + data.length) {
+            byte[] record = new byte[Math.max(mRecord.length * 2, mRecordLength + data.length)];
+            System.arraycopy(mRecord, 0, record, 0, mRecordLength);
+            mRecord = record;
+        }
+        System.arraycopy(data, 0, mRecord, mRecordLength, data.length);
+        mRecordLength += data.length;
+
+        int position = 0;
+        while (mRecordLength - position >= HEADER_LENGTH) {
+            int length = checkHeader(mRecord, position);
+            if (length < 0) {
+                // Out of step, look for the next record
+                position++;
+                continue;
+            }
+            if (mRecordLength - position < HEADER_LENGTH + length) {
+                break;
+            }
+            int body = position + HEADER_LENGTH;
+            if (Crc32c.compute(mRecord, body, length) == PeerLink.getInt(mRecord, position + 7)) {
+                onRecord(mRecord[position + 2], mRecord, body, length);
+            } else {
+                mMetrics.fileRecordsRejected.increment();
+            }
+            position = body + length;
+        }
+        System.arraycopy(mRecord, position, mRecord, 0, mRecordLength - position);
+        mRecordLength -= position;
+    }
+
+    private void onRecord(int type, byte[] buffer, int offset, int length) {
+        if (length < (type == TYPE_CANCEL ? 8 : type == TYPE_OFFER ? 24 : 16)) {
+            return;
+        }
+        long id = ReliableSession.getLong(buffer, offset);
+        long value = type != TYPE_CANCEL ? ReliableSession.getLong(buffer, offset + 8) : 0;
+        switch (type) {
+            case TYPE_OFFER:
+                onOffer(id, value, ReliableSession.getLong(buffer, offset + 16),
+                        new String(buffer, offset + 24, length - 24, UTF_8));
+                break;
+            case TYPE_CHUNK:
+                onChunk(id, value, buffer, offset + 16, length - 16);
+                break;
+            case TYPE_ACK:
+            case TYPE_NACK:
+                Sender sender;
+                synchronized (this) {
+                    sender = mSenders.get(id);
+                }
+                if (sender != null) {
+                    sender.onAnswer(value, type == TYPE_NACK);
+                }
+                break;
+            case TYPE_CANCEL:
+                onCancel(id);
+                break;
+        }
+    }
+
+    private void onOffer(long id, long length, long fingerprint, String name) {
+        Long completed = mCompleted.get(id);
+        if (completed != null) {
+            sendControl(TYPE_ACK, id, completed);
+            return;
+        }
+        Incoming incoming = mIncoming.get(id);
+        if (incoming == null) {
+            File destination = mReceiver.getDestination(name, length);
+            if (destination == null || length < 0) {
+                sendControl(TYPE_CANCEL, id, 0);
+                return;
+            }
+            FileTransfer transfer = new FileTransfer(this, id, name, length, destination);
+            File part = new File(destination.getPath() + PART_SUFFIX);
+            // The sender started over, with a new id
+            for (Iterator<Incoming> it = mIncoming.values().iterator(); it.hasNext(); ) {
+                Incoming previous = it.next();
+                if (previous.mmPart.equals(part)) {
+                    it.remove();
+                    previous.close();
+                    fail(previous.mmTransfer, new CancellationException("Sent again"));
+                }
+            }
+            try {
+                incoming = new Incoming(transfer, part, fingerprint);
+            } catch (IOException e) {
+                sendControl(TYPE_CANCEL, id, 0);
+                fail(transfer, e);
+                return;
+            }
+            mIncoming.put(id, incoming);
+        }
+        incoming.mmNacked = false;
+        sendControl(TYPE_ACK, id, incoming.mmVerified);
+        if (incoming.mmVerified == length) {
+            complete(incoming);
+        } else {
+            progress(incoming.mmTransfer, incoming.mmVerified);
+        }
+    }
+
+    private void onChunk(long id, long offset, byte[] buffer, int start, int length) {
+        Incoming incoming = mIncoming.get(id);
+        if (incoming == null) {
+            return;
+        }
+        if (offset <= incoming.mmLastOffset) {
+            // The sender went back, if the chunk it went back for is lost again, ask again
+            incoming.mmNacked = false;
+        }
+        incoming.mmLastOffset = offset;
+        if (offset != incoming.mmVerified) {
+            // Something before it got lost or was corrupt, ask for all of it once. Data
+            // verified already comes again after a resume and is dropped.
+            if (offset > incoming.mmVerified && !incoming.mmNacked) {
+                incoming.mmNacked = true;
+                sendControl(TYPE_NACK, id, incoming.mmVerified);
+            }
+            return;
+        }
+        try {
+            if (length > incoming.mmTransfer.getLength() - offset) {
+                throw new IOException("Chunk past the end of " + incoming.mmTransfer.getName());
+            }
+            incoming.mmFile.write(buffer, start, length);
+        } catch (IOException e) {
+            mIncoming.remove(id);
+            incoming.delete();
+            sendControl(TYPE_CANCEL, id, 0);
+            fail(incoming.mmTransfer, e);
+            return;
+        }
+        incoming.mmVerified += length;
+        incoming.mmNacked = false;
+        sendControl(TYPE_ACK, id, incoming.mmVerified);
+        if (incoming.mmVerified == incoming.mmTransfer.getLength()) {
+            complete(incoming);
+        } else {
+            progress(incoming.mmTransfer, incoming.mmVerified);
+        }
+    }
+
+    private void onCancel(long id) {
+        Incoming incoming = mIncoming.remove(id);
+        if (incoming != null) {
+            incoming.delete();
+            fail(incoming.mmTransfer, new CancellationException("Cancelled by the other device"));
+        }
+        Sender sender;
+        synchronized (this) {
+            sender = mSenders.get(id);
+        }
+        if (sender != null) {
+            sender.onPeerCancel();
+        }
+    }
+
+    private void complete(Incoming incoming) {
+        FileTransfer transfer = incoming.mmTransfer;
+        mIncoming.remove(transfer.mId);
+        mCompleted.put(transfer.mId, transfer.getLength());
+        transfer.progress(transfer.getLength());
+        try {
+            incoming.mmFile.close();
+            File destination = transfer.getFile();
+            if (destination.exists() && !destination.delete()
+                    || !incoming.mmPart.renameTo(destination)) {
+                throw new IOException("Can't rename " + incoming.mmPart + " to " + destination);
+            }
+            incoming.mmIdFile.delete();
+        } catch (IOException e) {
+            fail(transfer, e);
+            return;
+        }
+        complete(transfer);
+    }
+
+    private void progress(final FileTransfer transfer, long transferred) {
+        transfer.progress(transferred);
+        long now = System.nanoTime();
+        synchronized (transfer) {
+            if (transfer.mReportedNanos != 0
+                    && now - transfer.mReportedNanos < PROGRESS_INTERVAL_MILLIS * 1000000) {
+                return;
+            }
+            transfer.mReportedNanos = now;
+        }
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onProgress(transfer);
+            }
+        });
+    }
+
+    private void complete(final FileTransfer transfer) {
+        if (transfer.finish()) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onComplete(transfer);
+                }
+            });
+        }
+    }
+
+    private void fail(final FileTransfer transfer, final Exception error) {
+        if (transfer.finish()) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onFailure(transfer, error);
+                }
+            });
+        }
+    }
+
+    private void dispatch(Runnable runnable) {
+        if (mExecutor == null) {
+            runnable.run();
+        } else {
+            mExecutor.execute(runnable);
+        }
+    }
+
+    // A file being received, on the io thread only
+    private static final class Incoming {
+        final FileTransfer mmTransfer;
+        final File mmPart;
+        final File mmIdFile;
+        final RandomAccessFile mmFile;
+        long mmVerified;
+        // A NACK is out, later chunks are dropped until the sender went back
+        boolean mmNacked;
+        long mmLastOffset = -1;
+
+        Incoming(FileTransfer transfer, File part, long fingerprint) throws IOException {
+            mmTransfer = transfer;
+            mmPart = part;
+            mmIdFile = new File(part.getPath() + ID_SUFFIX);
+            mmFile = new RandomAccessFile(part, "rw");
+            byte[] id = new byte[ID_LENGTH];
+            ReliableSession.putLong(id, 0, transfer.getLength());
+            ReliableSession.putLong(id, 8, fingerprint);
+            // Everything in a part file was verified before it was written, but it may be
+            // part of another file of the same name
+            if (fingerprint != NO_FINGERPRINT && Arrays.equals(id, readId(mmIdFile))) {
+                mmVerified = Math.min(mmFile.length(), transfer.getLength());
+            }
+            mmFile.setLength(mmVerified);
+            mmFile.seek(mmVerified);
+            if (mmVerified == 0) {
+                // Truncated first, so the part file never has data of another file
+                if (fingerprint != NO_FINGERPRINT) {
+                    writeId(mmIdFile, id);
+                } else {
+                    mmIdFile.delete();
+                }
+            }
+        }
+
+        private static byte[] readId(File file) {
+            if (file.length() != ID_LENGTH) {
+                return null;
+            }
+            byte[] id = new byte[ID_LENGTH];
+            try {
+                RandomAccessFile in = new RandomAccessFile(file, "r");
+                try {
+                    in.readFully(id);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+            return id;
+        }
+
+        private static void writeId(File file, byte[] id) throws IOException {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                out.setLength(0);
+                out.write(id);
+            } finally {
+                out.close();
+            }
+        }
+
+        void close() {
+            try {
+                mmFile.close();
+            } catch (IOException e) { }
+        }
+
+        void delete() {
+            close();
+            mmPart.delete();
+            mmIdFile.delete();
+        }
+    }
+
+    // Sends one file, waiting for the receiver's acknowledgements
+    private final class Sender extends Thread {
+        private final FileTransfer mmTransfer;
+        private final Source mmSource;
+        private final int mmChunkSize;
+        private final long mmWindowBytes;
+        // Guarded by this
+        private long mmAcked;
+        private long mmRewind = -1;
+        private boolean mmAnswered;
+        private boolean mmCancelled;
+        // Tell the receiver about the cancel, not done when closing
+        private boolean mmNotifyPeer;
+        private boolean mmPeerCancelled;
+        // What was in flight may be gone, the receiver has to say where to go on from
+        private boolean mmReconnected;
+        // Sender thread only, how far chunks went out
+        private long mmSent;
+
+        Sender(FileTransfer transfer, Source source, int chunkSize, long windowBytes) {
+            mmTransfer = transfer;
+            mmSource = source;
+            mmChunkSize = chunkSize;
+            mmWindowBytes = windowBytes;
+            setName("FileTransfer");
+            setDaemon(true);
+        }
+
+        public void run() {
+            Exception error = null;
+            try {
+                transfer();
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                mmSource.close();
+                synchronized (FileTransferChannel.this) {
+                    mSenders.remove(mmTransfer.mId);
+                }
+            }
+            if (error == null) {
+                complete(mmTransfer);
+                return;
+            }
+            boolean notifyPeer;
+            synchronized (this) {
+                notifyPeer = mmCancelled && mmNotifyPeer;
+            }
+            if (notifyPeer) {
+                sendControl(TYPE_CANCEL, mmTransfer.mId, 0);
+            }
+            fail(mmTransfer, error);
+        }
+
+        private void transfer() throws IOException, InterruptedException {
+            long length = mmTransfer.getLength();
+            byte[] name = mmTransfer.getName().getBytes(UTF_8);
+            byte[] offer = new byte[HEADER_LENGTH + 24 + name.length];
+            ReliableSession.putLong(offer, HEADER_LENGTH, mmTransfer.mId);
+            ReliableSession.putLong(offer, HEADER_LENGTH + 8, length);
+            ReliableSession.putLong(offer, HEADER_LENGTH + 16, mmSource.fingerprint(length));
+            System.arraycopy(name, 0, offer, HEADER_LENGTH + 24, name.length);
+            seal(offer, TYPE_OFFER, 24 + name.length);
+            byte[] chunk = new byte[HEADER_LENGTH + 16 + mmChunkSize];
+            ReliableSession.putLong(chunk, HEADER_LENGTH, mmTransfer.mId);
+            while (true) {
+                // The receiver answers with where to go on from, again after each disconnect
+                synchronized (this) {
+                    mmAnswered = false;
+                    mmReconnected = false;
+                }
+                boolean offered = send(offer, offer.length);
+                if (awaitAnswer(offered ? RETRY_MILLIS : OFFLINE_RETRY_MILLIS)
+                        && pump(chunk, length)) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized boolean awaitAnswer(long millis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + millis;
+            long now;
+            while (!mmAnswered && !mmReconnected
+                    && (now = System.currentTimeMillis()) < deadline) {
+                checkCancelled();
+                wait(deadline - now);
+            }
+            checkCancelled();
+            mmRewind = -1;
+            return mmAnswered;
+        }
+
+        // Sends chunks as the window allows. Returns true once the receiver verified all of
+        // it, false if it went silent and the file has to be offered again.
+        private boolean pump(byte[] chunk, long length) throws IOException, InterruptedException {
+            long sent;
+            long acked;
+            synchronized (this) {
+                sent = mmAcked;
+            }
+            if (mmSent > sent) {
+                // Lost with the connection, or the receiver dropped it
+                mMetrics.fileBytesResent.add(mmSent - sent);
+            }
+            long lastAcked = -1;
+            long lastAckMillis = 0;
+            while (true) {
+                synchronized (this) {
+                    while (true) {
+                        checkCancelled();
+                        if (mmReconnected) {
+                            return false;
+                        }
+                        if (mmRewind >= 0) {
+                            if (sent > mmRewind) {
+                                mMetrics.fileBytesResent.add(sent - mmRewind);
+                            }
+                            sent = mmRewind;
+                            mmSent = sent;
+                            mmRewind = -1;
+                        }
+                        acked = mmAcked;
+                        if (acked == length) {
+                            return true;
+                        }
+                        // The receiver may have more than we know, after a resume
+                        sent = Math.max(sent, acked);
+                        long now = System.currentTimeMillis();
+                        if (acked != lastAcked) {
+                            lastAcked = acked;
+                            lastAckMillis = now;
+                        }
+                        if (sent < length && sent - acked < mmWindowBytes) {
+                            break;
+                        }
+                        if (now - lastAckMillis >= RETRY_MILLIS) {
+                            return false;
+                        }
+                        wait(lastAckMillis + RETRY_MILLIS - now);
+                    }
+                }
+                mmSource.release(acked);
+                int count = (int) Math.min(mmChunkSize, length - sent);
+                int offset = HEADER_LENGTH + 16;
+                for (int n = 0; n < count; ) {
+                    int read = mmSource.read(sent + n, chunk, offset + n, count - n);
+                    if (read < 0) {
+                        throw new IOException(mmTransfer.getName() + " ended early");
+                    }
+                    n += read;
+                }
+                ReliableSession.putLong(chunk, HEADER_LENGTH + 8, sent);
+                seal(chunk, TYPE_CHUNK, 16 + count);
+                if (!send(chunk, offset + count)) {
+                    // Disconnected
+                    return false;
+                }
+                sent += count;
+                mmSent = sent;
+            }
+        }
+
+        private void checkCancelled() {
+            if (mmPeerCancelled) {
+                throw new CancellationException("Cancelled by the other device");
+            }
+            if (mmCancelled) {
+                throw new CancellationException("Cancelled");
+            }
+        }
+
+        // On the io thread
+        void onAnswer(long offset, boolean nack) {
+            if (offset < 0 || offset > mmTransfer.getLength()) {
+                return;
+            }
+            // Before the sender can see it complete
+            progress(mmTransfer, offset);
+            synchronized (this) {
+                // Acknowledgements only grow on a connection, an answer to an offer may
+                // go back if the receiver lost data
+                mmAcked = offset;
+                mmAnswered = true;
+                if (nack) {
+                    mmRewind = offset;
+                }
+                notifyAll();
+            }
+        }
+
+        synchronized void onConnected() {
+            mmReconnected = true;
+            notifyAll();
+        }
+
+        synchronized void onPeerCancel() {
+            mmPeerCancelled = true;
+            notifyAll();
+        }
+
+        synchronized void cancel(boolean notifyPeer) {
+            mmCancelled = true;
+            mmNotifyPeer = notifyPeer;
+            notifyAll();
+        }
+    }
+
+    // Where a sender reads the file from
+    interface Source {
+        /**
+         * Reads up to {@code length} bytes at {@code position}, returns the count or -1 at
+         * the end.
+         */
+        int read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+        /**
+         * Data before {@code position} is verified, it is not read again.
+         */
+        void release(long position);
+
+        /**
+         * CRC-32C of the first {@code length} bytes, or {@link #NO_FINGERPRINT} if they can't
+         * be read ahead.
+         */
+        long fingerprint(long length) throws IOException;
+
+        void close();
+    }
+
+    static final class FileSource implements Source {
+        private final FileChannel mFile;
+
+        FileSource(FileChannel file) {
+            mFile = file;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            return mFile.read(ByteBuffer.wrap(buffer, offset, length), position);
+        }
+
+        @Override
+        public void release(long position) {
+        }
+
+        @Override
+        public long fingerprint(long length) throws IOException {
+            Crc32c crc = new Crc32c();
+            byte[] buffer = new byte[DEFAULT_CHUNK_SIZE];
+            for (long position = 0; position < length; ) {
+                int read = read(position, buffer, 0, (int) Math.min(buffer.length,
+                        length - position));
+                if (read < 0) {
+                    throw new IOException("File ended early");
+                }
+                crc.update(buffer, 0, read);
+                position += read;
+            }
+            return crc.getValue();
+        }
+
+        @Override
+        public void close() {
+            try {
+                mFile.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    // Keeps what was read but not verified yet, so the sender can go back within the window
+    static final class StreamSource implements Source {
+        private final InputStream mIn;
+        private byte[] mBuffer = new byte[DEFAULT_CHUNK_SIZE];
+        // Stream offset of mBuffer[0]
+        private long mBase;
+        private int mFilled;
+
+        StreamSource(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            if (position < mBase) {
+                throw new IOException("Can't go back to " + position + " in a stream");
+            }
+            if (position > mBase + mFilled) {
+                // The receiver has this part already
+                long skip = position - mBase - mFilled;
+                mBase += mFilled;
+                mFilled = 0;
+                while (skip > 0) {
+                    int read = mIn.read(mBuffer, 0, (int) Math.min(skip, mBuffer.length));
+                    if (read < 0) {
+                        return -1;
+                    }
+                    skip -= read;
+                    mBase += read;
+                }
+            }
+            int start = (int) (position - mBase);
+            if (mBuffer.length < start + length) {
+                byte[] grown = new byte[Math.max(mBuffer.length * 2, start + length)];
+                System.arraycopy(mBuffer, 0, grown, 0, mFilled);
+                mBuffer = grown;
+            }
+            while (mFilled < start + length) {
+                int read = mIn.read(mBuffer, mFilled, start + length - mFilled);
+                if (read < 0) {
+                    break;
+                }
+                mFilled += read;
+            }
+            int count = Math.min(length, mFilled - start);
+            if (count <= 0) {
+                return -1;
+            }
+            System.arraycopy(mBuffer, start, buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public void release(long position) {
+            int drop = (int) Math.min(position - mBase, mFilled);
+            if (drop > 0) {
+                System.arraycopy(mBuffer, drop, mBuffer, 0, mFilled - drop);
+                mBase += drop;
+                mFilled -= drop;
+            }
+        }
+
+        @Override
+        public long fingerprint(long length) {
+            return NO_FINGERPRINT;
+        }
+
+        @Override
+        public void close() {
+            try {
+                mIn.close();
+            } catch (IOException e) { }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Received data as a blocking stream, see {@link SmoothBluetooth#openInputStream()}. Usable as
+ * an {@link InputStream} or a {@link ReadableByteChannel}.
+ *
+ * <p>Reads copy straight out of the buffer the bluetooth read thread read into, which waits
+ * until the stream drained it before it reads from the link again. There is no pipe buffer in
+ * between, and a slow reader holds the other device back. The end of the connection is the
+ * end of the stream.
+ */
+public final class LinkInputStream extends InputStream implements ReadableByteChannel {
+
+    private final Runnable mOnClose;
+    // Guarded by this. Lent by the read thread, or a copy of the rest after a disconnect.
+    private byte[] mBuffer;
+    private int mPosition;
+    private int mLimit;
+    private boolean mEnd;
+    private boolean mClosed;
+
+    LinkInputStream(Runnable onClose) {
+        mOnClose = onClose;
+    }
+
+    /**
+     * Lends the read buffer to the stream and waits until all of it was read. On the read
+     * thread.
+     *
+     * @return false if the stream is closed or ended, then the data goes the usual way
+     */
+    synchronized boolean offer(byte[] buffer, int length) {
+        // What's left of an earlier read, if the read thread was interrupted
+        while (mPosition < mLimit && !mClosed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (mClosed || mEnd) {
+            return false;
+        }
+        mBuffer = buffer;
+        mPosition = 0;
+        mLimit = length;
+        notifyAll();
+        while (mPosition < mLimit && mBuffer == buffer && !mClosed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                keepRest();
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The connection ended, the stream ends once what was received is read.
+     */
+    synchronized void onDisconnected() {
+        keepRest();
+        mEnd = true;
+        notifyAll();
+    }
+
+    // The read thread gets its buffer back, whatever is unread moves to a copy
+    private void keepRest() {
+        if (mPosition < mLimit) {
+            byte[] rest = new byte[mLimit - mPosition];
+            System.arraycopy(mBuffer, mPosition, rest, 0, rest.length);
+            mBuffer = rest;
+            mPosition = 0;
+            mLimit = rest.length;
+        }
+        notifyAll();
+    }
+
+    // Waits for data, returns false at the end of the stream
+    private boolean await() throws IOException {
+        while (mPosition == mLimit) {
+            if (mClosed) {
+                throw new IOException("Stream closed");
+            }
+            if (mEnd) {
+                return false;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!await()) {
+            return -1;
+        }
+        int b = mBuffer[mPosition++] & 0xFF;
+        if (mPosition == mLimit) {
+            notifyAll();
+        }
+        return b;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!await()) {
+            return -1;
+        }
+        int count = Math.min(len, mLimit - mPosition);
+        System.arraycopy(mBuffer, mPosition, b, off, count);
+        mPosition += count;
+        if (mPosition == mLimit) {
+            notifyAll();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (mClosed) {
+            throw new ClosedChannelException();
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (!await()) {
+            return -1;
+        }
+        int count = Math.min(dst.remaining(), mLimit - mPosition);
+        dst.put(mBuffer, mPosition, count);
+        mPosition += count;
+        if (mPosition == mLimit) {
+            notifyAll();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        return mLimit - mPosition;
+    }
+
+    @Override
+    public boolean isOpen() {
+        synchronized (this) {
+            return !mClosed;
+        }
+    }
+
+    /**
+     * Unread data is dropped, what arrives from now on goes the usual way again.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mPosition = mLimit;
+            notifyAll();
+        }
+        mOnClose.run();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes a connection at a fixed interval and declares it dead once {@code maxMissed} probes
+ * in a row went unanswered, so a link which went silent is dropped at most
+ * {@code maxMissed + 1} intervals later instead of whenever the socket gives up. A probe is
+ * answered by the matching pong of the built-in ping, or by any data received after it for
+ * probes of the app's own.
+ *
+ * <p>Answers are only seen when the read thread reads. While it is in the app's callback, which
+ * may hold it for as long as the app likes to apply backpressure, the monitor is paused: a tick
+ * which finds the read thread there, or finds it went there since the last tick, counts no
+ * miss. Data came in, so the link was alive, and the answer may be waiting unread behind it.
+ * A link which dies while the app holds the read thread is noticed once the app lets go.
+ */
+final class LinkMonitor {
+
+    interface Probe {
+        /**
+         * Sends a probe, returns false if this link can't carry one.
+         */
+        boolean send(long nonce);
+    }
+
+    private static final ScheduledThreadPoolExecutor TIMER =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LinkMonitor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        // No thread is kept around while no link is monitored
+        TIMER.setKeepAliveTime(1, TimeUnit.SECONDS);
+        TIMER.allowCoreThreadTimeOut(true);
+    }
+
+    private final long mIntervalMillis;
+    private final int mMaxMissed;
+    private final Probe mProbe;
+    private final Runnable mOnDead;
+    private final Metrics mMetrics;
+
+    // Guarded by this
+    private ScheduledFuture<?> mTask;
+    private boolean mStopped;
+    private long mNonce;
+    private int mMissed;
+    private long mSentNanos;
+    private long mLastPauses;
+    // Nonce of the probe waiting for its answer, -1 if none
+    private volatile long mOutstanding = -1;
+    // Written by the read thread only
+    private volatile boolean mPaused;
+    private volatile long mPauses;
+
+    LinkMonitor(long intervalMillis, int maxMissed, Probe probe, Runnable onDead,
+            Metrics metrics) {
+        mIntervalMillis = intervalMillis;
+        mMaxMissed = maxMissed;
+        mProbe = probe;
+        mOnDead = onDead;
+        mMetrics = metrics;
+    }
+
+    synchronized void start() {
+        if (mStopped || mTask != null) {
+            return;
+        }
+        mTask = TIMER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, mIntervalMillis, mIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        mStopped = true;
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    /**
+     * A pong came back, on the read thread.
+     */
+    void onAnswer(long nonce) {
+        if (mOutstanding == nonce) {
+            answered(nonce);
+        }
+    }
+
+    /**
+     * Data came in, on the read thread. Answers a probe of the app's own.
+     */
+    void onData() {
+        long outstanding = mOutstanding;
+        if (outstanding >= 0) {
+            answered(outstanding);
+        }
+    }
+
+    /**
+     * The read thread goes into the app's callback.
+     */
+    void pause() {
+        mPaused = true;
+        mPauses++;
+    }
+
+    /**
+     * The read thread is back from the app's callback.
+     */
+    void resume() {
+        mPaused = false;
+    }
+
+    private synchronized void answered(long nonce) {
+        if (mOutstanding != nonce) {
+            return;
+        }
+        mOutstanding = -1;
+        mMissed = 0;
+        mMetrics.linkRoundTrip.record((System.nanoTime() - mSentNanos) / 1000);
+    }
+
+    private void tick() {
+        long nonce;
+        boolean dead = false;
+        synchronized (this) {
+            if (mStopped) {
+                return;
+            }
+            long pauses = mPauses;
+            if (mPaused || pauses != mLastPauses) {
+                // Busy with data or held back by the app, the answer may not have been read
+                mLastPauses = pauses;
+                mOutstanding = -1;
+                return;
+            }
+            if (mOutstanding >= 0) {
+                mOutstanding = -1;
+                mMetrics.linkProbesMissed.increment();
+                dead = ++mMissed >= mMaxMissed;
+            }
+            if (dead) {
+                mMetrics.linkDead.increment();
+                stop();
+            }
+            nonce = mNonce++;
+            mSentNanos = System.nanoTime();
+            mOutstanding = dead ? -1 : nonce;
+        }
+        if (dead) {
+            // Outside the lock, closing the link calls back into stop()
+            mOnDead.run();
+            return;
+        }
+        if (!mProbe.send(nonce)) {
+            // No way to probe this link, e.g. the peer has no built-in ping
+            synchronized (this) {
+                if (mOutstanding == nonce) {
+                    mOutstanding = -1;
+                }
+            }
+        }
+    }
+}
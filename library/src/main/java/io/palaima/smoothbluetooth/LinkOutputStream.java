@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Sends to the connected device as a stream, see {@link SmoothBluetooth#openOutputStream()}.
+ * Usable as an {@link OutputStream} or a {@link WritableByteChannel}.
+ *
+ * <p>Written data is copied once and queued like {@link SmoothBluetooth#send(byte[])}, a write
+ * blocks while the queue is full. {@link #flush()} doesn't wait for the data to go out. Once
+ * the connection the stream was opened for ended, writes fail with an {@link IOException}.
+ */
+public final class LinkOutputStream extends OutputStream implements WritableByteChannel {
+
+    interface Writer {
+        /**
+         * Takes over the array. Returns false if the connection is gone.
+         */
+        boolean write(byte[] data, int offset, int length);
+    }
+
+    private final Writer mWriter;
+    private volatile boolean mClosed;
+
+    LinkOutputStream(Writer writer) {
+        mWriter = writer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return;
+        }
+        byte[] data = new byte[len];
+        System.arraycopy(b, off, data, 0, len);
+        send(data);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (mClosed) {
+            throw new ClosedChannelException();
+        }
+        int count = src.remaining();
+        if (count == 0) {
+            return 0;
+        }
+        byte[] data = new byte[count];
+        src.get(data);
+        send(data);
+        return count;
+    }
+
+    private void send(byte[] data) throws IOException {
+        if (!mWriter.write(data, 0, data.length)) {
+            throw new IOException("Not connected");
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !mClosed;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.List;
+
+import io.palaima.smoothbluetooth.SmoothBluetooth.ConnectionCallback;
+import io.palaima.smoothbluetooth.SmoothBluetooth.Listener;
+
+/**
+ * The listeners of a {@link SmoothBluetooth}, each with the events it subscribed to. Adding
+ * and removing copies the array and can happen on any thread, dispatch reads the current array
+ * without locking or allocating.
+ */
+final class ListenerRegistry implements Listener {
+
+    private static final Entry[] EMPTY = new Entry[0];
+
+    private static final class Entry {
+        final Listener mmListener;
+        final int mmEvents;
+
+        Entry(Listener listener, int events) {
+            mmListener = listener;
+            mmEvents = events;
+        }
+    }
+
+    private volatile Entry[] mEntries = EMPTY;
+
+    /**
+     * Adds the listener, or changes the events of one added before.
+     */
+    synchronized void add(Listener listener, int events) {
+        Entry[] entries = mEntries;
+        int index = indexOf(entries, listener);
+        Entry[] copy;
+        if (index >= 0) {
+            copy = entries.clone();
+        } else {
+            copy = new Entry[entries.length + 1];
+            System.arraycopy(entries, 0, copy, 0, entries.length);
+            index = entries.length;
+        }
+        copy[index] = new Entry(listener, events);
+        mEntries = copy;
+    }
+
+    synchronized boolean remove(Listener listener) {
+        Entry[] entries = mEntries;
+        int index = indexOf(entries, listener);
+        if (index < 0) {
+            return false;
+        }
+        if (entries.length == 1) {
+            mEntries = EMPTY;
+        } else {
+            Entry[] copy = new Entry[entries.length - 1];
+            System.arraycopy(entries, 0, copy, 0, index);
+            System.arraycopy(entries, index + 1, copy, index, copy.length - index);
+            mEntries = copy;
+        }
+        return true;
+    }
+
+    /**
+     * Whether any listener subscribed to one of the events.
+     */
+    boolean has(int events) {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & events) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(Entry[] entries, Listener listener) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].mmListener == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void onBluetoothNotSupported() {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & SmoothBluetooth.EVENT_AVAILABILITY) != 0) {
+                entry.mmListener.onBluetoothNotSupported();
+            }
+        }
+    }
+
+    @Override
+    public void onBluetoothNotEnabled() {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & SmoothBluetooth.EVENT_AVAILABILITY) != 0) {
+                entry.mmListener.onBluetoothNotEnabled();
+            }
+        }
+    }
+
+    @Override
+    public void onConnecting(Device device) {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & SmoothBluetooth.EVENT_CONNECTION) != 0) {
+                entry.mmListener.onConnecting(device);
+            }
+        }
+    }
+
+    @Override
+    public void onConnected(Device device) {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & SmoothBluetooth.EVENT_CONNECTION) != 0) {
+                entry.mmListener.onConnected(device);
+            }
+        }
+    }
+
+    @Override
+    public void onDisconnected() {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & SmoothBluetooth.EVENT_CONNECTION) != 0) {
+                entry.mmListener.onDisconnected();
+            }
+        }
+    }
+
+    @Override
+    public void onConnectionFailed(Device device) {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & SmoothBluetooth.EVENT_CONNECTION) != 0) {
+                entry.mmListener.onConnectionFailed(device);
+            }
+        }
+    }
+
+    @Override
+    public void onDiscoveryStarted() {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & SmoothBluetooth.EVENT_DISCOVERY) != 0) {
+                entry.mmListener.onDiscoveryStarted();
+            }
+        }
+    }
+
+    @Override
+    public void onDiscoveryFinished() {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & SmoothBluetooth.EVENT_DISCOVERY) != 0) {
+                entry.mmListener.onDiscoveryFinished();
+            }
+        }
+    }
+
+    @Override
+    public void onNoDevicesFound() {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & SmoothBluetooth.EVENT_DISCOVERY) != 0) {
+                entry.mmListener.onNoDevicesFound();
+            }
+        }
+    }
+
+    @Override
+    public void onDevicesFound(List<Device> deviceList, ConnectionCallback connectionCallback) {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & SmoothBluetooth.EVENT_DISCOVERY) != 0) {
+                entry.mmListener.onDevicesFound(deviceList, connectionCallback);
+            }
+        }
+    }
+
+    @Override
+    public void onDataReceived(int data) {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & SmoothBluetooth.EVENT_DATA) != 0) {
+                entry.mmListener.onDataReceived(data);
+            }
+        }
+    }
+
+    /**
+     * Hands the bytes to each data listener in turn, all of them to one before the next.
+     */
+    void onDataReceived(byte[] data) {
+        for (Entry entry : mEntries) {
+            if ((entry.mmEvents & SmoothBluetooth.EVENT_DATA) != 0) {
+                Listener listener = entry.mmListener;
+                for (byte b : data) {
+                    listener.onDataReceived(b & 0xFF);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.nio.BufferUnderflowException;
+import java.util.ArrayDeque;
+
+/**
+ * Binary message body handed to a {@link MessageCodec}. Encoders append to it, decoders read
+ * from it front to back. Integers are big endian, varints are unsigned LEB128, strings are
+ * UTF-8 prefixed with their byte length as a varint.
+ *
+ * <p>Buffers come from a pool and go back to it once the message is on the wire, so codecs
+ * must not keep a reference to the buffer after returning.
+ */
+public final class MessageBuffer {
+
+    private final Pool mPool;
+    private byte[] mData;
+    private int mPosition;
+    private int mLimit;
+    // Reused by readString()
+    private char[] mChars = new char[0];
+
+    MessageBuffer(Pool pool, int capacity) {
+        mPool = pool;
+        mData = new byte[capacity];
+    }
+
+    byte[] array() {
+        return mData;
+    }
+
+    int position() {
+        return mPosition;
+    }
+
+    // Makes the buffer empty for writing, the first reserved bytes are left for a header
+    void clear(int reserved) {
+        ensureCapacity(reserved);
+        mPosition = reserved;
+        mLimit = mData.length;
+    }
+
+    // Reads from someone else's array, no copy is made
+    void wrap(byte[] data, int offset, int length) {
+        mData = data;
+        mPosition = offset;
+        mLimit = offset + length;
+    }
+
+    void release() {
+        if (mPool != null) {
+            mPool.release(this);
+        }
+    }
+
+    /**
+     * Bytes left to read.
+     */
+    public int remaining() {
+        return mLimit - mPosition;
+    }
+
+    public MessageBuffer writeByte(int value) {
+        ensureCapacity(mPosition + 1);
+        mData[mPosition++] = (byte) value;
+        return this;
+    }
+
+    public MessageBuffer writeBoolean(boolean value) {
+        return writeByte(value ? 1 : 0);
+    }
+
+    public MessageBuffer writeShort(int value) {
+        ensureCapacity(mPosition + 2);
+        mData[mPosition++] = (byte) (value >>> 8);
+        mData[mPosition++] = (byte) value;
+        return this;
+    }
+
+    public MessageBuffer writeInt(int value) {
+        ensureCapacity(mPosition + 4);
+        PeerLink.putInt(mData, mPosition, value);
+        mPosition += 4;
+        return this;
+    }
+
+    public MessageBuffer writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        return writeInt((int) value);
+    }
+
+    public MessageBuffer writeFloat(float value) {
+        return writeInt(Float.floatToIntBits(value));
+    }
+
+    public MessageBuffer writeDouble(double value) {
+        return writeLong(Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Writes a non negative int in one to five bytes, one byte below 128.
+     */
+    public MessageBuffer writeVarint(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative varint " + value);
+        }
+        ensureCapacity(mPosition + varintLength(value));
+        mPosition = putVarint(mData, mPosition, value);
+        return this;
+    }
+
+    public MessageBuffer writeBytes(byte[] value, int offset, int length) {
+        writeVarint(length);
+        ensureCapacity(mPosition + length);
+        System.arraycopy(value, offset, mData, mPosition, length);
+        mPosition += length;
+        return this;
+    }
+
+    public MessageBuffer writeBytes(byte[] value) {
+        return writeBytes(value, 0, value.length);
+    }
+
+    public MessageBuffer writeString(String value) {
+        int length = value.length();
+        int utf8Length = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                utf8Length++;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                utf8Length += 4;
+                i++;
+            } else {
+                utf8Length += 3;
+            }
+        }
+        writeVarint(utf8Length);
+        ensureCapacity(mPosition + utf8Length);
+        byte[] data = mData;
+        int position = mPosition;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                data[position++] = (byte) c;
+            } else if (c < 0x800) {
+                data[position++] = (byte) (0xC0 | c >> 6);
+                data[position++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                data[position++] = (byte) (0xF0 | codePoint >> 18);
+                data[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                data[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                data[position++] = (byte) (0x80 | codePoint & 0x3F);
+            } else {
+                data[position++] = (byte) (0xE0 | c >> 12);
+                data[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                data[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        mPosition = position;
+        return this;
+    }
+
+    public int readByte() {
+        require(1);
+        return mData[mPosition++];
+    }
+
+    public boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    public int readShort() {
+        require(2);
+        int value = (short) ((mData[mPosition] & 0xFF) << 8 | mData[mPosition + 1] & 0xFF);
+        mPosition += 2;
+        return value;
+    }
+
+    public int readInt() {
+        require(4);
+        int value = PeerLink.getInt(mData, mPosition);
+        mPosition += 4;
+        return value;
+    }
+
+    public long readLong() {
+        long high = readInt();
+        return high << 32 | readInt() & 0xFFFFFFFFL;
+    }
+
+    public float readFloat() {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public int readVarint() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    public byte[] readBytes() {
+        int length = readVarint();
+        require(length);
+        byte[] value = new byte[length];
+        System.arraycopy(mData, mPosition, value, 0, length);
+        mPosition += length;
+        return value;
+    }
+
+    public String readString() {
+        int length = readVarint();
+        require(length);
+        if (mChars.length < length) {
+            mChars = new char[length];
+        }
+        char[] chars = mChars;
+        byte[] data = mData;
+        int end = mPosition + length;
+        int count = 0;
+        for (int i = mPosition; i < end; ) {
+            int b = data[i++] & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if (b < 0xE0 && i < end) {
+                chars[count++] = (char) ((b & 0x1F) << 6 | data[i++] & 0x3F);
+            } else if (b < 0xF0 && i + 1 < end) {
+                chars[count++] = (char) ((b & 0x0F) << 12 | (data[i] & 0x3F) << 6
+                        | data[i + 1] & 0x3F);
+                i += 2;
+            } else if (i + 2 < end) {
+                int codePoint = (b & 0x07) << 18 | (data[i] & 0x3F) << 12
+                        | (data[i + 1] & 0x3F) << 6 | data[i + 2] & 0x3F;
+                i += 3;
+                chars[count++] = Character.highSurrogate(codePoint);
+                chars[count++] = Character.lowSurrogate(codePoint);
+            } else {
+                throw new IllegalStateException("Malformed UTF-8");
+            }
+        }
+        mPosition = end;
+        return new String(chars, 0, count);
+    }
+
+    private void require(int length) {
+        if (mLimit - mPosition < length) {
+            throw new BufferUnderflowException();
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mData.length < capacity) {
+            byte[] data = new byte[Math.max(capacity, mData.length * 2)];
+            System.arraycopy(mData, 0, data, 0, mPosition);
+            mData = data;
+            mLimit = data.length;
+        }
+    }
+
+    static int varintLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    static int putVarint(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Keeps released buffers for reuse, buffers which grew too large are dropped.
+     */
+    static class Pool {
+        static final int MAX_POOLED = 64;
+        static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+        private final int mCapacity;
+        private final ArrayDeque<MessageBuffer> mFree = new ArrayDeque<>();
+
+        Pool(int capacity) {
+            mCapacity = capacity;
+        }
+
+        synchronized MessageBuffer acquire() {
+            MessageBuffer buffer = mFree.poll();
+            return buffer != null ? buffer : new MessageBuffer(this, mCapacity);
+        }
+
+        synchronized void release(MessageBuffer buffer) {
+            if (mFree.size() < MAX_POOLED && buffer.mData.length <= MAX_POOLED_CAPACITY) {
+                mFree.add(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+/**
+ * Turns messages of one type into bytes and back, see
+ * {@link SmoothBluetooth#registerMessageType(int, Class, MessageCodec)}. Called from several
+ * threads, so implementations keep no state of their own.
+ */
+public interface MessageCodec<T> {
+
+    void encode(T message, MessageBuffer out);
+
+    /**
+     * Reads exactly what {@link #encode(Object, MessageBuffer)} wrote.
+     */
+    T decode(MessageBuffer in);
+}
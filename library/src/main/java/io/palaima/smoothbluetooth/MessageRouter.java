@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Encodes registered message types for sending and decodes them out of the received byte
+ * stream. On the wire every message is a varint length, a varint type id and the body, the
+ * length covering type id and body.
+ *
+ * <p>Outgoing messages are encoded into pooled buffers which go to the write thread without
+ * being copied. Incoming messages are decoded straight out of the read buffer, only a message
+ * split across reads is copied.
+ */
+class MessageRouter {
+
+    static final int MAX_TYPE_ID = 0xFFFF;
+    static final int MAX_MESSAGE_LENGTH = 1 << 20;
+
+    // Room for the longest header, two five byte varints
+    private static final int HEADER_RESERVE = 10;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    interface Sender {
+        /**
+         * Takes over the buffer, holding a message from {@code offset} to its position.
+         * Returns false if it can't be sent, the buffer stays with the caller then.
+         */
+        boolean send(MessageBuffer buffer, int offset, int priority);
+    }
+
+    private static class Registration<T> {
+        final MessageListener<? super T> mListener;
+        final Executor mExecutor;
+
+        Registration(MessageListener<? super T> listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        void deliver(final T message) {
+            if (mExecutor == null) {
+                mListener.onMessage(message);
+                return;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onMessage(message);
+                }
+            });
+        }
+    }
+
+    /**
+     * Keeps only the newest message per key until the executor gets to run. The read thread
+     * overwrites the slot of the key and schedules one drain, a message still in its slot when
+     * the next one comes is conflated away.
+     */
+    private static class LatestRegistration<T> extends Registration<T> implements Runnable {
+        private final MessageKey<? super T> mmKey;
+        private final Metrics mmMetrics;
+        private final ConcurrentHashMap<Object, AtomicReference<T>> mmSlots =
+                new ConcurrentHashMap<>();
+        private final AtomicBoolean mmScheduled = new AtomicBoolean();
+
+        LatestRegistration(MessageListener<? super T> listener, Executor executor,
+                MessageKey<? super T> key, Metrics metrics) {
+            super(listener, executor);
+            mmKey = key;
+            mmMetrics = metrics;
+        }
+
+        @Override
+        void deliver(T message) {
+            // Without a key extractor the type is the key, one slot
+            Object key = mmKey != null ? mmKey.keyOf(message) : this;
+            AtomicReference<T> slot = mmSlots.get(key);
+            if (slot == null) {
+                slot = new AtomicReference<>();
+                AtomicReference<T> raced = mmSlots.putIfAbsent(key, slot);
+                if (raced != null) {
+                    slot = raced;
+                }
+            }
+            if (slot.getAndSet(message) != null) {
+                mmMetrics.messagesConflated.increment();
+            }
+            if (mmScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            // Cleared first, a message coming while draining schedules another drain
+            mmScheduled.set(false);
+            for (AtomicReference<T> slot : mmSlots.values()) {
+                T message = slot.getAndSet(null);
+                if (message != null) {
+                    mListener.onMessage(message);
+                }
+            }
+        }
+    }
+
+    private static class Type<T> {
+        final int mId;
+        final MessageCodec<T> mCodec;
+        final CopyOnWriteArrayList<Registration<T>> mRegistrations = new CopyOnWriteArrayList<>();
+
+        Type(int id, MessageCodec<T> codec) {
+            mId = id;
+            mCodec = codec;
+        }
+
+        void decodeAndDeliver(MessageBuffer in) {
+            T message = mCodec.decode(in);
+            for (Registration<T> registration : mRegistrations) {
+                registration.deliver(message);
+            }
+        }
+    }
+
+    private final Sender mSender;
+    private final Metrics mMetrics;
+    private final MessageBuffer.Pool mPool = new MessageBuffer.Pool(INITIAL_BUFFER_SIZE);
+    private final Map<Class<?>, Type<?>> mTypesByClass = new ConcurrentHashMap<>();
+    private volatile Type<?>[] mTypesById = new Type<?>[0];
+
+    // Read thread state, guarded by this
+    private final MessageBuffer mReader = new MessageBuffer(null, 0);
+    private byte[] mPending = new byte[INITIAL_BUFFER_SIZE];
+    private int mPendingLength;
+
+    MessageRouter(Sender sender, Metrics metrics) {
+        mSender = sender;
+        mMetrics = metrics;
+    }
+
+    synchronized <T> void register(int id, Class<T> type, MessageCodec<T> codec) {
+        if (id < 0 || id > MAX_TYPE_ID) {
+            throw new IllegalArgumentException("Type id out of range: " + id);
+        }
+        Type<?>[] types = mTypesById;
+        if ((id < types.length && types[id] != null) || mTypesByClass.containsKey(type)) {
+            throw new IllegalArgumentException("Already registered: " + id + " " + type.getName());
+        }
+        if (id >= types.length) {
+            Type<?>[] grown = new Type<?>[id + 1];
+            System.arraycopy(types, 0, grown, 0, types.length);
+            types = grown;
+        } else {
+            types = types.clone();
+        }
+        Type<T> registered = new Type<>(id, codec);
+        types[id] = registered;
+        mTypesByClass.put(type, registered);
+        mTypesById = types;
+    }
+
+    /**
+     * @param executor runs the listener, null calls it on the read thread
+     */
+    <T> void addListener(Class<T> type, MessageListener<? super T> listener, Executor executor) {
+        type(type).mRegistrations.add(new Registration<T>(listener, executor));
+    }
+
+    /**
+     * Like {@link #addListener}, but the listener only gets the newest message per key when
+     * the executor runs it.
+     *
+     * @param key null to keep one message of the type
+     */
+    <T> void addLatestListener(Class<T> type, MessageKey<? super T> key,
+            MessageListener<? super T> listener, Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor == null");
+        }
+        type(type).mRegistrations.add(new LatestRegistration<T>(listener, executor, key, mMetrics));
+    }
+
+    void removeListener(MessageListener<?> listener) {
+        for (Type<?> type : mTypesByClass.values()) {
+            removeListener(type, listener);
+        }
+    }
+
+    private static <T> void removeListener(Type<T> type, MessageListener<?> listener) {
+        for (Registration<T> registration : type.mRegistrations) {
+            if (registration.mListener == listener) {
+                type.mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Type<T> type(Class<T> type) {
+        Type<T> registered = (Type<T>) mTypesByClass.get(type);
+        if (registered == null) {
+            throw new IllegalArgumentException("Message type not registered: " + type.getName());
+        }
+        return registered;
+    }
+
+    /**
+     * Returns false if the message could not be queued, e.g. when not connected.
+     */
+    @SuppressWarnings("unchecked")
+    <T> boolean send(T message, int priority) {
+        Type<T> type = type((Class<T>) message.getClass());
+        MessageBuffer buffer = mPool.acquire();
+        buffer.clear(HEADER_RESERVE);
+        try {
+            type.mCodec.encode(message, buffer);
+        } catch (RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+        int length = MessageBuffer.varintLength(type.mId) + buffer.position() - HEADER_RESERVE;
+        if (length > MAX_MESSAGE_LENGTH) {
+            buffer.release();
+            throw new IllegalArgumentException("Message too long: " + length);
+        }
+        int offset = HEADER_RESERVE - MessageBuffer.varintLength(length)
+                - MessageBuffer.varintLength(type.mId);
+        byte[] data = buffer.array();
+        MessageBuffer.putVarint(data, MessageBuffer.putVarint(data, offset, length), type.mId);
+        if (!mSender.send(buffer, offset, priority)) {
+            buffer.release();
+            return false;
+        }
+        mMetrics.messagesOut.increment();
+        return true;
+    }
+
+    // Bytes as they come from the socket, on the read thread
+    synchronized void onData(byte[] buffer, int offset, int length) {
+        if (mPendingLength == 0) {
+            int consumed = decode(buffer, offset, length);
+            if (consumed >= 0) {
+                keep(buffer, offset + consumed, length - consumed);
+            }
+            return;
+        }
+        keep(buffer, offset, length);
+        int consumed = decode(mPending, 0, mPendingLength);
+        if (consumed < 0) {
+            mPendingLength = 0;
+            return;
+        }
+        mPendingLength -= consumed;
+        System.arraycopy(mPending, consumed, mPending, 0, mPendingLength);
+    }
+
+    // Drops a partly received message, the link is gone
+    synchronized void reset() {
+        mPendingLength = 0;
+    }
+
+    private void keep(byte[] buffer, int offset, int length) {
+        if (mPending.length < mPendingLength + length) {
+            byte[] pending = new byte[Math.max(mPendingLength + length, mPending.length * 2)];
+            System.arraycopy(mPending, 0, pending, 0, mPendingLength);
+            mPending = pending;
+        }
+        System.arraycopy(buffer, offset, mPending, mPendingLength, length);
+        mPendingLength += length;
+    }
+
+    // Decodes all complete messages, returns how many bytes they took or -1 if the stream
+    // is broken
+    private int decode(byte[] data, int offset, int length) {
+        int position = offset;
+        int end = offset + length;
+        while (position < end) {
+            int messageLength = 0;
+            int shift = 0;
+            int body = position;
+            boolean complete = false;
+            while (body < end && shift < 35) {
+                byte b = data[body++];
+                messageLength |= (b & 0x7F) << shift;
+                shift += 7;
+                if (b >= 0) {
+                    complete = true;
+                    break;
+                }
+            }
+            if (!complete && shift < 35) {
+                break;
+            }
+            if (!complete || messageLength < 1 || messageLength > MAX_MESSAGE_LENGTH) {
+                // Not our framing, nothing after this can be trusted
+                mMetrics.messagesDropped.increment();
+                return -1;
+            }
+            if (end - body < messageLength) {
+                break;
+            }
+            dispatch(data, body, messageLength);
+            position = body + messageLength;
+        }
+        return position - offset;
+    }
+
+    private void dispatch(byte[] data, int offset, int length) {
+        mReader.wrap(data, offset, length);
+        try {
+            int id = mReader.readVarint();
+            Type<?>[] types = mTypesById;
+            Type<?> type = id < types.length ? types[id] : null;
+            if (type == null) {
+                mMetrics.messagesDropped.increment();
+                return;
+            }
+            type.decodeAndDeliver(mReader);
+            mMetrics.messagesIn.increment();
+        } catch (RuntimeException e) {
+            // A broken message, codec or listener called in place, the next one may be fine
+            mMetrics.messagesDropped.increment();
+        }
+    }
+}
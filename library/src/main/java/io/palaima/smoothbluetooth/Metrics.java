@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counters and histograms of a {@link SmoothBluetooth} instance. Recording is lock free and
+ * does not allocate, {@link #snapshot()} can be polled from any thread.
+ */
+public final class Metrics {
+
+    // Counters
+    public static final String BYTES_IN = "bytes.in";
+    public static final String BYTES_OUT = "bytes.out";
+    public static final String FRAMES_IN = "frames.in";
+    public static final String FRAMES_OUT = "frames.out";
+    public static final String CONNECTS = "connects";
+    public static final String RECONNECTS = "reconnects";
+    public static final String REQUEST_TIMEOUTS = "request.timeouts";
+    // Payload bytes compression was tried on, and what went out for them
+    public static final String COMPRESSION_BYTES_IN = "compression.bytes.in";
+    public static final String COMPRESSION_BYTES_OUT = "compression.bytes.out";
+    // Frames sent uncompressed on a compressing link, too small or incompressible
+    public static final String COMPRESSION_SKIPPED = "compression.skipped";
+    // Typed messages, dropped ones had an unknown type or failed to decode
+    public static final String MESSAGES_IN = "messages.in";
+    public static final String MESSAGES_OUT = "messages.out";
+    public static final String MESSAGES_DROPPED = "messages.dropped";
+    // Replaced by a newer message of the same key before a latest value listener ran
+    public static final String MESSAGES_CONFLATED = "messages.conflated";
+    // Received for a channel nobody opened
+    public static final String CHANNEL_BYTES_DROPPED = "channel.bytes.dropped";
+    // Writes which had to wait for the peer to grant credit
+    public static final String FLOW_STALLS = "flow.stalls";
+    // Reliable delivery: sent again after a reconnect, received twice and dropped
+    public static final String RELIABLE_RETRANSMITTED = "reliable.bytes.retransmitted";
+    public static final String RELIABLE_DUPLICATES = "reliable.bytes.duplicate";
+    // Connections which went on with the session of an earlier one
+    public static final String RELIABLE_RESUMES = "reliable.resumes";
+    // File transfers: sent again after a corrupt or missing chunk, records failing their CRC
+    public static final String FILE_BYTES_RESENT = "file.bytes.resent";
+    public static final String FILE_RECORDS_REJECTED = "file.records.rejected";
+    // Link monitor: probes without an answer in time, connections dropped for it
+    public static final String LINK_PROBES_MISSED = "link.probes.missed";
+    public static final String LINK_DEAD = "link.dead";
+    // Gauges
+    // Messages waiting for the write thread
+    public static final String WRITE_QUEUE_DEPTH = "write.queue.depth";
+    // Bytes the peer still lets us send, with flow control
+    public static final String FLOW_WINDOW = "flow.window.bytes";
+    // Bytes received which the app has not handled yet, with flow control
+    public static final String FLOW_BACKLOG = "flow.backlog.bytes";
+    // Bytes sent with reliable delivery which the peer has not acknowledged yet
+    public static final String RELIABLE_UNACKED = "reliable.unacked.bytes";
+    // Sizes in use, picked by adaptive sizing if it is on
+    public static final String READ_BUFFER_SIZE = "read.buffer.bytes";
+    public static final String WRITE_CHUNK_SIZE = "write.chunk.bytes";
+    // Histograms
+    public static final String READ_SIZE = "read.size.bytes";
+    public static final String DISPATCH_LATENCY = "dispatch.latency.us";
+    public static final String CONNECT_LATENCY = "connect.latency.ms";
+    public static final String DISCOVERY_DURATION = "discovery.duration.ms";
+    public static final String REQUEST_ROUND_TRIP = "request.rtt.us";
+    public static final String COMPRESS_TIME = "compress.time.us";
+    public static final String DECOMPRESS_TIME = "decompress.time.us";
+    public static final String FLOW_STALL_TIME = "flow.stall.us";
+    public static final String LINK_ROUND_TRIP = "link.rtt.us";
+    public static final String WRITE_TIME = "write.time.us";
+
+    public interface Reporter {
+        void report(Snapshot snapshot);
+    }
+
+    private final Map<String, Counter> mCounters = new LinkedHashMap<>();
+    private final Map<String, Histogram> mHistograms = new LinkedHashMap<>();
+
+    final Counter bytesIn = counter(BYTES_IN);
+    final Counter bytesOut = counter(BYTES_OUT);
+    final Counter framesIn = counter(FRAMES_IN);
+    final Counter framesOut = counter(FRAMES_OUT);
+    final Counter connects = counter(CONNECTS);
+    final Counter reconnects = counter(RECONNECTS);
+    final Counter requestTimeouts = counter(REQUEST_TIMEOUTS);
+    final Counter compressionBytesIn = counter(COMPRESSION_BYTES_IN);
+    final Counter compressionBytesOut = counter(COMPRESSION_BYTES_OUT);
+    final Counter compressionSkipped = counter(COMPRESSION_SKIPPED);
+    final Counter messagesIn = counter(MESSAGES_IN);
+    final Counter messagesOut = counter(MESSAGES_OUT);
+    final Counter messagesDropped = counter(MESSAGES_DROPPED);
+    final Counter messagesConflated = counter(MESSAGES_CONFLATED);
+    final Counter channelBytesDropped = counter(CHANNEL_BYTES_DROPPED);
+    final Counter flowStalls = counter(FLOW_STALLS);
+    final Counter reliableRetransmitted = counter(RELIABLE_RETRANSMITTED);
+    final Counter reliableDuplicates = counter(RELIABLE_DUPLICATES);
+    final Counter reliableResumes = counter(RELIABLE_RESUMES);
+    final Counter fileBytesResent = counter(FILE_BYTES_RESENT);
+    final Counter fileRecordsRejected = counter(FILE_RECORDS_REJECTED);
+    final Counter linkProbesMissed = counter(LINK_PROBES_MISSED);
+    final Counter linkDead = counter(LINK_DEAD);
+    final Counter writeQueueDepth = counter(WRITE_QUEUE_DEPTH);
+    final Counter flowWindow = counter(FLOW_WINDOW);
+    final Counter flowBacklog = counter(FLOW_BACKLOG);
+    final Counter reliableUnacked = counter(RELIABLE_UNACKED);
+    final Counter readBufferSize = counter(READ_BUFFER_SIZE);
+    final Counter writeChunkSize = counter(WRITE_CHUNK_SIZE);
+    final Histogram readSize = histogram(READ_SIZE);
+    final Histogram dispatchLatency = histogram(DISPATCH_LATENCY);
+    final Histogram connectLatency = histogram(CONNECT_LATENCY);
+    final Histogram discoveryDuration = histogram(DISCOVERY_DURATION);
+    final Histogram requestRoundTrip = histogram(REQUEST_ROUND_TRIP);
+    final Histogram compressTime = histogram(COMPRESS_TIME);
+    final Histogram decompressTime = histogram(DECOMPRESS_TIME);
+    final Histogram flowStallTime = histogram(FLOW_STALL_TIME);
+    final Histogram linkRoundTrip = histogram(LINK_ROUND_TRIP);
+    final Histogram writeTime = histogram(WRITE_TIME);
+
+    private Counter counter(String name) {
+        Counter counter = new Counter();
+        mCounters.put(name, counter);
+        return counter;
+    }
+
+    private Histogram histogram(String name) {
+        Histogram histogram = new Histogram();
+        mHistograms.put(name, histogram);
+        return histogram;
+    }
+
+    public Counter getCounter(String name) {
+        return mCounters.get(name);
+    }
+
+    public Histogram getHistogram(String name) {
+        return mHistograms.get(name);
+    }
+
+    public Snapshot snapshot() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        Map<String, Histogram.Snapshot> histograms = new LinkedHashMap<>();
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Snapshot(System.currentTimeMillis(), counters, histograms);
+    }
+
+    public static final class Snapshot {
+        private final long mTimestamp;
+        private final Map<String, Long> mCounters;
+        private final Map<String, Histogram.Snapshot> mHistograms;
+
+        Snapshot(long timestamp, Map<String, Long> counters,
+                Map<String, Histogram.Snapshot> histograms) {
+            mTimestamp = timestamp;
+            mCounters = Collections.unmodifiableMap(counters);
+            mHistograms = Collections.unmodifiableMap(histograms);
+        }
+
+        /**
+         * Wall clock time the snapshot was taken at.
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public long getCounter(String name) {
+            Long value = mCounters.get(name);
+            return value != null ? value : 0;
+        }
+
+        public Histogram.Snapshot getHistogram(String name) {
+            return mHistograms.get(name);
+        }
+
+        /**
+         * Compressed size over original size of everything compression was tried on,
+         * 1 if nothing was.
+         */
+        public double getCompressionRatio() {
+            long in = getCounter(COMPRESSION_BYTES_IN);
+            return in > 0 ? (double) getCounter(COMPRESSION_BYTES_OUT) / in : 1;
+        }
+
+        public Map<String, Long> getCounters() {
+            return mCounters;
+        }
+
+        public Map<String, Histogram.Snapshot> getHistograms() {
+            return mHistograms;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Long> entry : mCounters.entrySet()) {
+                sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+            }
+            for (Map.Entry<String, Histogram.Snapshot> entry : mHistograms.entrySet()) {
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+}
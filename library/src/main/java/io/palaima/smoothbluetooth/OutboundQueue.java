@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Messages waiting for the write thread, one lane per priority. The writer always takes
+ * from the most urgent lane which is not empty, lane 0 being the most urgent. Within a lane
+ * every channel has its own FIFO and the channels take turns a chunk at a time, so a bulk
+ * transfer on one channel can't hold up the others.
+ * A message is never split by another message of its own channel, they end up in the same
+ * byte stream at the other end. A more urgent message of a channel whose message is partly
+ * written waits for it to finish, only other channels go between its chunks. Channel 0 is
+ * the plain stream, and the only channel without a library peer.
+ * Once {@link #MAX_QUEUED_BYTES} are queued, offering to any other lane blocks the caller,
+ * the same way a write to a full socket did.
+ */
+class OutboundQueue {
+
+    static final int MAX_QUEUED_BYTES = 256 * 1024;
+    static final int CHANNELS = 256;
+
+    // Returned by peek() after wake(), not a message to write
+    static final Message WAKEUP = new Message(new byte[0], 0, 0, false, 0);
+
+    static class Message {
+        final byte[] mData;
+        final int mStart;
+        final int mEnd;
+        final boolean mCrlf;
+        final int mPriority;
+        final int mChannel;
+        // Bytes written get added here, may be null
+        final Counter mBytesOut;
+        // Pooled buffer holding mData, released once written
+        final MessageBuffer mBuffer;
+        // Next byte to write, only touched by the write thread
+        int mOffset;
+
+        Message(byte[] data, int offset, int length, boolean crlf, int priority) {
+            this(data, offset, length, crlf, priority, 0, null);
+        }
+
+        Message(byte[] data, int offset, int length, boolean crlf, int priority, int channel,
+                Counter bytesOut) {
+            mData = data;
+            mStart = offset;
+            mOffset = offset;
+            mEnd = offset + length;
+            mCrlf = crlf;
+            mPriority = priority;
+            mChannel = channel;
+            mBytesOut = bytesOut;
+            mBuffer = null;
+        }
+
+        Message(MessageBuffer buffer, int offset, int priority) {
+            mData = buffer.array();
+            mStart = offset;
+            mOffset = offset;
+            mEnd = buffer.position();
+            mCrlf = false;
+            mPriority = priority;
+            mChannel = 0;
+            mBytesOut = null;
+            mBuffer = buffer;
+        }
+
+        int remaining() {
+            return mEnd - mOffset;
+        }
+    }
+
+    private static class Lane {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ArrayDeque<Message>[] mChannels = new ArrayDeque[CHANNELS];
+        // Channels with messages queued, the head is served next
+        final ArrayDeque<ArrayDeque<Message>> mReady = new ArrayDeque<>();
+    }
+
+    private final Lane[] mLanes;
+    // Per channel, the message with some but not all of it written
+    private final Message[] mPartial = new Message[CHANNELS];
+    private final Counter mDepth;
+    private int mSize;
+    private long mQueuedBytes;
+    private boolean mClosed;
+    private boolean mSuspended;
+    private boolean mWoken;
+
+    OutboundQueue(int lanes, Counter depth) {
+        mLanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            mLanes[i] = new Lane();
+        }
+        mDepth = depth;
+    }
+
+    synchronized boolean offer(Message message) throws InterruptedException {
+        return offer(message, true);
+    }
+
+    /**
+     * @param block false to turn the message away instead of waiting for room
+     */
+    synchronized boolean offer(Message message, boolean block) throws InterruptedException {
+        int length = message.remaining();
+        while (!mClosed && message.mPriority > 0 && mQueuedBytes > 0
+                && mQueuedBytes + length > MAX_QUEUED_BYTES) {
+            if (mSuspended || !block) {
+                return false;
+            }
+            wait();
+        }
+        if (mClosed) {
+            return false;
+        }
+        Lane lane = mLanes[message.mPriority];
+        ArrayDeque<Message> channel = lane.mChannels[message.mChannel];
+        if (channel == null) {
+            channel = new ArrayDeque<>();
+            lane.mChannels[message.mChannel] = channel;
+        }
+        if (channel.isEmpty()) {
+            lane.mReady.add(channel);
+        }
+        channel.add(message);
+        mQueuedBytes += length;
+        mSize++;
+        mDepth.increment();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Blocks until there is something to write. The message stays queued until
+     * {@link #advance(Message)} sees it written, so a partly written message keeps its place.
+     * Returns null once the queue is closed, {@link #WAKEUP} once after {@link #wake()}.
+     */
+    synchronized Message peek() throws InterruptedException {
+        while (!mClosed) {
+            if (mWoken) {
+                mWoken = false;
+                return WAKEUP;
+            }
+            for (Lane lane : mLanes) {
+                for (ArrayDeque<Message> channel : lane.mReady) {
+                    Message message = channel.peek();
+                    Message partial = mPartial[message.mChannel];
+                    if (partial == null || partial == message) {
+                        return message;
+                    }
+                }
+            }
+            wait();
+        }
+        return null;
+    }
+
+    /**
+     * Called after each chunk of the message went out. Drops the message once all of it was
+     * written and hands the turn to the next channel of the lane.
+     */
+    synchronized void advance(Message message) {
+        if (mClosed) {
+            return;
+        }
+        Lane lane = mLanes[message.mPriority];
+        ArrayDeque<Message> channel = lane.mChannels[message.mChannel];
+        if (message.remaining() > 0) {
+            mPartial[message.mChannel] = message;
+        } else {
+            if (mPartial[message.mChannel] == message) {
+                mPartial[message.mChannel] = null;
+            }
+            if (channel.remove(message)) {
+                mQueuedBytes -= message.mEnd - message.mStart;
+                mSize--;
+                mDepth.decrement();
+                notifyAll();
+            }
+        }
+        if (lane.mReady.peek() == channel) {
+            lane.mReady.poll();
+            if (!channel.isEmpty()) {
+                lane.mReady.add(channel);
+            }
+        } else if (channel.isEmpty()) {
+            // Served out of turn, while the channels ahead of it waited for partial messages
+            lane.mReady.remove(channel);
+        }
+    }
+
+    /**
+     * Gets the writer out of peek() for work which is not a queued message.
+     */
+    synchronized void wake() {
+        mWoken = true;
+        notifyAll();
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Keeps what is queued for the next connection. Until then, offers which would have to
+     * wait for room are turned away, so callers don't block on a writer which is gone.
+     */
+    synchronized void suspend() {
+        mSuspended = true;
+        notifyAll();
+    }
+
+    synchronized void resume() {
+        mSuspended = false;
+    }
+
+    /**
+     * Drops everything queued and wakes the writer up.
+     */
+    synchronized void close() {
+        mClosed = true;
+        Arrays.fill(mPartial, null);
+        for (Lane lane : mLanes) {
+            for (ArrayDeque<Message> channel : lane.mReady) {
+                channel.clear();
+            }
+            lane.mReady.clear();
+        }
+        mDepth.add(-mSize);
+        mSize = 0;
+        mQueuedBytes = 0;
+        notifyAll();
+    }
+}
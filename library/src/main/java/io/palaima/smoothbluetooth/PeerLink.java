@@ -0,0 +1,1049 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Framing between two instances of this library on an Android to Android link.
+ *
+ * <p>A side which wants framing starts by sending a hello: {@link #MAGIC}, version,
+ * capabilities and the id of its preset dictionary. A side which receives a hello before it
+ * sent anything answers with its own, even if it wants no features, and from then on both
+ * sides send frames: type(1) flags(1) length(4) payload. A side which sent data before it
+ * received a hello stays raw, and so does its peer, since the peer sees that data first.
+ * A side waiting for an answer to its hello gives up after
+ * {@link #NEGOTIATION_TIMEOUT_MILLIS} and goes raw, for peers which don't know the protocol.
+ * Such peers get the hello as data.
+ *
+ * <p>Compressed frames hold the payload length followed by a zlib stream of the payload. Each
+ * frame is compressed on its own, with the preset dictionary if both sides have the same one,
+ * so frames don't depend on each other.
+ *
+ * <p>Data frames carry the plain data stream. Channel frames start with the channel number,
+ * 1 to 255, and go to the {@link ChannelSink} instead, if both sides offered channels.
+ *
+ * <p>With flow control both sides start with no credit, and each grants the other its window
+ * in a credit frame right after the hello. Data and channel payload, counted uncompressed,
+ * uses up credit; the sender waits when there is none left. The receiver hands credit back
+ * through {@link #grant(int)} once the app has handled the data, a quarter window at a time,
+ * so no more than a window is ever in the socket buffers and the receiving app's queue.
+ *
+ * <p>With reliable delivery both sides send a session frame right after the hello, holding
+ * the {@link ReliableSession} state. Data and channel frames then start with the offset of
+ * their first payload byte, and the receiver acknowledges how far it got. After a reconnect
+ * the sender goes on from what the peer's session frame says it received, and the receiver
+ * drops anything it already has.
+ *
+ * <p>With pings, either side may send a ping frame at any time and the other answers with a
+ * pong frame holding the same nonce, ahead of any data, for the {@link LinkMonitor}.
+ */
+class PeerLink {
+
+    static final byte[] MAGIC = {(byte) 0xFE, 'S', 'B', 'P'};
+    static final int VERSION = 1;
+    // Magic, version(1), capabilities(1), dictionary id(4)
+    static final int HELLO_LENGTH = MAGIC.length + 6;
+    static final int CAP_DEFLATE = 0x01;
+    static final int CAP_CHANNELS = 0x02;
+    static final int CAP_FLOW_CONTROL = 0x04;
+    static final int CAP_RELIABLE = 0x08;
+    static final int CAP_PING = 0x10;
+
+    // type(1) flags(1) length(4)
+    static final int HEADER_LENGTH = 6;
+    static final int TYPE_DATA = 1;
+    // Channel(1) payload
+    static final int TYPE_CHANNEL = 2;
+    // Credit(4), bytes the receiver adds to the sender's window
+    static final int TYPE_CREDIT = 3;
+    // ReliableSession state
+    static final int TYPE_SESSION = 4;
+    // Offset(8) of the next byte the receiver expects
+    static final int TYPE_ACK = 5;
+    // Nonce(8), answered by a pong with the same nonce
+    static final int TYPE_PING = 6;
+    static final int TYPE_PONG = 7;
+    static final int FLAG_DEFLATE = 0x01;
+    // Payload starts with the offset(8) of its first byte
+    static final int FLAG_SEQUENCED = 0x02;
+    static final int SEQUENCE_LENGTH = 8;
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    // Smaller payloads are sent as they are, the zlib header alone eats most of the gain
+    static final int MIN_COMPRESS_SIZE = 64;
+    // Payloads after one which did not compress are sent as they are, e.g. images or archives
+    static final int SKIP_AFTER_INCOMPRESSIBLE = 8;
+    static final long NEGOTIATION_TIMEOUT_MILLIS = 3000;
+    static final int DEFAULT_WINDOW = 64 * 1024;
+
+    interface ChannelSink {
+        // Called on the read thread, buffer is reused after the call returns
+        void onChannelData(int channel, byte[] buffer, int offset, int length);
+    }
+
+    private static final int STATE_UNDECIDED = 0;
+    private static final int STATE_HELLO_SENT = 1;
+    private static final int STATE_RAW = 2;
+    private static final int STATE_FRAMED = 3;
+
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final Metrics mMetrics;
+    private final ChannelSink mChannelSink;
+    private final Runnable mWakeWriter;
+    private final int mCapabilities;
+    private final byte[] mDictionary;
+    private final int mDictionaryId;
+    private final int mWindow;
+    private final ReliableSession mSession;
+    private final LinkMonitor mMonitor;
+    private final FrameInputStream mFrameIn = new FrameInputStream();
+    private final FrameOutputStream mFrameOut = new FrameOutputStream();
+
+    // Guarded by this
+    private int mState = STATE_UNDECIDED;
+    private boolean mHelloSent;
+    private boolean mClosed;
+    // Bytes the peer still lets us send
+    private long mSendCredit;
+    // Bytes received which the app has not handled yet
+    private long mBacklog;
+    // Bytes handled by the app which the peer has not been told about yet
+    private int mGrantPending;
+    private boolean mGrantReady;
+    private boolean mSessionPending;
+    private boolean mAckPending;
+    private boolean mPeerSessionKnown;
+    // Nonces to send in a ping or pong, -1 if none
+    private long mPingPending = -1;
+    private long mPongPending = -1;
+    // Offset to send the session log again from, -1 if nothing is to be sent again
+    private long mResendFrom = -1;
+    // Written before mState becomes STATE_FRAMED
+    private volatile boolean mCompress;
+    private volatile boolean mChannels;
+    private volatile boolean mFlowControl;
+    private volatile boolean mReliable;
+    private volatile boolean mPing;
+
+    /**
+     * @param capabilities features to offer, CAP_ flags
+     * @param dictionary preset compression dictionary, or null. Peers compress only if they
+     *                   use the same one.
+     * @param window bytes the peer may send ahead of what the app handled, with flow control
+     * @param session state kept across connections, needed if reliable delivery is offered
+     * @param channelSink receives channel data, null if channels are not offered
+     * @param monitor gets the pongs, may be null
+     * @param wakeWriter gets the write thread to call {@link #sendControl()} when it is idle
+     */
+    PeerLink(InputStream in, OutputStream out, int capabilities, byte[] dictionary, int window,
+            ReliableSession session, Metrics metrics, ChannelSink channelSink,
+            LinkMonitor monitor, Runnable wakeWriter) {
+        mIn = in;
+        mOut = out;
+        mMetrics = metrics;
+        mChannelSink = channelSink;
+        mWakeWriter = wakeWriter;
+        mCapabilities = capabilities;
+        mDictionary = dictionary;
+        mDictionaryId = dictionary != null ? dictionaryId(dictionary) : 0;
+        mWindow = window;
+        mSession = session;
+        mMonitor = monitor;
+    }
+
+    static int dictionaryId(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        return (int) adler.getValue();
+    }
+
+    InputStream getInputStream() {
+        return mFrameIn;
+    }
+
+    OutputStream getOutputStream() {
+        return mFrameOut;
+    }
+
+    /**
+     * Writes one frame of channel data, channel 0 being the plain data stream. Returns false
+     * if the data was dropped because the peer doesn't do channels.
+     */
+    boolean write(int channel, byte[] buffer, int offset, int length) throws IOException {
+        return mFrameOut.write(channel, buffer, offset, length);
+    }
+
+    /**
+     * With reliable delivery, waits until the session is going and a write of this many bytes
+     * fits into its log. The next write then logs the data before it can fail, so the caller
+     * knows the data is taken once this returns. Write thread only.
+     */
+    void reserve(int length) throws IOException {
+        if (outboundState() == STATE_FRAMED && mReliable) {
+            mFrameOut.startSession();
+            mFrameOut.awaitRoom(length);
+        }
+    }
+
+    /**
+     * Sends the hello if any feature is wanted. Writes go out once the peer answered.
+     */
+    synchronized void open() throws IOException {
+        if (mCapabilities != 0 && mState == STATE_UNDECIDED) {
+            writeHello();
+            mState = STATE_HELLO_SENT;
+        }
+    }
+
+    synchronized boolean isFramed() {
+        return mState == STATE_FRAMED;
+    }
+
+    boolean isCompressing() {
+        return isFramed() && mCompress;
+    }
+
+    boolean isFlowControlled() {
+        return isFramed() && mFlowControl;
+    }
+
+    boolean isReliable() {
+        return isFramed() && mReliable;
+    }
+
+    /**
+     * Has the write thread send a ping ahead of any data. Returns false if the peer doesn't
+     * answer pings. Any thread.
+     */
+    boolean ping(long nonce) {
+        synchronized (this) {
+            if (mState != STATE_FRAMED || !mPing || mClosed) {
+                return false;
+            }
+            mPingPending = nonce;
+            // A writer waiting for credit sends it itself
+            notifyAll();
+        }
+        mWakeWriter.run();
+        return true;
+    }
+
+    /**
+     * The app handled this many received bytes, the peer may send as many more. Any thread.
+     */
+    void grant(int bytes) {
+        synchronized (this) {
+            if (mState != STATE_FRAMED || !mFlowControl || mClosed) {
+                return;
+            }
+            // Late calls for an earlier link must not open the window any further
+            bytes = (int) Math.min(bytes, mBacklog);
+            mBacklog -= bytes;
+            mMetrics.flowBacklog.add(-bytes);
+            if (!addGrant(bytes)) {
+                return;
+            }
+        }
+        mWakeWriter.run();
+    }
+
+    /**
+     * Sends what the peer is owed: our session, credit, acknowledgements and data it missed
+     * on the last connection. Write thread only.
+     */
+    void sendControl() throws IOException {
+        synchronized (this) {
+            if (mState != STATE_FRAMED) {
+                return;
+            }
+        }
+        if (mReliable) {
+            mFrameOut.startSession();
+        }
+        mFrameOut.flushControl();
+    }
+
+    /**
+     * Wakes a writer waiting for credit or negotiation, its write fails.
+     */
+    synchronized void close() {
+        mClosed = true;
+        mMetrics.flowWindow.add(-mSendCredit);
+        mMetrics.flowBacklog.add(-mBacklog);
+        mSendCredit = 0;
+        mBacklog = 0;
+        notifyAll();
+    }
+
+    // Returns true if the writer has to be woken up to send the credit
+    private boolean addGrant(int bytes) {
+        mGrantPending += bytes;
+        // Small grants would cost more frames than they save waiting
+        if (mGrantReady || mGrantPending < mWindow / 4) {
+            return false;
+        }
+        mGrantReady = true;
+        // A writer waiting for credit sends it itself
+        notifyAll();
+        return true;
+    }
+
+    private int takeGrant() {
+        if (!mGrantReady) {
+            return 0;
+        }
+        int credit = mGrantPending;
+        mGrantPending = 0;
+        mGrantReady = false;
+        return credit;
+    }
+
+    // Hands control frames which are due to the writer, write thread holding the lock only
+    private boolean takeControl() {
+        FrameOutputStream out = mFrameOut;
+        if (mSessionPending) {
+            mSessionPending = false;
+            out.mSessionOut = true;
+        }
+        out.mCreditOut = takeGrant();
+        if (mAckPending) {
+            mAckPending = false;
+            out.mAckOut = mSession.inboundNext();
+        }
+        out.mPingOut = mPingPending;
+        out.mPongOut = mPongPending;
+        mPingPending = -1;
+        mPongPending = -1;
+        return out.mSessionOut || out.mCreditOut > 0 || out.mAckOut >= 0 || out.mPingOut >= 0
+                || out.mPongOut >= 0;
+    }
+
+    private synchronized void onReceived(int length) {
+        if (!mClosed) {
+            mBacklog += length;
+            mMetrics.flowBacklog.add(length);
+        }
+    }
+
+    private synchronized void onCredit(int credit) throws IOException {
+        if (credit < 0) {
+            throw new IOException("Bad credit " + credit);
+        }
+        mSendCredit += credit;
+        mMetrics.flowWindow.add(credit);
+        notifyAll();
+    }
+
+    private void onSession(byte[] state) throws IOException {
+        synchronized (this) {
+            // Both ends go on with the sessions they had on the last connection
+            boolean resumed = ReliableSession.getLong(state, 0) == mSession.getPeerId()
+                    && ReliableSession.getLong(state, 8) == mSession.getId();
+            mResendFrom = mSession.onPeerState(state, 0);
+            if (resumed) {
+                mMetrics.reliableResumes.increment();
+            }
+            mPeerSessionKnown = true;
+            notifyAll();
+        }
+        mWakeWriter.run();
+    }
+
+    private void onPing(long nonce) {
+        synchronized (this) {
+            mPongPending = nonce;
+            notifyAll();
+        }
+        mWakeWriter.run();
+    }
+
+    private synchronized void onAck(long next) throws IOException {
+        mSession.ack(next);
+        notifyAll();
+    }
+
+    // Returns how many leading bytes of a sequenced payload were received before
+    private int duplicate(long seq, int length) throws IOException {
+        int duplicate;
+        synchronized (this) {
+            if (!mPeerSessionKnown) {
+                throw new IOException("Sequenced frame before the session");
+            }
+            long next = mSession.inboundNext();
+            if (seq > next) {
+                throw new IOException("Missing data before " + seq);
+            }
+            duplicate = (int) Math.min(length, next - seq);
+            if (duplicate == 0) {
+                return 0;
+            }
+            mMetrics.reliableDuplicates.add(duplicate);
+            // The peer paid credit for them but the app never sees them
+            if (!mFlowControl || !addGrant(duplicate)) {
+                return duplicate;
+            }
+        }
+        mWakeWriter.run();
+        return duplicate;
+    }
+
+    // Sequenced payload made it to the read thread, the peer may drop it
+    private void delivered(int length) {
+        synchronized (this) {
+            mSession.received(length);
+            if (mAckPending) {
+                return;
+            }
+            mAckPending = true;
+        }
+        mWakeWriter.run();
+    }
+
+    private void writeHello() throws IOException {
+        byte[] hello = new byte[HELLO_LENGTH];
+        System.arraycopy(MAGIC, 0, hello, 0, MAGIC.length);
+        hello[MAGIC.length] = VERSION;
+        hello[MAGIC.length + 1] = (byte) mCapabilities;
+        putInt(hello, MAGIC.length + 2, mDictionaryId);
+        mOut.write(hello);
+        mHelloSent = true;
+    }
+
+    private synchronized void onHello(byte[] hello) throws IOException {
+        if (mState == STATE_RAW) {
+            if (mHelloSent) {
+                // We gave up waiting, but the peer took our hello and frames now
+                throw new IOException("Peer answered too late");
+            }
+            // Our data went out first, the peer stays raw as well
+            return;
+        }
+        if (mState == STATE_UNDECIDED) {
+            writeHello();
+        }
+        int capabilities = hello[MAGIC.length + 1] & mCapabilities;
+        mCompress = (capabilities & CAP_DEFLATE) != 0
+                && getInt(hello, MAGIC.length + 2) == mDictionaryId;
+        mChannels = (capabilities & CAP_CHANNELS) != 0;
+        mFlowControl = (capabilities & CAP_FLOW_CONTROL) != 0;
+        mReliable = (capabilities & CAP_RELIABLE) != 0;
+        mPing = (capabilities & CAP_PING) != 0;
+        if (mFlowControl) {
+            // Opens the peer's window, the caller wakes the writer to send it
+            mGrantPending = mWindow;
+            mGrantReady = true;
+        }
+        mSessionPending = mReliable;
+        mState = STATE_FRAMED;
+        notifyAll();
+    }
+
+    private synchronized void onNoHello() {
+        if (mState == STATE_UNDECIDED || mState == STATE_HELLO_SENT) {
+            mState = STATE_RAW;
+            notifyAll();
+        }
+    }
+
+    // Decides for the first write, waits for the peer's answer if our hello is out
+    private synchronized int outboundState() throws IOException {
+        if (mState == STATE_UNDECIDED) {
+            mState = STATE_RAW;
+        }
+        long deadline = System.currentTimeMillis() + NEGOTIATION_TIMEOUT_MILLIS;
+        while (mState == STATE_HELLO_SENT) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                mState = STATE_RAW;
+                break;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while negotiating");
+            }
+        }
+        return mState;
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16
+                | (buffer[offset + 2] & 0xFF) << 8 | buffer[offset + 3] & 0xFF;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            int count = in.read(buffer, offset, length);
+            if (count < 0) {
+                throw new EOFException("End of stream");
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // Only used by the read thread
+    private class FrameInputStream extends InputStream {
+        private final byte[] mHeader = new byte[HEADER_LENGTH];
+        private final byte[] mSequence = new byte[SEQUENCE_LENGTH];
+        private final Inflater mInflater = new Inflater();
+        private boolean mNegotiated;
+        // Bytes read while looking for a hello which turned out to be data
+        private byte[] mReplay;
+        private int mReplayOffset;
+        private int mReplayLength;
+        // Rest of the current uncompressed frame, still in the socket
+        private int mFrameRemaining;
+        // The current data frame is sequenced, what is read of it gets acknowledged
+        private boolean mSequenced;
+        private byte[] mCompressed = new byte[0];
+        private byte[] mPlain = new byte[0];
+        private int mPlainOffset;
+        private int mPlainLength;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mNegotiated) {
+                mNegotiated = true;
+                readHello();
+            }
+            if (mReplayOffset < mReplayLength) {
+                int count = Math.min(length, mReplayLength - mReplayOffset);
+                System.arraycopy(mReplay, mReplayOffset, buffer, offset, count);
+                mReplayOffset += count;
+                return count;
+            }
+            if (!isFramed()) {
+                return mIn.read(buffer, offset, length);
+            }
+            while (mFrameRemaining == 0 && mPlainOffset == mPlainLength) {
+                readFrame();
+            }
+            int count;
+            if (mPlainOffset < mPlainLength) {
+                count = Math.min(length, mPlainLength - mPlainOffset);
+                System.arraycopy(mPlain, mPlainOffset, buffer, offset, count);
+                mPlainOffset += count;
+            } else {
+                count = mIn.read(buffer, offset, Math.min(length, mFrameRemaining));
+                if (count < 0) {
+                    throw new EOFException("End of stream inside a frame");
+                }
+                mFrameRemaining -= count;
+            }
+            if (mSequenced) {
+                delivered(count);
+            }
+            return count;
+        }
+
+        private void readHello() throws IOException {
+            byte[] hello = new byte[HELLO_LENGTH];
+            int read = 0;
+            while (read < MAGIC.length) {
+                int count = mIn.read(hello, read, MAGIC.length - read);
+                if (count < 0) {
+                    throw new EOFException("End of stream");
+                }
+                for (int i = read; i < read + count; i++) {
+                    if (hello[i] != MAGIC[i]) {
+                        mReplay = hello;
+                        mReplayLength = read + count;
+                        onNoHello();
+                        return;
+                    }
+                }
+                read += count;
+            }
+            readFully(mIn, hello, MAGIC.length, HELLO_LENGTH - MAGIC.length);
+            onHello(hello);
+            if (mFlowControl || mReliable) {
+                mWakeWriter.run();
+            }
+        }
+
+        private void readFrame() throws IOException {
+            readFully(mIn, mHeader, 0, HEADER_LENGTH);
+            int type = mHeader[0];
+            int flags = mHeader[1];
+            int length = getInt(mHeader, 2);
+            if (length < 0 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Bad frame length " + length);
+            }
+            long seq = -1;
+            if ((flags & FLAG_SEQUENCED) != 0) {
+                if (!mReliable || length < SEQUENCE_LENGTH) {
+                    throw new IOException("Unexpected sequenced frame");
+                }
+                readFully(mIn, mSequence, 0, SEQUENCE_LENGTH);
+                seq = ReliableSession.getLong(mSequence, 0);
+                length -= SEQUENCE_LENGTH;
+            }
+            mSequenced = seq >= 0;
+            if (type == TYPE_DATA && (flags & FLAG_DEFLATE) == 0) {
+                int duplicate = mSequenced ? duplicate(seq, length) : 0;
+                skip(duplicate);
+                mFrameRemaining = length - duplicate;
+                received(mFrameRemaining);
+                return;
+            }
+            if (mCompressed.length < length) {
+                mCompressed = new byte[length];
+            }
+            readFully(mIn, mCompressed, 0, length);
+            if (type == TYPE_DATA) {
+                mPlainLength = inflate(0, length);
+                mPlainOffset = mSequenced ? duplicate(seq, mPlainLength) : 0;
+                received(mPlainLength - mPlainOffset);
+            } else if (type == TYPE_CHANNEL && mChannels && length > 0) {
+                int channel = mCompressed[0] & 0xFF;
+                byte[] data = mCompressed;
+                int offset = 1;
+                int dataLength = length - 1;
+                if ((flags & FLAG_DEFLATE) != 0) {
+                    data = mPlain;
+                    offset = 0;
+                    dataLength = inflate(1, length - 1);
+                }
+                int duplicate = mSequenced ? duplicate(seq, dataLength) : 0;
+                if (duplicate < dataLength) {
+                    received(dataLength - duplicate);
+                    mChannelSink.onChannelData(channel, data, offset + duplicate,
+                            dataLength - duplicate);
+                    if (mSequenced) {
+                        delivered(dataLength - duplicate);
+                    }
+                }
+            } else if (type == TYPE_CREDIT && mFlowControl && length == 4) {
+                onCredit(getInt(mCompressed, 0));
+            } else if (type == TYPE_SESSION && mReliable
+                    && length == ReliableSession.STATE_LENGTH) {
+                onSession(mCompressed);
+            } else if (type == TYPE_ACK && mReliable && length == SEQUENCE_LENGTH) {
+                onAck(ReliableSession.getLong(mCompressed, 0));
+            } else if (type == TYPE_PING && mPing && length == SEQUENCE_LENGTH) {
+                onPing(ReliableSession.getLong(mCompressed, 0));
+            } else if (type == TYPE_PONG && mPing && length == SEQUENCE_LENGTH) {
+                if (mMonitor != null) {
+                    mMonitor.onAnswer(ReliableSession.getLong(mCompressed, 0));
+                }
+            }
+            // Anything else is from a newer peer, skipped
+        }
+
+        // Payload the app has yet to hand back through grant()
+        private void received(int length) {
+            if (mFlowControl && length > 0) {
+                onReceived(length);
+            }
+        }
+
+        private void skip(int length) throws IOException {
+            if (length > 0) {
+                if (mCompressed.length < length) {
+                    mCompressed = new byte[length];
+                }
+                readFully(mIn, mCompressed, 0, length);
+            }
+        }
+
+        // Inflates a compressed payload from mCompressed into mPlain, returns its length
+        private int inflate(int offset, int length) throws IOException {
+            long start = System.nanoTime();
+            int plainLength = length >= 4 ? getInt(mCompressed, offset) : -1;
+            if (plainLength < 0 || plainLength > MAX_FRAME_LENGTH) {
+                throw new IOException("Bad compressed frame");
+            }
+            if (mPlain.length < plainLength) {
+                mPlain = new byte[plainLength];
+            }
+            mInflater.reset();
+            mInflater.setInput(mCompressed, offset + 4, length - 4);
+            int inflated = 0;
+            try {
+                while (inflated < plainLength) {
+                    int count = mInflater.inflate(mPlain, inflated, plainLength - inflated);
+                    if (count == 0) {
+                        if (mInflater.needsDictionary() && mDictionary != null) {
+                            mInflater.setDictionary(mDictionary);
+                        } else {
+                            break;
+                        }
+                    }
+                    inflated += count;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Bad compressed frame: " + e.getMessage());
+            }
+            if (inflated != plainLength) {
+                throw new IOException("Compressed frame too short");
+            }
+            mMetrics.decompressTime.record((System.nanoTime() - start) / 1000);
+            return plainLength;
+        }
+    }
+
+    // Only used by the write thread
+    private class FrameOutputStream extends OutputStream {
+        private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+        private byte[] mFrame = new byte[HEADER_LENGTH + 256];
+        private int mSkip;
+        // Control frames taken by takeControl(), to be written outside the lock
+        boolean mSessionOut;
+        int mCreditOut;
+        long mAckOut = -1;
+        long mPingOut = -1;
+        long mPongOut = -1;
+        private boolean mSessionStarted;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[] {(byte) oneByte}, 0, 1);
+        }
+
+        /**
+         * Each call goes out as one frame.
+         */
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            write(0, buffer, offset, length);
+        }
+
+        boolean write(int channel, byte[] buffer, int offset, int length) throws IOException {
+            if (outboundState() != STATE_FRAMED) {
+                if (channel != 0) {
+                    return false;
+                }
+                mOut.write(buffer, offset, length);
+                return true;
+            }
+            if (channel != 0 && !mChannels) {
+                return false;
+            }
+            long seq = -1;
+            if (mReliable) {
+                startSession();
+                awaitRoom(length);
+                // Logged before anything goes out, so it is sent again if the link drops
+                seq = mSession.append(channel, buffer, offset, length);
+                flushControl();
+            }
+            send(channel, seq, buffer, offset, length);
+            return true;
+        }
+
+        private void send(int channel, long seq, byte[] buffer, int offset, int length)
+                throws IOException {
+            int max = MAX_FRAME_LENGTH - (channel != 0 ? 1 : 0) - SEQUENCE_LENGTH - 4;
+            while (length > 0) {
+                int count = Math.min(length, max);
+                if (mFlowControl) {
+                    count = acquireCredit(count);
+                }
+                writePayload(channel, seq, buffer, offset, count);
+                offset += count;
+                length -= count;
+                if (seq >= 0) {
+                    seq += count;
+                }
+            }
+        }
+
+        // Sends our session, waits for the peer's and sends again what it missed
+        void startSession() throws IOException {
+            if (mSessionStarted) {
+                return;
+            }
+            long deadline = System.currentTimeMillis() + NEGOTIATION_TIMEOUT_MILLIS;
+            long from;
+            while (true) {
+                boolean control;
+                synchronized (PeerLink.this) {
+                    if (mClosed) {
+                        throw new IOException("Link closed");
+                    }
+                    control = takeControl();
+                    if (!control && mPeerSessionKnown) {
+                        from = mResendFrom;
+                        mResendFrom = -1;
+                        break;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (!control && remaining <= 0) {
+                        throw new IOException("Peer sent no session");
+                    }
+                    if (!control) {
+                        waitForPeer(remaining);
+                    }
+                }
+                if (control) {
+                    writeControl();
+                }
+            }
+            mSessionStarted = true;
+            if (from >= 0) {
+                for (ReliableSession.Record record : mSession.unacked()) {
+                    int skip = (int) Math.max(0, from - record.mSeq);
+                    if (skip >= record.mData.length || (record.mChannel != 0 && !mChannels)) {
+                        continue;
+                    }
+                    mMetrics.reliableRetransmitted.add(record.mData.length - skip);
+                    send(record.mChannel, record.mSeq + skip, record.mData, skip,
+                            record.mData.length - skip);
+                }
+            }
+        }
+
+        // Waits for room in the session log, sends control frames meanwhile
+        void awaitRoom(int length) throws IOException {
+            while (true) {
+                boolean control;
+                synchronized (PeerLink.this) {
+                    // Only this thread appends, room once found stays
+                    if (mSession.hasRoom(length)) {
+                        return;
+                    }
+                    if (mClosed) {
+                        throw new IOException("Link closed");
+                    }
+                    control = takeControl();
+                    if (!control) {
+                        waitForPeer(0);
+                    }
+                }
+                if (control) {
+                    writeControl();
+                }
+            }
+        }
+
+        // Waits until the peer lets us send, sends control frames meanwhile so two writers
+        // waiting on each other still get going. Returns how many of the bytes may go out now.
+        private int acquireCredit(int length) throws IOException {
+            long stallStart = 0;
+            while (true) {
+                boolean control;
+                synchronized (PeerLink.this) {
+                    if (mClosed) {
+                        throw new IOException("Link closed");
+                    }
+                    control = takeControl();
+                    if (!control) {
+                        if (mSendCredit > 0) {
+                            int count = (int) Math.min(length, mSendCredit);
+                            mSendCredit -= count;
+                            mMetrics.flowWindow.add(-count);
+                            if (stallStart != 0) {
+                                mMetrics.flowStallTime.record(
+                                        (System.nanoTime() - stallStart) / 1000);
+                            }
+                            return count;
+                        }
+                        if (stallStart == 0) {
+                            stallStart = System.nanoTime();
+                            mMetrics.flowStalls.increment();
+                        }
+                        waitForPeer(0);
+                    }
+                }
+                if (control) {
+                    // Outside the lock, the read thread must not wait for our socket write
+                    writeControl();
+                }
+            }
+        }
+
+        // Holding the PeerLink lock
+        private void waitForPeer(long millis) throws IOException {
+            try {
+                PeerLink.this.wait(millis);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for the peer");
+            }
+        }
+
+        void flushControl() throws IOException {
+            boolean control;
+            synchronized (PeerLink.this) {
+                control = takeControl();
+            }
+            if (control) {
+                writeControl();
+            }
+        }
+
+        private void writeControl() throws IOException {
+            if (mSessionOut) {
+                mSessionOut = false;
+                ensureFrameCapacity(HEADER_LENGTH + ReliableSession.STATE_LENGTH);
+                writeHeader(TYPE_SESSION, 0, ReliableSession.STATE_LENGTH);
+                mSession.writeState(mFrame, HEADER_LENGTH);
+                mOut.write(mFrame, 0, HEADER_LENGTH + ReliableSession.STATE_LENGTH);
+            }
+            if (mCreditOut > 0) {
+                writeHeader(TYPE_CREDIT, 0, 4);
+                putInt(mFrame, HEADER_LENGTH, mCreditOut);
+                mOut.write(mFrame, 0, HEADER_LENGTH + 4);
+                mCreditOut = 0;
+            }
+            if (mAckOut >= 0) {
+                writeHeader(TYPE_ACK, 0, SEQUENCE_LENGTH);
+                ReliableSession.putLong(mFrame, HEADER_LENGTH, mAckOut);
+                mOut.write(mFrame, 0, HEADER_LENGTH + SEQUENCE_LENGTH);
+                mAckOut = -1;
+            }
+            if (mPongOut >= 0) {
+                writeHeader(TYPE_PONG, 0, SEQUENCE_LENGTH);
+                ReliableSession.putLong(mFrame, HEADER_LENGTH, mPongOut);
+                mOut.write(mFrame, 0, HEADER_LENGTH + SEQUENCE_LENGTH);
+                mPongOut = -1;
+            }
+            if (mPingOut >= 0) {
+                writeHeader(TYPE_PING, 0, SEQUENCE_LENGTH);
+                ReliableSession.putLong(mFrame, HEADER_LENGTH, mPingOut);
+                mOut.write(mFrame, 0, HEADER_LENGTH + SEQUENCE_LENGTH);
+                mPingOut = -1;
+            }
+        }
+
+        private void writePayload(int channel, long seq, byte[] buffer, int offset, int length)
+                throws IOException {
+            if (!mCompress) {
+                writeFrame(channel, seq, buffer, offset, length);
+            } else if (length < MIN_COMPRESS_SIZE || mSkip > 0) {
+                if (mSkip > 0) {
+                    mSkip--;
+                }
+                mMetrics.compressionSkipped.increment();
+                writeFrame(channel, seq, buffer, offset, length);
+            } else if (!deflate(channel, seq, buffer, offset, length)) {
+                mSkip = SKIP_AFTER_INCOMPRESSIBLE;
+                mMetrics.compressionSkipped.increment();
+                mMetrics.compressionBytesIn.add(length);
+                mMetrics.compressionBytesOut.add(length);
+                writeFrame(channel, seq, buffer, offset, length);
+            }
+        }
+
+        private void writeFrame(int channel, long seq, byte[] buffer, int offset, int length)
+                throws IOException {
+            int prefix = (seq >= 0 ? SEQUENCE_LENGTH : 0) + (channel != 0 ? 1 : 0);
+            ensureFrameCapacity(HEADER_LENGTH + prefix + length);
+            writePayloadHeader(channel, seq, 0, length);
+            System.arraycopy(buffer, offset, mFrame, HEADER_LENGTH + prefix, length);
+            mOut.write(mFrame, 0, HEADER_LENGTH + prefix + length);
+        }
+
+        // Sends the payload compressed, unless that doesn't make it smaller
+        private boolean deflate(int channel, long seq, byte[] buffer, int offset, int length)
+                throws IOException {
+            long start = System.nanoTime();
+            int prefix = (seq >= 0 ? SEQUENCE_LENGTH : 0) + (channel != 0 ? 1 : 0);
+            int body = HEADER_LENGTH + prefix + 4;
+            // Anything not smaller than the payload is of no use
+            int limit = length - 1;
+            ensureFrameCapacity(body + limit);
+            mDeflater.reset();
+            if (mDictionary != null) {
+                mDeflater.setDictionary(mDictionary);
+            }
+            mDeflater.setInput(buffer, offset, length);
+            mDeflater.finish();
+            int compressed = 0;
+            while (!mDeflater.finished() && compressed < limit) {
+                int count = mDeflater.deflate(mFrame, body + compressed, limit - compressed);
+                if (count == 0) {
+                    break;
+                }
+                compressed += count;
+            }
+            mMetrics.compressTime.record((System.nanoTime() - start) / 1000);
+            if (!mDeflater.finished() || 4 + compressed >= length) {
+                return false;
+            }
+            putInt(mFrame, HEADER_LENGTH + prefix, length);
+            writePayloadHeader(channel, seq, FLAG_DEFLATE, 4 + compressed);
+            mOut.write(mFrame, 0, body + compressed);
+            mMetrics.compressionBytesIn.add(length);
+            mMetrics.compressionBytesOut.add(4 + compressed);
+            return true;
+        }
+
+        // Header, offset and channel number of a data or channel frame, the frame buffer is
+        // large enough already
+        private void writePayloadHeader(int channel, long seq, int flags, int length) {
+            int prefix = 0;
+            if (seq >= 0) {
+                flags |= FLAG_SEQUENCED;
+                prefix += SEQUENCE_LENGTH;
+            }
+            if (channel != 0) {
+                prefix++;
+            }
+            writeHeader(channel != 0 ? TYPE_CHANNEL : TYPE_DATA, flags, prefix + length);
+            if (seq >= 0) {
+                ReliableSession.putLong(mFrame, HEADER_LENGTH, seq);
+            }
+            if (channel != 0) {
+                mFrame[HEADER_LENGTH + prefix - 1] = (byte) channel;
+            }
+        }
+
+        private void writeHeader(int type, int flags, int length) {
+            mFrame[0] = (byte) type;
+            mFrame[1] = (byte) flags;
+            putInt(mFrame, 2, length);
+        }
+
+        private void ensureFrameCapacity(int capacity) {
+            if (mFrame.length < capacity) {
+                mFrame = new byte[Math.max(capacity, mFrame.length * 2)];
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-memory {@link Transport}. Links created by {@link #createLink(String, UUID, boolean)}
+ * connect to whichever {@link Acceptor} of the same instance listens on the same uuid,
+ * addresses are not interpreted. Connecting while nobody listens is refused.
+ */
+public class PipeTransport implements Transport {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final int mBufferSize;
+
+    private final Map<UUID, PipeAcceptor> mAcceptors = new HashMap<>();
+
+    public PipeTransport() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public PipeTransport(int bufferSize) {
+        mBufferSize = bufferSize;
+    }
+
+    @Override
+    public Link createLink(String address, UUID uuid, boolean secure) {
+        return new PipeLink(address, uuid);
+    }
+
+    @Override
+    public synchronized Acceptor listen(String name, UUID uuid, boolean secure) throws IOException {
+        if (mAcceptors.containsKey(uuid)) {
+            throw new IOException("Already listening on " + uuid);
+        }
+        PipeAcceptor acceptor = new PipeAcceptor(uuid);
+        mAcceptors.put(uuid, acceptor);
+        return acceptor;
+    }
+
+    private synchronized PipeAcceptor acceptorFor(UUID uuid) {
+        return mAcceptors.get(uuid);
+    }
+
+    private synchronized void remove(PipeAcceptor acceptor) {
+        if (mAcceptors.get(acceptor.mmUuid) == acceptor) {
+            mAcceptors.remove(acceptor.mmUuid);
+        }
+    }
+
+    private class PipeLink implements Link {
+        private final String mmAddress;
+        private final UUID mmUuid;
+        private volatile BytePipe mmIn;
+        private volatile BytePipe mmOut;
+        private volatile boolean mmClosed;
+
+        PipeLink(String address, UUID uuid) {
+            mmAddress = address;
+            mmUuid = uuid;
+        }
+
+        PipeLink(String address, BytePipe in, BytePipe out) {
+            this(address, (UUID) null);
+            mmIn = in;
+            mmOut = out;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            PipeAcceptor acceptor = acceptorFor(mmUuid);
+            if (acceptor == null || mmClosed) {
+                throw new IOException("Connection refused");
+            }
+            BytePipe in = new BytePipe(mBufferSize);
+            BytePipe out = new BytePipe(mBufferSize);
+            mmIn = in;
+            mmOut = out;
+            acceptor.offer(new PipeLink(mmAddress, out, in));
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (mmIn == null) {
+                throw new IOException("Not connected");
+            }
+            return mmIn.source();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (mmOut == null) {
+                throw new IOException("Not connected");
+            }
+            return mmOut.sink();
+        }
+
+        @Override
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public void close() {
+            mmClosed = true;
+            if (mmIn != null) {
+                mmIn.close();
+            }
+            if (mmOut != null) {
+                mmOut.close();
+            }
+        }
+    }
+
+    private class PipeAcceptor implements Acceptor {
+        private final UUID mmUuid;
+        private final LinkedBlockingQueue<PipeLink> mmPending = new LinkedBlockingQueue<>();
+        private final PipeLink mmClosedMarker = new PipeLink(null, null, null);
+        private volatile boolean mmClosed;
+
+        PipeAcceptor(UUID uuid) {
+            mmUuid = uuid;
+        }
+
+        void offer(PipeLink link) throws IOException {
+            if (mmClosed) {
+                link.close();
+                throw new IOException("Connection refused");
+            }
+            mmPending.add(link);
+        }
+
+        @Override
+        public Link accept() throws IOException {
+            PipeLink link;
+            try {
+                link = mmPending.take();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+            if (link == mmClosedMarker) {
+                mmPending.add(mmClosedMarker);
+                throw new IOException("Acceptor closed");
+            }
+            return link;
+        }
+
+        @Override
+        public void close() {
+            mmClosed = true;
+            remove(this);
+            mmPending.add(mmClosedMarker);
+        }
+    }
+}
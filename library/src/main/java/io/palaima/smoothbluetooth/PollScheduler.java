@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends registered commands periodically, each at its own rate, through a {@link Requester}.
+ *
+ * <p>The command due first is sent first, and a poll never has more than one request out, so
+ * slow and fast polls interleave instead of bunching up. Due times advance by whole periods,
+ * so they don't drift with response times; a poll that fell behind skips the missed periods
+ * rather than sending a burst.
+ *
+ * <p>The link can carry about {@code maxOutstanding / round trip time} requests per second.
+ * When the requested rates add up to more than {@link #UTILIZATION} of that, rates are cut
+ * max-min fair: polls asking for less than an equal share keep their rate, the fastest polls
+ * give up the difference. Rates go back up as soon as the round trip time allows it.
+ *
+ * <p>Response handlers are called on the thread which completes the request, for
+ * {@link SmoothBluetooth} that is the bluetooth read thread.
+ */
+public class PollScheduler {
+
+    /** Share of the measured link capacity polls may use, the rest is left for other requests. */
+    public static final double UTILIZATION = 0.9;
+
+    static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+
+    // Achieved rates are counted over windows this long
+    static final long ACHIEVED_WINDOW_NANOS = 10000000000L;
+
+    // How often the rates are recomputed from the round trip time
+    private static final long ADAPT_INTERVAL_NANOS = 500000000L;
+
+    public interface Requester {
+        RequestFuture request(byte[] command, long timeoutMillis);
+    }
+
+    /**
+     * A registered command. Rates are in requests per second.
+     */
+    public static class Poll {
+        private final PollScheduler mScheduler;
+        private final byte[] mCommand;
+        private final RequestFuture.Callback mHandler;
+
+        // Guarded by mScheduler
+        private double mRequestedRate;
+        private double mScheduledRate;
+        private long mPeriodNanos;
+        private long mDueNanos;
+        private boolean mOutstanding;
+        private long mResponses;
+        private long mFailures;
+        private long mWindowStartNanos;
+        private long mWindowResponses;
+        private double mAchievedRate = -1;
+
+        Poll(PollScheduler scheduler, byte[] command, double rate, RequestFuture.Callback handler) {
+            mScheduler = scheduler;
+            mCommand = command;
+            mHandler = handler;
+            mRequestedRate = rate;
+        }
+
+        public byte[] getCommand() {
+            return mCommand.clone();
+        }
+
+        public double getRequestedRate() {
+            synchronized (mScheduler) {
+                return mRequestedRate;
+            }
+        }
+
+        /**
+         * The rate the scheduler currently aims for, lower than requested while the link
+         * can't keep up.
+         */
+        public double getScheduledRate() {
+            synchronized (mScheduler) {
+                return mScheduledRate;
+            }
+        }
+
+        /**
+         * Responses per second over the last complete window of ten seconds, or since the poll
+         * was added if no window has completed yet.
+         */
+        public double getAchievedRate() {
+            synchronized (mScheduler) {
+                if (mAchievedRate >= 0) {
+                    return mAchievedRate;
+                }
+                long elapsed = System.nanoTime() - mWindowStartNanos;
+                return elapsed > 0 ? mWindowResponses * 1e9 / elapsed : 0;
+            }
+        }
+
+        public long getResponses() {
+            synchronized (mScheduler) {
+                return mResponses;
+            }
+        }
+
+        public long getFailures() {
+            synchronized (mScheduler) {
+                return mFailures;
+            }
+        }
+
+        public void setRequestedRate(double rate) {
+            mScheduler.setRate(this, rate);
+        }
+
+        public void cancel() {
+            mScheduler.remove(this);
+        }
+
+        @Override
+        public String toString() {
+            synchronized (mScheduler) {
+                return String.format("%s requested=%.2f scheduled=%.2f achieved=%.2f failures=%d",
+                        new String(mCommand), mRequestedRate, mScheduledRate,
+                        getAchievedRate(), mFailures);
+            }
+        }
+    }
+
+    private static final Comparator<Poll> BY_REQUESTED_RATE = new Comparator<Poll>() {
+        @Override
+        public int compare(Poll lhs, Poll rhs) {
+            return Double.compare(lhs.mRequestedRate, rhs.mRequestedRate);
+        }
+    };
+
+    private final Requester mRequester;
+
+    // Guarded by this
+    private final List<Poll> mPolls = new ArrayList<>();
+    private int mMaxOutstanding = 1;
+    private int mOutstanding;
+    private long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private long mRoundTripNanos;
+    private long mAdaptedNanos;
+    private Thread mThread;
+
+    public PollScheduler(Requester requester) {
+        mRequester = requester;
+    }
+
+    /**
+     * Registers a command to be sent {@code rate} times per second. The handler gets every
+     * response and every failure.
+     */
+    public Poll add(String command, double rate, RequestFuture.Callback handler) {
+        return add(command.getBytes(), rate, handler);
+    }
+
+    public synchronized Poll add(byte[] command, double rate, RequestFuture.Callback handler) {
+        checkRate(rate);
+        Poll poll = new Poll(this, command.clone(), rate, handler);
+        long now = System.nanoTime();
+        poll.mWindowStartNanos = now;
+        mPolls.add(poll);
+        adapt(now);
+        // First request goes out right away
+        poll.mDueNanos = now;
+        notifyAll();
+        return poll;
+    }
+
+    public synchronized List<Poll> getPolls() {
+        return new ArrayList<>(mPolls);
+    }
+
+    /**
+     * Sets how many poll requests may be out at once, 1 by default. Should match the
+     * requester's own limit, e.g. {@link SmoothBluetooth#setMaxRequestsInFlight(int)}.
+     */
+    public synchronized void setMaxOutstanding(int maxOutstanding) {
+        if (maxOutstanding < 1) {
+            throw new IllegalArgumentException("At least one request must be outstanding");
+        }
+        mMaxOutstanding = maxOutstanding;
+        adapt(System.nanoTime());
+        notifyAll();
+    }
+
+    public synchronized void setRequestTimeout(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Smoothed round trip time of poll requests in microseconds, 0 before the first response.
+     */
+    public synchronized long getRoundTripMicros() {
+        return mRoundTripNanos / 1000;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread("PollScheduler") {
+            @Override
+            public void run() {
+                schedule(this);
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops sending, requests already out still complete. Waits for the scheduler thread
+     * unless called from it.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+            notifyAll();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder report = new StringBuilder("rtt=").append(getRoundTripMicros()).append("us");
+        for (Poll poll : mPolls) {
+            report.append('\n').append(poll);
+        }
+        return report.toString();
+    }
+
+    private synchronized void setRate(Poll poll, double rate) {
+        checkRate(rate);
+        poll.mRequestedRate = rate;
+        adapt(System.nanoTime());
+        notifyAll();
+    }
+
+    private synchronized void remove(Poll poll) {
+        if (mPolls.remove(poll)) {
+            adapt(System.nanoTime());
+        }
+    }
+
+    private static void checkRate(double rate) {
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException("Rate must be positive: " + rate);
+        }
+    }
+
+    private void schedule(Thread self) {
+        while (true) {
+            Poll next;
+            synchronized (this) {
+                next = null;
+                while (mThread == self) {
+                    long now = System.nanoTime();
+                    if (now - mAdaptedNanos >= ADAPT_INTERVAL_NANOS) {
+                        adapt(now);
+                    }
+                    long waitNanos = ADAPT_INTERVAL_NANOS;
+                    if (mOutstanding < mMaxOutstanding) {
+                        next = earliestDue();
+                        if (next != null && next.mDueNanos - now <= 0) {
+                            break;
+                        }
+                        if (next != null) {
+                            waitNanos = Math.min(waitNanos, next.mDueNanos - now);
+                        }
+                        next = null;
+                    }
+                    try {
+                        wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (next == null) {
+                    return;
+                }
+                long now = System.nanoTime();
+                next.mDueNanos += next.mPeriodNanos;
+                if (next.mDueNanos - now < 0) {
+                    // Fell behind, skip what was missed instead of catching up in a burst
+                    next.mDueNanos = now + next.mPeriodNanos;
+                }
+                next.mOutstanding = true;
+                mOutstanding++;
+            }
+            // Outside the lock, the requester may complete on another thread holding its own
+            send(next);
+        }
+    }
+
+    private Poll earliestDue() {
+        Poll earliest = null;
+        for (Poll poll : mPolls) {
+            if (!poll.mOutstanding && (earliest == null || poll.mDueNanos - earliest.mDueNanos < 0)) {
+                earliest = poll;
+            }
+        }
+        return earliest;
+    }
+
+    private void send(final Poll poll) {
+        final long sentNanos = System.nanoTime();
+        long timeoutMillis;
+        synchronized (this) {
+            timeoutMillis = mTimeoutMillis;
+        }
+        RequestFuture future = mRequester.request(poll.mCommand, timeoutMillis);
+        future.setCallback(new RequestFuture.Callback() {
+            @Override
+            public void onResponse(byte[] response) {
+                completed(poll, System.nanoTime() - sentNanos, true);
+                if (poll.mHandler != null) {
+                    poll.mHandler.onResponse(response);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                // A timeout means the link is slower than measured, count it as a round trip
+                completed(poll, error instanceof TimeoutException
+                        ? System.nanoTime() - sentNanos : 0, false);
+                if (poll.mHandler != null) {
+                    poll.mHandler.onFailure(error);
+                }
+            }
+        });
+    }
+
+    private synchronized void completed(Poll poll, long roundTripNanos, boolean success) {
+        poll.mOutstanding = false;
+        mOutstanding--;
+        long now = System.nanoTime();
+        if (success) {
+            poll.mResponses++;
+            poll.mWindowResponses++;
+        } else {
+            poll.mFailures++;
+        }
+        if (now - poll.mWindowStartNanos >= ACHIEVED_WINDOW_NANOS) {
+            poll.mAchievedRate = poll.mWindowResponses * 1e9 / (now - poll.mWindowStartNanos);
+            poll.mWindowResponses = 0;
+            poll.mWindowStartNanos = now;
+        }
+        if (roundTripNanos > 0) {
+            // Same smoothing as TCP's srtt
+            mRoundTripNanos = mRoundTripNanos == 0
+                    ? roundTripNanos : mRoundTripNanos + (roundTripNanos - mRoundTripNanos) / 8;
+        }
+        notifyAll();
+    }
+
+    // Splits the capacity the round trip time allows between polls, max-min fair
+    private void adapt(long now) {
+        mAdaptedNanos = now;
+        double budget = mRoundTripNanos > 0
+                ? UTILIZATION * mMaxOutstanding * 1e9 / mRoundTripNanos : Double.MAX_VALUE;
+        Poll[] polls = mPolls.toArray(new Poll[mPolls.size()]);
+        Arrays.sort(polls, BY_REQUESTED_RATE);
+        for (int i = 0; i < polls.length; i++) {
+            Poll poll = polls[i];
+            double share = budget / (polls.length - i);
+            double rate = Math.min(poll.mRequestedRate, share);
+            budget -= rate;
+            if (rate != poll.mScheduledRate) {
+                long period = (long) (1e9 / rate);
+                // Keep the phase, just move the next due time to the new period
+                poll.mDueNanos += period - poll.mPeriodNanos;
+                poll.mScheduledRate = rate;
+                poll.mPeriodNanos = period;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link DataPublisher} as a Reactive Streams {@link Publisher}, for reactive libraries which
+ * take one. Needs {@code org.reactivestreams:reactive-streams} on the app's classpath, the
+ * library only compiles against it. Signals, demand and threads are those of the wrapped
+ * publisher.
+ */
+public final class ReactiveDataPublisher implements Publisher<ByteBuffer> {
+
+    private final DataPublisher mPublisher;
+
+    public ReactiveDataPublisher(DataPublisher publisher) {
+        if (publisher == null) {
+            throw new NullPointerException("publisher");
+        }
+        mPublisher = publisher;
+    }
+
+    @Override
+    public void subscribe(final Subscriber<? super ByteBuffer> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        mPublisher.subscribe(new DataPublisher.Subscriber() {
+            @Override
+            public void onSubscribe(final DataPublisher.Subscription subscription) {
+                subscriber.onSubscribe(new Subscription() {
+                    @Override
+                    public void request(long n) {
+                        subscription.request(n);
+                    }
+
+                    @Override
+                    public void cancel() {
+                        subscription.cancel();
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(ByteBuffer data) {
+                subscriber.onNext(data);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                subscriber.onError(error);
+            }
+
+            @Override
+            public void onComplete() {
+                subscriber.onComplete();
+            }
+        });
+    }
+}
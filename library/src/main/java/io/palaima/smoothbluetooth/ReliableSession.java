@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+
+/**
+ * State of reliable delivery which outlives a single connection: what was sent but not yet
+ * acknowledged, and how far the peer's data was received.
+ *
+ * <p>Both directions count payload bytes from the start of the sending session, so a new
+ * connection can resume by exchanging these offsets. Acknowledged data is dropped right away,
+ * unacknowledged data is kept up to the capacity and sent again after a reconnect.
+ */
+class ReliableSession {
+
+    static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    // id(8) known peer id(8) inbound next(8) outbound start(8)
+    static final int STATE_LENGTH = 32;
+
+    static class Record {
+        final long mSeq;
+        final int mChannel;
+        final byte[] mData;
+
+        Record(long seq, int channel, byte[] data) {
+            mSeq = seq;
+            mChannel = channel;
+            mData = data;
+        }
+    }
+
+    private final long mId;
+    private final int mCapacity;
+    private final Counter mUnacked;
+
+    // Guarded by this
+    private final ArrayDeque<Record> mLog = new ArrayDeque<>();
+    private long mLogBytes;
+    private long mNextSeq;
+    private long mAcked;
+    private long mPeerId;
+    private long mInboundNext;
+
+    ReliableSession(int capacity, Counter unacked) {
+        long id;
+        SecureRandom random = new SecureRandom();
+        do {
+            id = random.nextLong();
+        } while (id == 0);
+        mId = id;
+        mCapacity = capacity;
+        mUnacked = unacked;
+    }
+
+    long getId() {
+        return mId;
+    }
+
+    /**
+     * Id of the peer session last connected to, 0 before the first connection.
+     */
+    synchronized long getPeerId() {
+        return mPeerId;
+    }
+
+    /**
+     * True if the data fits, anything fits into an empty log so large writes can't get stuck.
+     */
+    synchronized boolean hasRoom(int length) {
+        return mLogBytes == 0 || mLogBytes + length <= mCapacity;
+    }
+
+    /**
+     * Keeps a copy of the data until it is acknowledged, returns the offset of its first byte.
+     */
+    synchronized long append(int channel, byte[] buffer, int offset, int length) {
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, offset, data, 0, length);
+        long seq = mNextSeq;
+        mLog.add(new Record(seq, channel, data));
+        mLogBytes += length;
+        mNextSeq += length;
+        mUnacked.set(mNextSeq - mAcked);
+        return seq;
+    }
+
+    /**
+     * The peer received everything before {@code next}.
+     */
+    synchronized void ack(long next) throws IOException {
+        if (next < mAcked || next > mNextSeq) {
+            throw new IOException("Bad acknowledgement " + next);
+        }
+        mAcked = next;
+        Record head;
+        while ((head = mLog.peek()) != null && head.mSeq + head.mData.length <= next) {
+            mLog.poll();
+            mLogBytes -= head.mData.length;
+        }
+        mUnacked.set(mNextSeq - mAcked);
+    }
+
+    synchronized Record[] unacked() {
+        return mLog.toArray(new Record[mLog.size()]);
+    }
+
+    synchronized long inboundNext() {
+        return mInboundNext;
+    }
+
+    synchronized void received(int length) {
+        mInboundNext += length;
+    }
+
+    synchronized void writeState(byte[] buffer, int offset) {
+        putLong(buffer, offset, mId);
+        putLong(buffer, offset + 8, mPeerId);
+        putLong(buffer, offset + 16, mInboundNext);
+        putLong(buffer, offset + 24, mAcked);
+    }
+
+    /**
+     * Takes the state the peer sent for a new connection. Returns the offset to send again
+     * from, or -1 if the peer has no state for this session and there is nothing to resume.
+     */
+    synchronized long onPeerState(byte[] buffer, int offset) throws IOException {
+        long peerId = getLong(buffer, offset);
+        long knownId = getLong(buffer, offset + 8);
+        long peerInboundNext = getLong(buffer, offset + 16);
+        long peerOutboundStart = getLong(buffer, offset + 24);
+        if (peerId != mPeerId) {
+            // A new peer session, its data starts where its log does
+            mPeerId = peerId;
+            mInboundNext = peerOutboundStart;
+        } else if (peerOutboundStart > mInboundNext) {
+            throw new IOException("Peer dropped data which was not received");
+        }
+        if (knownId != mId) {
+            // Whatever is unacknowledged was meant for an earlier peer session
+            ack(mNextSeq);
+            return -1;
+        }
+        ack(peerInboundNext);
+        return peerInboundNext;
+    }
+
+    static void putLong(byte[] buffer, int offset, long value) {
+        PeerLink.putInt(buffer, offset, (int) (value >>> 32));
+        PeerLink.putInt(buffer, offset + 4, (int) value);
+    }
+
+    static long getLong(byte[] buffer, int offset) {
+        return (long) PeerLink.getInt(buffer, offset) << 32
+                | PeerLink.getInt(buffer, offset + 4) & 0xFFFFFFFFL;
+    }
+}
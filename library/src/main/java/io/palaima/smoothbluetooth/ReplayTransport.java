@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link Transport} which plays the received side of a {@link TrafficCapture} back. Every link
+ * delivers the incoming records of the capture with their original spacing divided by the
+ * speed, then ends the stream. Anything written to the link is discarded.
+ */
+public class ReplayTransport implements Transport {
+
+    private final File mCapture;
+    private final float mSpeed;
+
+    /**
+     * @param speed 1 for original timing, 10 for ten times faster, 0 for no delays at all
+     */
+    public ReplayTransport(File capture, float speed) {
+        mCapture = capture;
+        mSpeed = speed;
+    }
+
+    @Override
+    public Link createLink(String address, UUID uuid, boolean secure) {
+        return new ReplayLink(address);
+    }
+
+    /**
+     * Nothing dials in during a replay, the acceptor just blocks until it is closed.
+     */
+    @Override
+    public Acceptor listen(String name, UUID uuid, boolean secure) {
+        return new Acceptor() {
+            private boolean mmClosed;
+
+            @Override
+            public synchronized Link accept() throws IOException {
+                try {
+                    while (!mmClosed) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                throw new IOException("Acceptor closed");
+            }
+
+            @Override
+            public synchronized void close() {
+                mmClosed = true;
+                notifyAll();
+            }
+        };
+    }
+
+    private class ReplayLink implements Link {
+        private final String mmAddress;
+        private final BytePipe mmIn = new BytePipe(PipeTransport.DEFAULT_BUFFER_SIZE);
+        private final OutputStream mmOut = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        private Thread mmPlayer;
+
+        ReplayLink(String address) {
+            mmAddress = address;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            final TrafficCapture capture = TrafficCapture.open(mCapture);
+            mmPlayer = new Thread("ReplayPlayer") {
+                @Override
+                public void run() {
+                    try {
+                        play(capture);
+                    } catch (IOException ignored) {
+                        // Link closed while playing
+                    } finally {
+                        mmIn.close();
+                    }
+                }
+            };
+            mmPlayer.setDaemon(true);
+            mmPlayer.start();
+        }
+
+        private void play(TrafficCapture capture) throws IOException {
+            long firstNanos = -1;
+            long startNanos = System.nanoTime();
+            byte[] buffer = new byte[256];
+            while (capture.next()) {
+                if (capture.getDirection() != TrafficRecorder.DIRECTION_IN) {
+                    continue;
+                }
+                if (firstNanos < 0) {
+                    firstNanos = capture.getNanos();
+                }
+                if (mSpeed > 0) {
+                    long due = startNanos + (long) ((capture.getNanos() - firstNanos) / mSpeed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                }
+                int length = capture.getLength();
+                if (length > buffer.length) {
+                    buffer = new byte[length];
+                }
+                capture.getPayload(buffer, 0);
+                mmIn.write(buffer, 0, length);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mmIn.source();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mmOut;
+        }
+
+        @Override
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public void close() {
+            mmIn.close();
+        }
+    }
+}
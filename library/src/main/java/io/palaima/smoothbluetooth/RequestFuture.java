@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of {@link SmoothBluetooth#request(String, long)}, completed with the response frame.
+ * The frame excludes the prompt. A request which timed out fails with
+ * {@link TimeoutException}, one which was cut by a disconnect with {@link java.io.IOException}.
+ */
+public class RequestFuture implements Future<byte[]> {
+
+    public interface Callback {
+        void onResponse(byte[] response);
+        void onFailure(Throwable error);
+    }
+
+    private byte[] mResponse;
+    private Throwable mError;
+    private boolean mDone;
+    private boolean mCancelled;
+    private Callback mCallback;
+
+    /**
+     * The callback gets the result from the thread which completes the request. If the
+     * request is already done it is called right away.
+     */
+    public void setCallback(Callback callback) {
+        synchronized (this) {
+            mCallback = callback;
+            if (!mDone || mCancelled) {
+                return;
+            }
+        }
+        notifyCallback(callback);
+    }
+
+    boolean complete(byte[] response) {
+        Callback callback;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mResponse = response;
+            mDone = true;
+            notifyAll();
+            callback = mCallback;
+        }
+        if (callback != null) {
+            callback.onResponse(response);
+        }
+        return true;
+    }
+
+    boolean fail(Throwable error) {
+        Callback callback;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mError = error;
+            mDone = true;
+            notifyAll();
+            callback = mCallback;
+        }
+        if (callback != null) {
+            callback.onFailure(error);
+        }
+        return true;
+    }
+
+    private void notifyCallback(Callback callback) {
+        if (mError != null) {
+            callback.onFailure(mError);
+        } else {
+            callback.onResponse(mResponse);
+        }
+    }
+
+    /**
+     * Gives up waiting. A command already sent still takes its place in the pipeline until
+     * its response arrives.
+     */
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (mDone) {
+            return false;
+        }
+        mCancelled = true;
+        mDone = true;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized byte[] get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized byte[] get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            wait(remaining / 1000000L, (int) (remaining % 1000000L));
+        }
+        return result();
+    }
+
+    private byte[] result() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mResponse;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends commands and matches the prompt terminated replies to them in FIFO order. Up to
+ * {@link #setMaxInFlight(int)} commands are on the wire at once, the rest wait in a queue.
+ *
+ * <p>A command which timed out keeps its place until its reply shows up, otherwise the next
+ * reply would be matched to the wrong command. If no reply comes within another timeout
+ * period, and at least {@link #MIN_REPLY_LOST_MILLIS}, the reply is considered lost and the
+ * place is freed.
+ *
+ * <p>Commands are queued for the write thread without waiting for room, a command which
+ * doesn't fit fails its request. Futures are completed after the pipeline's lock is let go,
+ * so callbacks may submit again and a slow one doesn't hold up other threads' requests.
+ *
+ * <p>{@link #onDisconnected()} is called holding the service's lock, which the writer takes
+ * too, so it only counts the disconnect. Requests sent before it fail on the timer thread, or
+ * on whichever thread takes the pipeline's lock first.
+ */
+class RequestPipeline implements DelimiterFramer.FrameListener {
+
+    static final long MIN_REPLY_LOST_MILLIS = 1000;
+    // A longer reply fails its request, a device which never prompts can't use up the memory
+    static final int MAX_RESPONSE_LENGTH = 8 * 1024;
+
+    interface Writer {
+        /**
+         * Queues the command without waiting, returns false if it can't be sent.
+         */
+        boolean write(byte[] command);
+    }
+
+    private static class Request {
+        final byte[] mCommand;
+        final long mTimeoutMillis;
+        final RequestFuture mFuture = new RequestFuture();
+        ScheduledFuture<?> mTimeout;
+        long mSentNanos;
+        boolean mTimedOut;
+        // Result to hand to the future once the lock is let go
+        byte[] mResponse;
+        Throwable mError;
+
+        Request(byte[] command, long timeoutMillis) {
+            mCommand = command;
+            mTimeoutMillis = timeoutMillis;
+        }
+    }
+
+    private final Writer mWriter;
+    private final Metrics mMetrics;
+    private final byte[] mTerminator;
+    private final DelimiterFramer mFramer;
+    private final ScheduledExecutorService mTimer;
+    private final AtomicInteger mDisconnects = new AtomicInteger();
+    private final Runnable mFailDisconnected = new Runnable() {
+        @Override
+        public void run() {
+            List<Request> done;
+            synchronized (RequestPipeline.this) {
+                failDisconnected();
+                done = takeDone();
+            }
+            finish(done);
+        }
+    };
+
+    // Guarded by this
+    private final LinkedList<Request> mQueued = new LinkedList<>();
+    private final LinkedList<Request> mInFlight = new LinkedList<>();
+    private final ArrayList<Request> mDone = new ArrayList<>();
+    private int mMaxInFlight = 1;
+    private boolean mClosed;
+    // Disconnects whose requests have been failed
+    private int mFailedDisconnects;
+
+    RequestPipeline(Writer writer, Metrics metrics, byte[] terminator, int delimiter) {
+        mWriter = writer;
+        mMetrics = metrics;
+        mTerminator = terminator;
+        mFramer = new DelimiterFramer(delimiter, MAX_RESPONSE_LENGTH, this);
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RequestTimeouts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // No thread is kept around while nothing is pending
+        timer.setKeepAliveTime(1, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        mTimer = timer;
+    }
+
+    void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one request must be in flight");
+        }
+        List<Request> done;
+        synchronized (this) {
+            failDisconnected();
+            mMaxInFlight = maxInFlight;
+            sendQueued();
+            done = takeDone();
+        }
+        finish(done);
+    }
+
+    RequestFuture submit(byte[] command, long timeoutMillis) {
+        byte[] framed = new byte[command.length + mTerminator.length];
+        System.arraycopy(command, 0, framed, 0, command.length);
+        System.arraycopy(mTerminator, 0, framed, command.length, mTerminator.length);
+        final Request request = new Request(framed, timeoutMillis);
+        List<Request> done;
+        synchronized (this) {
+            if (mClosed) {
+                request.mFuture.fail(new IOException("Request format changed"));
+                return request.mFuture;
+            }
+            failDisconnected();
+            request.mTimeout = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onTimeout(request);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            mQueued.add(request);
+            sendQueued();
+            done = takeDone();
+        }
+        finish(done);
+        return request.mFuture;
+    }
+
+    // Bytes as they come from the socket, on the read thread
+    void onData(byte[] buffer, int length) {
+        List<Request> done;
+        synchronized (this) {
+            failDisconnected();
+            if (mInFlight.isEmpty()) {
+                // Nothing waits for a reply, e.g. the device's banner after connecting
+                mFramer.reset();
+            } else {
+                mFramer.onData(buffer, 0, length);
+            }
+            done = takeDone();
+        }
+        finish(done);
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int length) {
+        Request request = mInFlight.poll();
+        if (request == null) {
+            // Unsolicited prompt, e.g. right after connecting
+            return;
+        }
+        request.mTimeout.cancel(false);
+        if (!request.mTimedOut) {
+            byte[] response = new byte[length];
+            System.arraycopy(buffer, 0, response, 0, length);
+            mMetrics.requestRoundTrip.record((System.nanoTime() - request.mSentNanos) / 1000);
+            request.mResponse = response;
+            mDone.add(request);
+        }
+        sendQueued();
+    }
+
+    @Override
+    public void onFrameTooLong() {
+        Request request = mInFlight.poll();
+        if (request == null) {
+            return;
+        }
+        fail(request, new IOException("Response longer than " + MAX_RESPONSE_LENGTH + " bytes"));
+        sendQueued();
+    }
+
+    private void onTimeout(final Request request) {
+        List<Request> done;
+        synchronized (this) {
+            failDisconnected();
+            if (mQueued.remove(request)) {
+                mMetrics.requestTimeouts.increment();
+                request.mError = new TimeoutException("Request not sent in time");
+                mDone.add(request);
+            } else if (!request.mTimedOut && mInFlight.contains(request)) {
+                mMetrics.requestTimeouts.increment();
+                request.mTimedOut = true;
+                request.mError = new TimeoutException("No response in time");
+                mDone.add(request);
+                request.mTimeout = mTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onReplyLost(request);
+                    }
+                }, Math.max(request.mTimeoutMillis, MIN_REPLY_LOST_MILLIS), TimeUnit.MILLISECONDS);
+            }
+            done = takeDone();
+        }
+        finish(done);
+    }
+
+    private void onReplyLost(Request request) {
+        List<Request> done;
+        synchronized (this) {
+            failDisconnected();
+            if (mInFlight.remove(request)) {
+                sendQueued();
+            }
+            done = takeDone();
+        }
+        finish(done);
+    }
+
+    // Called with the lock held, so commands hit the wire in the order they are matched.
+    // The writer doesn't wait for room in the queue, the lock is held on the read thread.
+    private void sendQueued() {
+        while (mInFlight.size() < mMaxInFlight && !mQueued.isEmpty()) {
+            Request request = mQueued.poll();
+            if (request.mFuture.isCancelled()) {
+                request.mTimeout.cancel(false);
+                continue;
+            }
+            request.mSentNanos = System.nanoTime();
+            if (!mWriter.write(request.mCommand)) {
+                request.mTimeout.cancel(false);
+                request.mError = new IOException("Not sent, not connected or the queue is full");
+                mDone.add(request);
+                continue;
+            }
+            mInFlight.add(request);
+        }
+    }
+
+    // Called with the lock held
+    private List<Request> takeDone() {
+        if (mDone.isEmpty()) {
+            return null;
+        }
+        List<Request> done = new ArrayList<>(mDone);
+        mDone.clear();
+        return done;
+    }
+
+    // Completes futures, without the lock as their callbacks may call back in
+    private static void finish(List<Request> done) {
+        if (done == null) {
+            return;
+        }
+        for (Request request : done) {
+            if (request.mError != null) {
+                request.mFuture.fail(request.mError);
+            } else {
+                request.mFuture.complete(request.mResponse);
+            }
+        }
+    }
+
+    // Called with the lock held. Fails what was queued or in flight when the link went.
+    private void failDisconnected() {
+        int disconnects = mDisconnects.get();
+        if (disconnects == mFailedDisconnects) {
+            return;
+        }
+        mFailedDisconnects = disconnects;
+        for (Request request : mInFlight) {
+            fail(request, new IOException("Disconnected"));
+        }
+        for (Request request : mQueued) {
+            fail(request, new IOException("Disconnected"));
+        }
+        mInFlight.clear();
+        mQueued.clear();
+        mFramer.reset();
+    }
+
+    // Called with the lock held
+    private void fail(Request request, Throwable error) {
+        request.mTimeout.cancel(false);
+        // Already reported as timed out
+        if (!request.mTimedOut) {
+            request.mError = error;
+            mDone.add(request);
+        }
+    }
+
+    /**
+     * Fails everything queued or in flight, the link is gone. Doesn't take the lock, see the
+     * class comment.
+     */
+    void onDisconnected() {
+        mDisconnects.incrementAndGet();
+        try {
+            mTimer.execute(mFailDisconnected);
+        } catch (RejectedExecutionException e) {
+            // Closed, close() failed everything
+        }
+    }
+
+    /**
+     * Fails everything pending and lets the timer thread go, the pipeline is replaced.
+     */
+    void close() {
+        List<Request> done;
+        synchronized (this) {
+            mClosed = true;
+            mDisconnects.incrementAndGet();
+            failDisconnected();
+            done = takeDone();
+        }
+        finish(done);
+        mTimer.shutdown();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link Transport} backed by RFCOMM sockets of the default {@link BluetoothAdapter}.
+ */
+public class RfcommTransport implements Transport {
+
+    private final BluetoothAdapter mAdapter;
+
+    public RfcommTransport() {
+        this(BluetoothAdapter.getDefaultAdapter());
+    }
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    @Override
+    public Link createLink(String address, UUID uuid, boolean secure) throws IOException {
+        if (mAdapter == null || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            throw new IOException("Invalid bluetooth address " + address);
+        }
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        if (secure) {
+            return new RfcommLink(device.createRfcommSocketToServiceRecord(uuid), address);
+        } else {
+            return new RfcommLink(device.createInsecureRfcommSocketToServiceRecord(uuid), address);
+        }
+    }
+
+    @Override
+    public Acceptor listen(String name, UUID uuid, boolean secure) throws IOException {
+        if (mAdapter == null) {
+            throw new IOException("Bluetooth not supported");
+        }
+        if (secure) {
+            return new RfcommAcceptor(mAdapter.listenUsingRfcommWithServiceRecord(name, uuid));
+        } else {
+            return new RfcommAcceptor(mAdapter.listenUsingInsecureRfcommWithServiceRecord(name, uuid));
+        }
+    }
+
+    private class RfcommLink implements Link {
+        private final BluetoothSocket mmSocket;
+        private final String mmAddress;
+
+        RfcommLink(BluetoothSocket socket, String address) {
+            mmSocket = socket;
+            mmAddress = address;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            // Always cancel discovery because it will slow down a connection
+            mAdapter.cancelDiscovery();
+            mmSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+
+    private class RfcommAcceptor implements Acceptor {
+        private final BluetoothServerSocket mmServerSocket;
+
+        RfcommAcceptor(BluetoothServerSocket serverSocket) {
+            mmServerSocket = serverSocket;
+        }
+
+        @Override
+        public Link accept() throws IOException {
+            BluetoothSocket socket = mmServerSocket.accept();
+            return new RfcommLink(socket, socket.getRemoteDevice().getAddress());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmServerSocket.close();
+        }
+    }
+}
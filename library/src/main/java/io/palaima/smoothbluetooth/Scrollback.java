@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.nio.charset.Charset;
+
+/**
+ * Bounded history of received bytes, cut into lines by a delimiter byte which stays at the
+ * end of its line. Bytes live in a ring of fixed capacity and lines are kept as offsets into
+ * it, so appending never allocates. Once either the bytes or the lines are full, the oldest
+ * line is dropped. A line longer than the whole ring loses its oldest bytes.
+ *
+ * <p>Line 0 is the oldest line still kept. The line being received, after the last
+ * delimiter, is not counted until its delimiter comes. Lines are only turned into Strings
+ * when asked for, so a list adapter can bind the rows it shows straight to
+ * {@link #getLine(int)}.
+ */
+public final class Scrollback {
+
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    private final int mDelimiter;
+    private final byte[] mData;
+    // Start offsets of the lines kept, ring indexed by line number
+    private final long[] mStarts;
+    // Offsets and line numbers count everything ever appended
+    private long mHead;
+    private long mTail;
+    private long mPendingStart;
+    private long mFirstLine;
+    private long mLines;
+    // Reused by getLine()
+    private byte[] mScratch = new byte[64];
+
+    public Scrollback(int capacity, int maxLines, int delimiter) {
+        if (capacity <= 0 || maxLines <= 0) {
+            throw new IllegalArgumentException("Capacity and line limit must be positive");
+        }
+        mDelimiter = delimiter & 0xFF;
+        mData = new byte[capacity];
+        mStarts = new long[maxLines];
+    }
+
+    public synchronized void append(int data) {
+        if (mHead - mTail == mData.length) {
+            if (mLines > mFirstLine) {
+                dropLine();
+            } else {
+                mTail++;
+                mPendingStart = mTail;
+            }
+        }
+        mData[(int) (mHead % mData.length)] = (byte) data;
+        mHead++;
+        if ((data & 0xFF) == mDelimiter) {
+            if (mLines - mFirstLine == mStarts.length) {
+                dropLine();
+            }
+            mStarts[(int) (mLines % mStarts.length)] = mPendingStart;
+            mLines++;
+            mPendingStart = mHead;
+        }
+    }
+
+    public synchronized void append(byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            append(data[i]);
+        }
+    }
+
+    public void append(byte[] data) {
+        append(data, 0, data.length);
+    }
+
+    private void dropLine() {
+        mFirstLine++;
+        mTail = mFirstLine < mLines ? mStarts[(int) (mFirstLine % mStarts.length)] : mPendingStart;
+    }
+
+    /**
+     * Complete lines kept.
+     */
+    public synchronized int getLineCount() {
+        return (int) (mLines - mFirstLine);
+    }
+
+    /**
+     * Number of line 0 counted from the first line ever appended, it goes up as old lines are
+     * dropped.
+     */
+    public synchronized long getFirstLineNumber() {
+        return mFirstLine;
+    }
+
+    public synchronized int getLineLength(int index) {
+        checkIndex(index);
+        return (int) (end(index) - start(index));
+    }
+
+    /**
+     * Copies line {@code index} into {@code buffer} at {@code offset}, which must have room for
+     * {@link #getLineLength(int)} bytes.
+     *
+     * @return the length of the line
+     */
+    public synchronized int copyLine(int index, byte[] buffer, int offset) {
+        checkIndex(index);
+        long start = start(index);
+        int length = (int) (end(index) - start);
+        int from = (int) (start % mData.length);
+        int first = Math.min(length, mData.length - from);
+        System.arraycopy(mData, from, buffer, offset, first);
+        System.arraycopy(mData, 0, buffer, offset + first, length - first);
+        return length;
+    }
+
+    /**
+     * Line {@code index} with every byte taken as one character, delimiter included.
+     */
+    public synchronized String getLine(int index) {
+        int length = getLineLength(index);
+        if (mScratch.length < length) {
+            mScratch = new byte[Math.max(length, mScratch.length * 2)];
+        }
+        copyLine(index, mScratch, 0);
+        return new String(mScratch, 0, length, LATIN_1);
+    }
+
+    public synchronized void clear() {
+        mFirstLine = mLines;
+        mTail = mHead;
+        mPendingStart = mHead;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mLines - mFirstLine) {
+            throw new IndexOutOfBoundsException("Line " + index + " of " + (mLines - mFirstLine));
+        }
+    }
+
+    private long start(int index) {
+        return mStarts[(int) ((mFirstLine + index) % mStarts.length)];
+    }
+
+    private long end(int index) {
+        return index + 1 < mLines - mFirstLine ? start(index + 1) : mPendingStart;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Remote end of a {@link SimulatedTransport} link. Callbacks come from a single thread per
+ * link, bytes written to {@code out} travel back through the simulated link.
+ */
+public interface SimulatedDevice {
+
+    void onConnected(OutputStream out) throws IOException;
+
+    /**
+     * @param buffer reused after the call returns
+     */
+    void onDataReceived(byte[] buffer, int length, OutputStream out) throws IOException;
+
+    interface Factory {
+        /**
+         * Called for every connection, so every link gets its own device state.
+         */
+        SimulatedDevice create(String address);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Ready made {@link SimulatedDevice} behaviours.
+ */
+public final class SimulatedDevices {
+
+    private SimulatedDevices() {
+    }
+
+    /**
+     * Sends every received byte straight back.
+     */
+    public static SimulatedDevice.Factory echo() {
+        return new SimulatedDevice.Factory() {
+            @Override
+            public SimulatedDevice create(String address) {
+                return new SimulatedDevice() {
+                    @Override
+                    public void onConnected(OutputStream out) {
+                    }
+
+                    @Override
+                    public void onDataReceived(byte[] buffer, int length, OutputStream out)
+                            throws IOException {
+                        out.write(buffer, 0, length);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Behaves like an ELM327 adapter: commands end with CR, every reply is followed by
+     * {@code "\r\r>"}. Unknown commands are answered with {@code "?"}.
+     *
+     * @param responses replies keyed by command, commands are matched without spaces
+     *                  and case insensitively
+     */
+    public static SimulatedDevice.Factory prompt(Map<String, String> responses) {
+        final Map<String, String> normalized = new HashMap<>();
+        for (Map.Entry<String, String> entry : responses.entrySet()) {
+            normalized.put(normalize(entry.getKey()), entry.getValue());
+        }
+        return new SimulatedDevice.Factory() {
+            @Override
+            public SimulatedDevice create(String address) {
+                return new PromptDevice(normalized);
+            }
+        };
+    }
+
+    private static String normalize(String command) {
+        return command.replace(" ", "").toUpperCase();
+    }
+
+    private static class PromptDevice implements SimulatedDevice {
+        private final Map<String, String> mResponses;
+        private final StringBuilder mCommand = new StringBuilder();
+        private final ByteArrayOutputStream mReply = new ByteArrayOutputStream();
+
+        PromptDevice(Map<String, String> responses) {
+            mResponses = responses;
+        }
+
+        @Override
+        public void onConnected(OutputStream out) throws IOException {
+            out.write('>');
+        }
+
+        @Override
+        public void onDataReceived(byte[] buffer, int length, OutputStream out)
+                throws IOException {
+            for (int i = 0; i < length; i++) {
+                char c = (char) (buffer[i] & 0xFF);
+                if (c == '\r') {
+                    reply(out);
+                } else if (c != '\n') {
+                    mCommand.append(c);
+                }
+            }
+        }
+
+        private void reply(OutputStream out) throws IOException {
+            String response = mResponses.get(normalize(mCommand.toString()));
+            mCommand.setLength(0);
+            mReply.reset();
+            mReply.write((response != null ? response : "?").getBytes());
+            mReply.write(new byte[] {'\r', '\r', '>'});
+            // One write per reply, the way the adapter puts it on the wire
+            mReply.writeTo(out);
+        }
+    }
+}
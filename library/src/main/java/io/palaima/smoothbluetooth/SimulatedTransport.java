@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link Transport} whose links end in a {@link SimulatedDevice} instead of a radio. Both
+ * directions go through a simulated RFCOMM channel shaped by a {@link Profile}: bandwidth cap,
+ * latency with jitter, stalled writes, mid-stream disconnects and refused connects.
+ * Every link runs on its own two threads, so many devices can be driven concurrently.
+ */
+public class SimulatedTransport implements Transport {
+
+    private final Profile mProfile;
+    private final SimulatedDevice.Factory mDeviceFactory;
+    private final Random mRandom;
+    private final AtomicInteger mOpenLinks = new AtomicInteger();
+
+    public SimulatedTransport(SimulatedDevice.Factory deviceFactory) {
+        this(new Profile.Builder().build(), deviceFactory);
+    }
+
+    public SimulatedTransport(Profile profile, SimulatedDevice.Factory deviceFactory) {
+        mProfile = profile;
+        mDeviceFactory = deviceFactory;
+        mRandom = new Random(profile.mSeed);
+    }
+
+    /**
+     * Number of links which are connected and not closed yet.
+     */
+    public int getOpenLinkCount() {
+        return mOpenLinks.get();
+    }
+
+    @Override
+    public Link createLink(String address, UUID uuid, boolean secure) {
+        return new SimulatedLink(address);
+    }
+
+    /**
+     * Simulated devices never dial in, the acceptor just blocks until it is closed.
+     */
+    @Override
+    public Acceptor listen(String name, UUID uuid, boolean secure) {
+        return new Acceptor() {
+            private boolean mmClosed;
+
+            @Override
+            public synchronized Link accept() throws IOException {
+                try {
+                    while (!mmClosed) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                throw new IOException("Acceptor closed");
+            }
+
+            @Override
+            public synchronized void close() {
+                mmClosed = true;
+                notifyAll();
+            }
+        };
+    }
+
+    private boolean chance(double probability) {
+        if (probability <= 0) {
+            return false;
+        }
+        synchronized (mRandom) {
+            return mRandom.nextDouble() < probability;
+        }
+    }
+
+    private long jitterNanos() {
+        if (mProfile.mJitterMillis <= 0) {
+            return 0;
+        }
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * mProfile.mJitterMillis * 1000000L);
+        }
+    }
+
+    /**
+     * Link conditions. All values default to an ideal link apart from the bandwidth, which
+     * defaults to the practical RFCOMM ceiling.
+     */
+    public static class Profile {
+        public static final int RFCOMM_BITS_PER_SECOND = 700000;
+
+        final int mBitsPerSecond;
+        final int mLatencyMillis;
+        final int mJitterMillis;
+        final int mConnectMillis;
+        final double mRefuseProbability;
+        final double mStallProbability;
+        final int mStallMillis;
+        final double mDisconnectProbability;
+        final long mDisconnectAfterBytes;
+        final int mSendBufferSize;
+        final long mSeed;
+
+        private Profile(Builder builder) {
+            mBitsPerSecond = builder.mBitsPerSecond;
+            mLatencyMillis = builder.mLatencyMillis;
+            mJitterMillis = builder.mJitterMillis;
+            mConnectMillis = builder.mConnectMillis;
+            mRefuseProbability = builder.mRefuseProbability;
+            mStallProbability = builder.mStallProbability;
+            mStallMillis = builder.mStallMillis;
+            mDisconnectProbability = builder.mDisconnectProbability;
+            mDisconnectAfterBytes = builder.mDisconnectAfterBytes;
+            mSendBufferSize = builder.mSendBufferSize;
+            mSeed = builder.mSeed;
+        }
+
+        public static class Builder {
+            private int mBitsPerSecond = RFCOMM_BITS_PER_SECOND;
+            private int mLatencyMillis;
+            private int mJitterMillis;
+            private int mConnectMillis;
+            private double mRefuseProbability;
+            private double mStallProbability;
+            private int mStallMillis;
+            private double mDisconnectProbability;
+            private long mDisconnectAfterBytes;
+            private int mSendBufferSize = 16 * 1024;
+            private long mSeed = System.nanoTime();
+
+            /**
+             * Bandwidth of each direction, 0 for unlimited.
+             */
+            public Builder bandwidth(int bitsPerSecond) {
+                mBitsPerSecond = bitsPerSecond;
+                return this;
+            }
+
+            /**
+             * One way latency of every write, plus a random extra of up to {@code jitterMillis}.
+             */
+            public Builder latency(int latencyMillis, int jitterMillis) {
+                mLatencyMillis = latencyMillis;
+                mJitterMillis = jitterMillis;
+                return this;
+            }
+
+            /**
+             * Time a successful or refused connect takes.
+             */
+            public Builder connectTime(int connectMillis) {
+                mConnectMillis = connectMillis;
+                return this;
+            }
+
+            public Builder refuseConnects(double probability) {
+                mRefuseProbability = probability;
+                return this;
+            }
+
+            /**
+             * Makes a write block for {@code stallMillis} with the given probability.
+             */
+            public Builder stallWrites(double probability, int stallMillis) {
+                mStallProbability = probability;
+                mStallMillis = stallMillis;
+                return this;
+            }
+
+            /**
+             * Drops the link with the given probability on every write of either side.
+             */
+            public Builder disconnect(double probability) {
+                mDisconnectProbability = probability;
+                return this;
+            }
+
+            /**
+             * Drops the link once this many bytes went through it in both directions.
+             */
+            public Builder disconnectAfter(long bytes) {
+                mDisconnectAfterBytes = bytes;
+                return this;
+            }
+
+            /**
+             * Bytes a side may have in flight before its writes block, like the socket buffer.
+             */
+            public Builder sendBufferSize(int bytes) {
+                mSendBufferSize = bytes;
+                return this;
+            }
+
+            public Builder seed(long seed) {
+                mSeed = seed;
+                return this;
+            }
+
+            public Profile build() {
+                return new Profile(this);
+            }
+        }
+    }
+
+    private class SimulatedLink implements Link {
+        private final String mmAddress;
+        private final BytePipe mmIn;
+        private final OutputStream mmOut;
+        private final OutputStream mmDeviceOut;
+        private DelayLine mmUplink;
+        private DelayLine mmDownlink;
+        private long mmTransferred;
+        private boolean mmClosed;
+        private boolean mmConnected;
+
+        SimulatedLink(String address) {
+            mmAddress = address;
+            mmIn = new BytePipe(mProfile.mSendBufferSize);
+            mmOut = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    send(mmUplink, b, off, len);
+                }
+            };
+            mmDeviceOut = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    send(mmDownlink, b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public void connect() throws IOException {
+            sleep(mProfile.mConnectMillis);
+            if (chance(mProfile.mRefuseProbability)) {
+                throw new IOException("Connection refused");
+            }
+            final SimulatedDevice device = mDeviceFactory.create(mmAddress);
+            synchronized (this) {
+                if (mmClosed) {
+                    throw new IOException("Link closed");
+                }
+                mmUplink = new DelayLine("SimulatedUplink") {
+                    @Override
+                    void deliver(byte[] chunk) throws IOException {
+                        device.onDataReceived(chunk, chunk.length, mmDeviceOut);
+                    }
+                };
+                mmDownlink = new DelayLine("SimulatedDownlink") {
+                    @Override
+                    void deliver(byte[] chunk) throws IOException {
+                        mmIn.write(chunk, 0, chunk.length);
+                    }
+                };
+                mmConnected = true;
+                mOpenLinks.incrementAndGet();
+            }
+            mmUplink.start();
+            mmDownlink.start();
+            device.onConnected(mmDeviceOut);
+        }
+
+        private void send(DelayLine line, byte[] b, int off, int len) throws IOException {
+            if (line == null) {
+                throw new IOException("Not connected");
+            }
+            if (chance(mProfile.mStallProbability)) {
+                sleep(mProfile.mStallMillis);
+            }
+            boolean drop = chance(mProfile.mDisconnectProbability);
+            synchronized (this) {
+                mmTransferred += len;
+                if (mProfile.mDisconnectAfterBytes > 0
+                        && mmTransferred >= mProfile.mDisconnectAfterBytes) {
+                    drop = true;
+                }
+            }
+            if (drop) {
+                close();
+                throw new IOException("Connection reset");
+            }
+            line.send(b, off, len);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mmIn.source();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mmOut;
+        }
+
+        @Override
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (mmClosed) {
+                    return;
+                }
+                mmClosed = true;
+                if (mmConnected) {
+                    mOpenLinks.decrementAndGet();
+                    mmUplink.close();
+                    mmDownlink.close();
+                }
+            }
+            mmIn.close();
+        }
+    }
+
+    private static void sleep(int millis) throws IOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * One direction of a link. Chunks leave in order once they went through the bandwidth cap
+     * and the latency, at most the send buffer size is in flight.
+     */
+    private abstract class DelayLine extends Thread {
+        private final LinkedList<byte[]> mmChunks = new LinkedList<>();
+        private final LinkedList<Long> mmDueNanos = new LinkedList<>();
+        private long mmLineFreeNanos;
+        private long mmLastDueNanos;
+        private int mmInFlight;
+        private boolean mmClosed;
+
+        DelayLine(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        abstract void deliver(byte[] chunk) throws IOException;
+
+        synchronized void send(byte[] b, int off, int len) throws IOException {
+            try {
+                // A write bigger than the buffer still goes through once the line is empty
+                while (!mmClosed && mmInFlight > 0
+                        && mmInFlight + len > mProfile.mSendBufferSize) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (mmClosed) {
+                throw new IOException("Connection reset");
+            }
+            long now = System.nanoTime();
+            long start = Math.max(now, mmLineFreeNanos);
+            long transmit = mProfile.mBitsPerSecond > 0
+                    ? len * 8L * 1000000000L / mProfile.mBitsPerSecond : 0;
+            mmLineFreeNanos = start + transmit;
+            long due = mmLineFreeNanos + mProfile.mLatencyMillis * 1000000L + jitterNanos();
+            // Jitter must not reorder the stream
+            due = Math.max(due, mmLastDueNanos);
+            mmLastDueNanos = due;
+
+            byte[] chunk = new byte[len];
+            System.arraycopy(b, off, chunk, 0, len);
+            mmChunks.add(chunk);
+            mmDueNanos.add(due);
+            mmInFlight += len;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    byte[] chunk;
+                    synchronized (this) {
+                        while (!mmClosed && mmChunks.isEmpty()) {
+                            wait();
+                        }
+                        if (mmClosed) {
+                            return;
+                        }
+                        long wait = mmDueNanos.getFirst() - System.nanoTime();
+                        if (wait > 0) {
+                            wait(wait / 1000000L, (int) (wait % 1000000L));
+                            continue;
+                        }
+                        mmDueNanos.removeFirst();
+                        chunk = mmChunks.removeFirst();
+                    }
+                    deliver(chunk);
+                    synchronized (this) {
+                        mmInFlight -= chunk.length;
+                        notifyAll();
+                    }
+                }
+            } catch (InterruptedException | IOException e) {
+                // Link is gone
+            }
+        }
+
+        synchronized void close() {
+            mmClosed = true;
+            notifyAll();
+        }
+    }
+}
@@ -24,11 +24,17 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 public class SmoothBluetooth {
 
@@ -42,6 +48,19 @@ public class SmoothBluetooth {
         OTHER_DEVICE
     }
 
+    /**
+     * Outbound priority. {@code HIGH} data is sent whole and ahead of anything {@code NORMAL}
+     * queued, {@code NORMAL} data is sent in chunks, see {@link #setBulkChunkSize(int)}.
+     * {@code HIGH} data never goes into the middle of a partly written message of the same
+     * stream, it waits for the rest of it. Going in between the chunks of a message needs
+     * the two on different channels, see {@link #openChannel(int, Channel.Listener)}, which
+     * takes a {@link ConnectionTo#ANDROID_DEVICE} peer using this library.
+     */
+    public enum Priority {
+        HIGH,
+        NORMAL
+    }
+
     public interface ConnectionCallback {
         void connectTo(Device device);
     }
@@ -60,10 +79,80 @@ public class SmoothBluetooth {
         void onDataReceived(int data);
     }
 
+    /**
+     * {@link Listener} with empty methods, override the ones of interest.
+     */
+    public static abstract class ListenerAdapter implements Listener {
+        @Override
+        public void onBluetoothNotSupported() {
+        }
+
+        @Override
+        public void onBluetoothNotEnabled() {
+        }
+
+        @Override
+        public void onConnecting(Device device) {
+        }
+
+        @Override
+        public void onConnected(Device device) {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onConnectionFailed(Device device) {
+        }
+
+        @Override
+        public void onDiscoveryStarted() {
+        }
+
+        @Override
+        public void onDiscoveryFinished() {
+        }
+
+        @Override
+        public void onNoDevicesFound() {
+        }
+
+        @Override
+        public void onDevicesFound(List<Device> deviceList, ConnectionCallback connectionCallback) {
+        }
+
+        @Override
+        public void onDataReceived(int data) {
+        }
+    }
+
+    // Listener events to subscribe to, see addListener(Listener, int)
+    /** {@link Listener#onBluetoothNotSupported()}, {@link Listener#onBluetoothNotEnabled()} */
+    public static final int EVENT_AVAILABILITY = 1;
+    /** Connecting, connected, disconnected and connection failed */
+    public static final int EVENT_CONNECTION = 1 << 1;
+    /** Discovery started and finished, devices found or not */
+    public static final int EVENT_DISCOVERY = 1 << 2;
+    /** {@link Listener#onDataReceived(int)} */
+    public static final int EVENT_DATA = 1 << 3;
+    public static final int EVENT_ALL = EVENT_AVAILABILITY | EVENT_CONNECTION | EVENT_DISCOVERY
+            | EVENT_DATA;
+
     private static final String TAG = "BluetoothManager";
 
+    // Message types sent from the BluetoothService callback to the Handler
+    private static final int MESSAGE_STATE_CHANGE = 1;
+    private static final int MESSAGE_READ = 2;
+    private static final int MESSAGE_WRITE = 3;
+    private static final int MESSAGE_DEVICE_NAME = 4;
+    private static final int MESSAGE_CONSUMED = 5;
+
     private BluetoothAdapter mBluetoothAdapter;
 
+    private final Transport mTransport;
+
     private BluetoothService mBluetoothService;
 
     private boolean isServiceRunning;
@@ -78,12 +167,83 @@ public class SmoothBluetooth {
 
     private final Context mContext;
 
+    private final ListenerRegistry mListeners = new ListenerRegistry();
+
+    // The one given to the constructor or setListener, replaced by the next setListener
     private Listener mListener;
 
     private ArrayList<Device> mDevices = new ArrayList<>();
 
     private Device mCurrentDevice;
 
+    private int mReadBufferSize = BluetoothService.DEFAULT_READ_BUFFER_SIZE;
+
+    private int mBulkChunkSize = BluetoothService.DEFAULT_BULK_CHUNK_SIZE;
+
+    private AdaptiveSizing mAdaptiveSizing;
+
+    private boolean mCompression;
+
+    private byte[] mCompressionDictionary;
+
+    private volatile boolean mFlowControl;
+
+    private int mFlowWindow = PeerLink.DEFAULT_WINDOW;
+
+    private boolean mReliable;
+
+    private int mReliableBufferSize = ReliableSession.DEFAULT_CAPACITY;
+
+    private long mMonitorInterval;
+
+    private int mMonitorMaxMissed;
+
+    private byte[] mMonitorProbe;
+
+    private final Metrics mMetrics = new Metrics();
+
+    private long mDiscoveryStartMillis;
+
+    private boolean mReceiverRegistered;
+
+    private Metrics.Reporter mMetricsReporter;
+
+    private long mMetricsPeriodMillis;
+
+    private TrafficRecorder mTrafficRecorder;
+
+    private volatile RequestPipeline mRequestPipeline;
+
+    private byte[] mCommandTerminator = {0x0D};
+
+    private int mResponsePrompt = '>';
+
+    private int mMaxRequestsInFlight = 1;
+
+    private volatile MessageRouter mMessageRouter;
+
+    private boolean mChannels;
+
+    private volatile ChannelMultiplexer mChannelMultiplexer;
+
+    private final List<FileTransferChannel> mFileTransferChannels = new CopyOnWriteArrayList<>();
+
+    private final DataPublisher mDataPublisher = new DataPublisher();
+
+    private final TokenScanner mTokenScanner = new TokenScanner();
+
+    private volatile LinkInputStream mInputStream;
+
+    // Connections which ended, an output stream is good for one connection
+    private volatile int mDisconnects;
+
+    private final Executor mMainThreadExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
+
     public SmoothBluetooth(Context context) {
         this(context, ConnectionTo.OTHER_DEVICE, Connection.SECURE, null);
     }
@@ -94,25 +254,31 @@ public class SmoothBluetooth {
 
     public SmoothBluetooth(Context context, ConnectionTo connectionTo, Connection connection,
             Listener listener) {
+        this(context, connectionTo, connection, listener, null);
+    }
+
+    /**
+     * @param transport socket layer to connect through, {@code null} for RFCOMM of the default
+     *                  adapter. Discovery and paired devices always come from the adapter.
+     */
+    public SmoothBluetooth(Context context, ConnectionTo connectionTo, Connection connection,
+            Listener listener, Transport transport) {
         mContext = context;
-        mListener = listener;
+        setListener(listener);
         mIsAndroid = connectionTo == ConnectionTo.ANDROID_DEVICE;
         mIsSecure = connection == Connection.SECURE;
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mTransport = transport != null ? transport : new RfcommTransport(mBluetoothAdapter);
     }
 
     private boolean checkBluetooth() {
         if (!isBluetoothAvailable()) {
-            if (mListener != null) {
-                mListener.onBluetoothNotSupported();
-            }
+            mListeners.onBluetoothNotSupported();
             return false;
         }
 
         if (!isBluetoothEnabled()) {
-            if (mListener != null) {
-                mListener.onBluetoothNotEnabled();
-            }
+            mListeners.onBluetoothNotEnabled();
             return false;
         }
         return true;
@@ -139,7 +305,7 @@ public class SmoothBluetooth {
 
         Log.d(TAG, "Paired devices: " + mDevices.size());
         if (!mDevices.isEmpty()) {
-            mListener.onDevicesFound(mDevices, new ConnectionCallback() {
+            mListeners.onDevicesFound(mDevices, new ConnectionCallback() {
                 @Override
                 public void connectTo(Device device) {
                     if (device != null) {
@@ -182,15 +348,274 @@ public class SmoothBluetooth {
         return mBluetoothAdapter.cancelDiscovery();
     }
 
-    public void setListener(Listener listener) {
+    /**
+     * Replaces the listener given to the constructor or the last call, with all events.
+     * Listeners added by {@link #addListener(Listener)} stay.
+     */
+    public synchronized void setListener(Listener listener) {
+        if (mListener != null) {
+            mListeners.remove(mListener);
+        }
         mListener = listener;
+        if (listener != null) {
+            mListeners.add(listener, EVENT_ALL);
+        }
+    }
+
+    /**
+     * Adds a listener for all events, can be called from any thread. Callbacks still come on
+     * the main thread.
+     */
+    public void addListener(Listener listener) {
+        addListener(listener, EVENT_ALL);
+    }
+
+    /**
+     * Adds a listener for some events, e.g. {@code EVENT_CONNECTION | EVENT_DATA}. Adding a
+     * listener again changes its events.
+     */
+    public void addListener(Listener listener, int events) {
+        if (listener == null) {
+            throw new NullPointerException("listener == null");
+        }
+        mListeners.add(listener, events);
+    }
+
+    /**
+     * @return false if the listener was not added
+     */
+    public boolean removeListener(Listener listener) {
+        return mListeners.remove(listener);
+    }
+
+    /**
+     * Traffic and connection metrics, snapshots can be taken from any thread.
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Hands a metrics snapshot to the reporter every {@code periodMillis} on the main thread.
+     * Pass {@code null} to stop reporting.
+     */
+    public void setMetricsReporter(Metrics.Reporter reporter, long periodMillis) {
+        mHandler.removeCallbacks(mReportMetrics);
+        mMetricsReporter = reporter;
+        mMetricsPeriodMillis = periodMillis;
+        if (reporter != null) {
+            mHandler.postDelayed(mReportMetrics, periodMillis);
+        }
+    }
+
+    private final Runnable mReportMetrics = new Runnable() {
+        @Override
+        public void run() {
+            if (mMetricsReporter != null) {
+                mMetricsReporter.report(mMetrics.snapshot());
+                mHandler.postDelayed(this, mMetricsPeriodMillis);
+            }
+        }
+    };
+
+    /**
+     * Sets the largest piece {@link Priority#NORMAL} data is split into, which bounds how long
+     * {@link Priority#HIGH} data of another channel waits for the link.
+     */
+    public void setBulkChunkSize(int size) {
+        mBulkChunkSize = size;
+        if (isServiceAvailable()) {
+            mBluetoothService.setBulkChunkSize(size);
+        }
+    }
+
+    /**
+     * Lets the read buffer size and bulk chunk size follow the link while connected: the read
+     * buffer grows while reads fill it and shrinks while they don't come near, the chunk size
+     * follows the write throughput so a chunk takes about 20 ms to write. Sizes set with
+     * {@link #setReadBufferSize(int)} and {@link #setBulkChunkSize(int)} are where it starts.
+     * The sizes in use are {@link Metrics#READ_BUFFER_SIZE} and
+     * {@link Metrics#WRITE_CHUNK_SIZE}; to pin learned sizes, set them and turn this off.
+     */
+    public void setAdaptiveSizing(boolean enabled) {
+        if (enabled) {
+            setAdaptiveSizing(AdaptiveSizing.DEFAULT_MIN_READ_SIZE,
+                    AdaptiveSizing.DEFAULT_MAX_READ_SIZE, AdaptiveSizing.DEFAULT_MIN_CHUNK_SIZE,
+                    AdaptiveSizing.DEFAULT_MAX_CHUNK_SIZE);
+        } else {
+            mAdaptiveSizing = null;
+            if (isServiceAvailable()) {
+                mBluetoothService.setAdaptiveSizing(null);
+            }
+        }
+    }
+
+    /**
+     * Turns adaptive sizing on with sizes kept within the bounds, 64 to 16384 bytes for reads
+     * and 128 to 16384 bytes for chunks by default.
+     */
+    public void setAdaptiveSizing(int minReadSize, int maxReadSize, int minChunkSize,
+            int maxChunkSize) {
+        mAdaptiveSizing = new AdaptiveSizing(minReadSize, maxReadSize, minChunkSize,
+                maxChunkSize);
+        if (isServiceAvailable()) {
+            mBluetoothService.setAdaptiveSizing(mAdaptiveSizing);
+        }
+    }
+
+    /**
+     * Compresses data on {@link ConnectionTo#ANDROID_DEVICE} connections if the other device
+     * enabled it too. Small and incompressible data is sent as it is. Takes effect with the
+     * next connection.
+     */
+    public void setCompression(boolean enabled) {
+        setCompression(enabled, null);
+    }
+
+    /**
+     * @param dictionary bytes typical for the data sent, e.g. a sample JSON message. Helps
+     *                   small messages compress. Both devices must use the same dictionary.
+     */
+    public void setCompression(boolean enabled, byte[] dictionary) {
+        mCompression = enabled;
+        mCompressionDictionary = dictionary != null ? dictionary.clone() : null;
+        if (isServiceAvailable()) {
+            mBluetoothService.setCompression(mCompression, mCompressionDictionary);
+        }
+    }
+
+    /**
+     * Limits how far the other device may send ahead of this app on
+     * {@link ConnectionTo#ANDROID_DEVICE} connections, if it enabled flow control too. Data
+     * counts as handled once the main thread got to it, so a busy main thread slows the
+     * sender down instead of queueing up seconds of data. Takes effect with the next
+     * connection.
+     */
+    public void setFlowControl(boolean enabled) {
+        setFlowControl(enabled, PeerLink.DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window bytes the other device may send ahead, 64 KB by default. Smaller windows
+     *               bound latency tighter but may leave the link idle.
+     */
+    public void setFlowControl(boolean enabled, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        mFlowControl = enabled;
+        mFlowWindow = window;
+        if (isServiceAvailable()) {
+            mBluetoothService.setFlowControl(enabled, window);
+        }
+    }
+
+    /**
+     * Makes sure data sent on {@link ConnectionTo#ANDROID_DEVICE} connections arrives once and
+     * in order even if the connection drops, provided the other device enabled it too. When
+     * the same devices connect again, data the other device did not get is sent again and
+     * nothing it already got is. The session lasts until {@link #stop()} or
+     * {@link #disconnect()}. Takes effect with the next connection.
+     */
+    public void setReliableDelivery(boolean enabled) {
+        setReliableDelivery(enabled, ReliableSession.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param bufferSize bytes kept until the other device acknowledged them, 256 KB by
+     *                   default. Sending waits while the buffer is full.
+     */
+    public void setReliableDelivery(boolean enabled, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        mReliable = enabled;
+        mReliableBufferSize = bufferSize;
+        if (isServiceAvailable()) {
+            mBluetoothService.setReliable(enabled, bufferSize);
+        }
+    }
+
+    /**
+     * Pings the other device every {@code intervalMillis} and drops the connection once
+     * {@code maxMissed} pings in a row went unanswered, so a device which went out of range
+     * is noticed within {@code (maxMissed + 1) * intervalMillis} and the usual
+     * {@link Listener#onDisconnected()} follows. Round trip times go to
+     * {@link Metrics#LINK_ROUND_TRIP}. For {@link ConnectionTo#ANDROID_DEVICE} connections
+     * where the other device uses this library, see
+     * {@link #setLinkMonitor(long, int, byte[])} for other devices. 0 turns it off. Takes
+     * effect with the next connection. While the read thread is held by backpressure, see
+     * {@link #getDataPublisher()}, no pings are counted as missed.
+     */
+    public void setLinkMonitor(long intervalMillis, int maxMissed) {
+        setLinkMonitor(intervalMillis, maxMissed, null);
+    }
+
+    /**
+     * @param probe sent as is, ahead of queued data, e.g. {@code "ATI\r"} for an adapter
+     *              which answers it. Any data received after the probe answers it. Null for
+     *              the built-in ping.
+     */
+    public void setLinkMonitor(long intervalMillis, int maxMissed, byte[] probe) {
+        if (intervalMillis < 0 || intervalMillis > 0 && maxMissed < 1) {
+            throw new IllegalArgumentException("Bad link monitor settings");
+        }
+        mMonitorInterval = intervalMillis;
+        mMonitorMaxMissed = maxMissed;
+        mMonitorProbe = probe;
+        if (isServiceAvailable()) {
+            mBluetoothService.setLinkMonitor(intervalMillis, maxMissed, probe);
+        }
+    }
+
+    /**
+     * Starts recording all traffic into a ring file of at most {@code maxBytes}, replacing a
+     * running capture. Read it back with {@link TrafficCapture} or {@link ReplayTransport}.
+     */
+    public void startCapture(File file, int maxBytes) throws IOException {
+        stopCapture();
+        mTrafficRecorder = new TrafficRecorder(file, maxBytes);
+        if (isServiceAvailable()) {
+            mBluetoothService.setTrafficRecorder(mTrafficRecorder);
+        }
+    }
+
+    public void stopCapture() {
+        if (mTrafficRecorder == null) {
+            return;
+        }
+        if (isServiceAvailable()) {
+            mBluetoothService.setTrafficRecorder(null);
+        }
+        try {
+            mTrafficRecorder.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Closing capture failed", e);
+        }
+        mTrafficRecorder = null;
+    }
+
+    /**
+     * Sets how many bytes a single socket read may return. Bytes of one read are handed to
+     * the main thread together, 1 posts every byte separately. Applies to the next connection.
+     */
+    public void setReadBufferSize(int size) {
+        mReadBufferSize = size;
+        if (isServiceAvailable()) {
+            mBluetoothService.setReadBufferSize(size);
+        }
+    }
+
+    /**
+     * Connects to the device directly, skipping paired devices lookup and discovery.
+     */
+    public void connect(Device device) {
+        connect(device, mIsAndroid, mIsSecure);
     }
 
     private void connect(Device device, boolean android, boolean secure) {
         mCurrentDevice = device;
-        if (mListener != null) {
-            mListener.onConnecting(device);
-        }
+        mListeners.onConnecting(device);
         connect(device.getAddress(), android, secure);
     }
 
@@ -204,20 +629,18 @@ public class SmoothBluetooth {
         }
         mCurrentDevice = null;
         mDevices.clear();
-        if (mListener != null) {
-            mListener.onDiscoveryStarted();
-        }
+        mListeners.onDiscoveryStarted();
         Log.d(TAG, "doDiscovery()");
 
         if (isDiscovery()) {
-            mContext.unregisterReceiver(mReceiver);
             cancelDiscovery();
         }
+        unregisterReceiver();
+        mDiscoveryStartMillis = SystemClock.elapsedRealtime();
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         mContext.registerReceiver(mReceiver, filter);
-
-        filter = new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-        mContext.registerReceiver(mReceiver, filter);
+        mReceiverRegistered = true;
 
         startDiscovery();
     }
@@ -238,29 +661,33 @@ public class SmoothBluetooth {
                 }
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 Log.d(TAG, "Discovery finished: " + mDevices.size());
-                mContext.unregisterReceiver(mReceiver);
-                if (mListener != null) {
-                    mListener.onDiscoveryFinished();
-                }
+                mMetrics.discoveryDuration.record(SystemClock.elapsedRealtime() - mDiscoveryStartMillis);
+                unregisterReceiver();
+                mListeners.onDiscoveryFinished();
                 connectAction(mDevices, mIsAndroid, mIsSecure);
             }
         }
     };
 
+    private void unregisterReceiver() {
+        if (mReceiverRegistered) {
+            mReceiverRegistered = false;
+            mContext.unregisterReceiver(mReceiver);
+        }
+    }
+
     private void connectAction(List<Device> devices, final boolean android, final boolean secure) {
-        if (mListener != null) {
-            if (devices.isEmpty()) {
-                mListener.onNoDevicesFound();
-            } else {
-                mListener.onDevicesFound(devices, new ConnectionCallback() {
-                    @Override
-                    public void connectTo(Device device) {
-                        if (device != null) {
-                            connect(device, android, secure);
-                        }
+        if (devices.isEmpty()) {
+            mListeners.onNoDevicesFound();
+        } else {
+            mListeners.onDevicesFound(devices, new ConnectionCallback() {
+                @Override
+                public void connectTo(Device device) {
+                    if (device != null) {
+                        connect(device, android, secure);
                     }
-                });
-            }
+                }
+            });
         }
     }
 
@@ -278,7 +705,16 @@ public class SmoothBluetooth {
     }
 
     private void setupService() {
-        mBluetoothService = new BluetoothService(mHandler);
+        mBluetoothService = new BluetoothService(mTransport, mServiceCallback, mMetrics);
+        mBluetoothService.setReadBufferSize(mReadBufferSize);
+        mBluetoothService.setBulkChunkSize(mBulkChunkSize);
+        mBluetoothService.setAdaptiveSizing(mAdaptiveSizing);
+        mBluetoothService.setCompression(mCompression, mCompressionDictionary);
+        mBluetoothService.setChannels(mChannels);
+        mBluetoothService.setFlowControl(mFlowControl, mFlowWindow);
+        mBluetoothService.setReliable(mReliable, mReliableBufferSize);
+        mBluetoothService.setLinkMonitor(mMonitorInterval, mMonitorMaxMissed, mMonitorProbe);
+        mBluetoothService.setTrafficRecorder(mTrafficRecorder);
     }
 
     private void startService(boolean isAndroid, boolean secure) {
@@ -292,18 +728,16 @@ public class SmoothBluetooth {
 
     public void stop() {
         mCurrentDevice = null;
+        mHandler.removeCallbacks(mReportMetrics);
+        if (mReceiverRegistered) {
+            cancelDiscovery();
+            unregisterReceiver();
+        }
         if (isServiceAvailable()) {
             isServiceRunning = false;
+            // Threads closed by stop() no longer start listening again, once is enough
             mBluetoothService.stop();
         }
-        new Handler().postDelayed(new Runnable() {
-            public void run() {
-                if (isServiceAvailable()) {
-                    isServiceRunning = false;
-                    mBluetoothService.stop();
-                }
-            }
-        }, 500);
     }
 
     private void connect(String address, boolean android, boolean secure) {
@@ -314,10 +748,7 @@ public class SmoothBluetooth {
             setupService();
         }
         startService(android, secure);
-        if(BluetoothAdapter.checkBluetoothAddress(address)) {
-            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-            mBluetoothService.connect(device);
-        }
+        mBluetoothService.connect(address);
     }
 
     public void disconnect() {
@@ -336,71 +767,494 @@ public class SmoothBluetooth {
         send(data, false);
     }
 
+    /**
+     * Sends the command followed by the command terminator and completes the returned future
+     * with the reply, up to the next prompt. Replies are matched to commands in the order the
+     * commands were sent. Fails with {@link java.util.concurrent.TimeoutException} if no reply
+     * arrives within {@code timeoutMillis}, and with {@link IOException} if not connected or
+     * disconnected meanwhile.
+     */
+    public RequestFuture request(String command, long timeoutMillis) {
+        return request(command.getBytes(), timeoutMillis);
+    }
+
+    public RequestFuture request(byte[] command, long timeoutMillis) {
+        if (!isServiceAvailable() || mBluetoothService.getState() != BluetoothService.STATE_CONNECTED) {
+            RequestFuture future = new RequestFuture();
+            future.fail(new IOException("Not connected"));
+            return future;
+        }
+        return requestPipeline().submit(command, timeoutMillis);
+    }
+
+    /**
+     * Sets how many requests may wait for their reply at the same time, 1 by default.
+     * More than one pipelines commands, which the device must support.
+     */
+    public void setMaxRequestsInFlight(int maxRequestsInFlight) {
+        mMaxRequestsInFlight = maxRequestsInFlight;
+        RequestPipeline pipeline = mRequestPipeline;
+        if (pipeline != null) {
+            pipeline.setMaxInFlight(maxRequestsInFlight);
+        }
+    }
+
+    /**
+     * Sets what {@link #request(String, long)} appends to commands ({@code "\r"} by default)
+     * and which byte ends a reply ({@code '>'} by default). Pending requests fail.
+     */
+    public void setRequestFormat(byte[] commandTerminator, int responsePrompt) {
+        mCommandTerminator = commandTerminator.clone();
+        mResponsePrompt = responsePrompt;
+        RequestPipeline pipeline;
+        synchronized (this) {
+            pipeline = mRequestPipeline;
+            mRequestPipeline = null;
+        }
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Creates a scheduler which polls commands through {@link #request(byte[], long)}, allowed
+     * as many requests out as {@link #setMaxRequestsInFlight(int)}. Call
+     * {@link PollScheduler#start()} once connected and {@link PollScheduler#stop()} when done.
+     */
+    public PollScheduler createPollScheduler() {
+        PollScheduler scheduler = new PollScheduler(new PollScheduler.Requester() {
+            @Override
+            public RequestFuture request(byte[] command, long timeoutMillis) {
+                return SmoothBluetooth.this.request(command, timeoutMillis);
+            }
+        });
+        scheduler.setMaxOutstanding(mMaxRequestsInFlight);
+        return scheduler;
+    }
+
+    private synchronized RequestPipeline requestPipeline() {
+        if (mRequestPipeline == null) {
+            RequestPipeline pipeline = new RequestPipeline(new RequestPipeline.Writer() {
+                @Override
+                public boolean write(byte[] command) {
+                    BluetoothService service = mBluetoothService;
+                    return service != null && service.tryWrite(command);
+                }
+            }, mMetrics, mCommandTerminator, mResponsePrompt);
+            pipeline.setMaxInFlight(mMaxRequestsInFlight);
+            mRequestPipeline = pipeline;
+        }
+        return mRequestPipeline;
+    }
+
+    /**
+     * Registers a message type for {@link #sendMessage(Object)} and message listeners. Both
+     * devices must register the same types under the same ids. Once a type is registered all
+     * received data is decoded as messages and no longer passed to
+     * {@link Listener#onDataReceived(int)}.
+     *
+     * @param typeId identifies the type on the wire, 0 to 65535, small ids take one byte
+     */
+    public <T> void registerMessageType(int typeId, Class<T> type, MessageCodec<T> codec) {
+        messageRouter().register(typeId, type, codec);
+    }
+
+    /**
+     * Gets decoded messages of the given type on the main thread.
+     */
+    public <T> void addMessageListener(Class<T> type, MessageListener<? super T> listener) {
+        addMessageListener(type, listener, mMainThreadExecutor);
+    }
+
+    /**
+     * Gets decoded messages of the given type on the executor, or on the bluetooth read thread
+     * if it is {@code null}. Listeners called on the read thread must return quickly.
+     */
+    public <T> void addMessageListener(Class<T> type, MessageListener<? super T> listener,
+            Executor executor) {
+        messageRouter().addListener(type, listener, executor);
+    }
+
+    /**
+     * Gets only the newest message of the given type on the main thread. Messages which
+     * arrive while the main thread is busy replace each other, so a slow UI shows the
+     * current value instead of catching up on stale ones.
+     */
+    public <T> void addLatestMessageListener(Class<T> type, MessageListener<? super T> listener) {
+        addLatestMessageListener(type, null, listener, mMainThreadExecutor);
+    }
+
+    /**
+     * Gets only the newest message per key on the executor, e.g. keyed by sensor so every
+     * sensor's newest reading gets through. Replaced messages are counted as
+     * {@link Metrics#MESSAGES_CONFLATED}.
+     *
+     * @param key null for one newest message of the type
+     */
+    public <T> void addLatestMessageListener(Class<T> type, MessageKey<? super T> key,
+            MessageListener<? super T> listener, Executor executor) {
+        messageRouter().addLatestListener(type, key, listener, executor);
+    }
+
+    public void removeMessageListener(MessageListener<?> listener) {
+        MessageRouter router = mMessageRouter;
+        if (router != null) {
+            router.removeListener(listener);
+        }
+    }
+
+    public boolean sendMessage(Object message) {
+        return sendMessage(message, Priority.NORMAL);
+    }
+
+    /**
+     * Encodes the message with the codec registered for its class and queues it.
+     *
+     * @return false if not connected
+     */
+    public boolean sendMessage(Object message, Priority priority) {
+        return messageRouter().send(message, priority == Priority.HIGH
+                ? BluetoothService.PRIORITY_HIGH : BluetoothService.PRIORITY_NORMAL);
+    }
+
+    private synchronized MessageRouter messageRouter() {
+        if (mMessageRouter == null) {
+            mMessageRouter = new MessageRouter(new MessageRouter.Sender() {
+                @Override
+                public boolean send(MessageBuffer buffer, int offset, int priority) {
+                    BluetoothService service = mBluetoothService;
+                    return service != null && service.write(buffer, offset, priority);
+                }
+            }, mMetrics);
+        }
+        return mMessageRouter;
+    }
+
+    /**
+     * Calls the listener on the main thread whenever the token, taken as US-ASCII, is
+     * received, e.g. {@code "NO DATA"}. Tokens are found in all received data, across reads,
+     * whoever else gets the data.
+     */
+    public void addTokenListener(String token, TokenListener listener) {
+        addTokenListener(token.getBytes(Charset.forName("US-ASCII")), listener,
+                mMainThreadExecutor);
+    }
+
+    /**
+     * Calls the listener on the executor, or on the bluetooth read thread if it is
+     * {@code null}, whenever the token is received. All tokens are scanned for in one pass.
+     */
+    public void addTokenListener(byte[] token, TokenListener listener, Executor executor) {
+        mTokenScanner.add(token, listener, executor);
+    }
+
+    /**
+     * Removes the listener from all tokens it was added for.
+     */
+    public boolean removeTokenListener(TokenListener listener) {
+        return mTokenScanner.remove(listener);
+    }
+
+    /**
+     * Opens logical channel {@code id}, 1 to 255, with data received on it going to the
+     * listener on the main thread. Channels work between devices which both run this library
+     * ({@link ConnectionTo#ANDROID_DEVICE}) and opened channels before connecting, the plain
+     * data stream of {@link #send(byte[])} is channel 0. Data sent on a channel the other
+     * device has not opened is dropped there.
+     */
+    public Channel openChannel(int id, Channel.Listener listener) {
+        return openChannel(id, listener, mMainThreadExecutor);
+    }
+
+    /**
+     * @param executor runs the listener, {@code null} runs it on the bluetooth read thread
+     */
+    public Channel openChannel(int id, Channel.Listener listener, Executor executor) {
+        Channel channel = channelMultiplexer().open(id, listener, executor);
+        mChannels = true;
+        if (isServiceAvailable()) {
+            mBluetoothService.setChannels(true);
+        }
+        return channel;
+    }
+
+    /**
+     * The open channel with the given number, or null.
+     */
+    public Channel getChannel(int id) {
+        ChannelMultiplexer multiplexer = mChannelMultiplexer;
+        return multiplexer != null ? multiplexer.get(id) : null;
+    }
+
+    /**
+     * Received data as a stream with backpressure: the bluetooth read thread stops reading
+     * while the subscriber has not requested more. See {@link DataPublisher}.
+     */
+    public DataPublisher getDataPublisher() {
+        return mDataPublisher;
+    }
+
+    /**
+     * Received data as a blocking stream, also a {@link java.nio.channels.ReadableByteChannel},
+     * for parsers which want one. It ends with the current connection, or the next one if not
+     * connected. Reads are served straight from the receive buffer, while the stream is open
+     * received data goes nowhere else. Close it to get the usual callbacks back.
+     *
+     * @throws IllegalStateException if a stream is open already
+     */
+    public synchronized LinkInputStream openInputStream() {
+        if (mInputStream != null) {
+            throw new IllegalStateException("Input stream open already");
+        }
+        final LinkInputStream[] stream = new LinkInputStream[1];
+        stream[0] = new LinkInputStream(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SmoothBluetooth.this) {
+                    if (mInputStream == stream[0]) {
+                        mInputStream = null;
+                    }
+                }
+            }
+        });
+        mInputStream = stream[0];
+        return stream[0];
+    }
+
+    /**
+     * A stream to send through, also a {@link java.nio.channels.WritableByteChannel}. Writes
+     * fail with an {@link IOException} when not connected, and for good once the current
+     * connection, or the next one if not connected, ended.
+     */
+    public LinkOutputStream openOutputStream() {
+        final int disconnects = mDisconnects;
+        return new LinkOutputStream(new LinkOutputStream.Writer() {
+            @Override
+            public boolean write(byte[] data, int offset, int length) {
+                BluetoothService service = mBluetoothService;
+                return disconnects == mDisconnects && service != null && service.enqueue(data,
+                        offset, length, false, BluetoothService.PRIORITY_NORMAL);
+            }
+        });
+    }
+
+    /**
+     * Opens channel {@code id} for sending files to the other device and receiving files
+     * from it, see {@link FileTransferChannel}. The other device must open the same channel.
+     * The listener is called on the main thread.
+     *
+     * @param receiver picks where to store offered files, may refuse them
+     */
+    public FileTransferChannel openFileTransferChannel(int id, FileTransferChannel.Receiver receiver,
+            FileTransfer.Listener listener) {
+        return openFileTransferChannel(id, receiver, listener, mMainThreadExecutor);
+    }
+
+    /**
+     * @param executor runs the listener, {@code null} runs it on the transfer threads
+     */
+    public FileTransferChannel openFileTransferChannel(int id, FileTransferChannel.Receiver receiver,
+            FileTransfer.Listener listener, Executor executor) {
+        FileTransferChannel files = new FileTransferChannel(receiver, listener, executor, mMetrics);
+        files.attach(openChannel(id, files.channelListener(), files.ioExecutor()));
+        mFileTransferChannels.add(files);
+        return files;
+    }
+
+    private synchronized ChannelMultiplexer channelMultiplexer() {
+        if (mChannelMultiplexer == null) {
+            mChannelMultiplexer = new ChannelMultiplexer(new Channel.Writer() {
+                @Override
+                public boolean write(Channel channel, byte[] data, int offset, int length,
+                        boolean urgent) {
+                    BluetoothService service = mBluetoothService;
+                    return service != null && service.writeChannel(channel.getId(), data, offset,
+                            length, urgent ? BluetoothService.PRIORITY_HIGH
+                                    : BluetoothService.PRIORITY_NORMAL, channel.mBytesOut);
+                }
+            }, mMetrics.channelBytesDropped);
+        }
+        return mChannelMultiplexer;
+    }
+
     public void send(byte[] data) {
         send(data, false);
     }
 
     public void send(byte[] data, boolean CRLF) {
         if(isServiceAvailable() && mBluetoothService.getState() == BluetoothService.STATE_CONNECTED) {
-            if(CRLF) {
-                byte[] data2 = new byte[data.length + 2];
-                System.arraycopy(data, 0, data2, 0, data.length);
-                data2[data2.length] = 0x0A;
-                data2[data2.length] = 0x0D;
-                mBluetoothService.write(data2);
-            } else {
-                mBluetoothService.write(data);
-            }
+            mBluetoothService.write(data, CRLF);
+        }
+    }
+
+    public void send(byte[] data, Priority priority) {
+        send(data, false, priority);
+    }
+
+    public void send(byte[] data, boolean CRLF, Priority priority) {
+        if(isServiceAvailable() && mBluetoothService.getState() == BluetoothService.STATE_CONNECTED) {
+            mBluetoothService.write(data, 0, data.length, CRLF, priority == Priority.HIGH
+                    ? BluetoothService.PRIORITY_HIGH : BluetoothService.PRIORITY_NORMAL);
         }
     }
 
     public void send(String data, boolean CRLF) {
         if(isServiceAvailable() && mBluetoothService.getState() == BluetoothService.STATE_CONNECTED) {
-            if(CRLF)
-                data += "\r\n";
-            mBluetoothService.write(data.getBytes());
+            mBluetoothService.write(data, CRLF);
         }
     }
 
+    private final BluetoothService.Callback mServiceCallback = new BluetoothService.Callback() {
+        @Override
+        public void onStateChanged(int oldState, int newState) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "setState() " + oldState + " -> " + newState);
+            }
+            RequestPipeline pipeline = mRequestPipeline;
+            if (pipeline != null && oldState == BluetoothService.STATE_CONNECTED
+                    && newState != BluetoothService.STATE_CONNECTED) {
+                // Called holding the service's lock, the futures fail on another thread
+                pipeline.onDisconnected();
+            }
+            MessageRouter router = mMessageRouter;
+            if (router != null && oldState == BluetoothService.STATE_CONNECTED) {
+                router.reset();
+            }
+            if (oldState == BluetoothService.STATE_CONNECTED) {
+                mTokenScanner.reset();
+            }
+            if (oldState == BluetoothService.STATE_CONNECTED
+                    && newState != BluetoothService.STATE_CONNECTED) {
+                // Also lets go of a read thread waiting for demand
+                mDataPublisher.onDisconnected();
+                mDisconnects++;
+                LinkInputStream stream = mInputStream;
+                if (stream != null) {
+                    stream.onDisconnected();
+                    // The next connection goes the usual way until a new stream is opened
+                    mInputStream = null;
+                }
+            }
+            mHandler.obtainMessage(MESSAGE_STATE_CHANGE, newState, -1).sendToTarget();
+        }
+
+        @Override
+        public void onConnected(String address) {
+            for (FileTransferChannel files : mFileTransferChannels) {
+                if (files.isClosed()) {
+                    mFileTransferChannels.remove(files);
+                } else {
+                    files.onConnected();
+                }
+            }
+            mHandler.obtainMessage(MESSAGE_DEVICE_NAME, address).sendToTarget();
+        }
+
+        @Override
+        public void onDataRead(byte[] buffer, int length) {
+            mTokenScanner.onData(buffer, 0, length);
+            LinkInputStream stream = mInputStream;
+            if (mDataPublisher.onData(buffer, length)
+                    || stream != null && stream.offer(buffer, length)) {
+                // The subscriber or the stream is done with it
+                if (mFlowControl) {
+                    BluetoothService service = mBluetoothService;
+                    if (service != null) {
+                        service.consumed(length);
+                    }
+                }
+                return;
+            }
+            MessageRouter router = mMessageRouter;
+            if (router != null) {
+                // Messages go to their listeners, not byte by byte to the Listener
+                router.onData(buffer, 0, length);
+                consumedOnMainThread(length);
+                return;
+            }
+            RequestPipeline pipeline = mRequestPipeline;
+            if (pipeline != null) {
+                pipeline.onData(buffer, length);
+            }
+            if (!mListeners.has(EVENT_DATA)) {
+                // Nobody to hand the bytes to, skip the copy and the trip to the main thread
+                mMetrics.framesIn.increment();
+                if (mFlowControl) {
+                    BluetoothService service = mBluetoothService;
+                    if (service != null) {
+                        service.consumed(length);
+                    }
+                }
+                return;
+            }
+            byte[] data = new byte[length];
+            System.arraycopy(buffer, 0, data, 0, length);
+            // Read time travels in the message args, so measuring latency allocates nothing
+            long now = System.nanoTime();
+            mHandler.obtainMessage(MESSAGE_READ, (int) (now >>> 32), (int) now, data).sendToTarget();
+            consumedOnMainThread(length);
+        }
+
+        @Override
+        public void onDataWritten(byte[] buffer) {
+            mHandler.obtainMessage(MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
+        }
+
+        @Override
+        public void onChannelData(int channel, byte[] buffer, int offset, int length) {
+            ChannelMultiplexer multiplexer = mChannelMultiplexer;
+            if (multiplexer != null) {
+                multiplexer.onChannelData(channel, buffer, offset, length);
+            }
+            consumedOnMainThread(length);
+        }
+
+        // Credit goes back to the peer once the main thread got past what was posted so far
+        private void consumedOnMainThread(int length) {
+            if (mFlowControl) {
+                mHandler.obtainMessage(MESSAGE_CONSUMED, length, -1).sendToTarget();
+            }
+        }
+    };
+
     @SuppressLint("HandlerLeak")
     private final Handler mHandler = new Handler() {
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case BluetoothService.MESSAGE_WRITE:
+                case MESSAGE_WRITE:
                     break;
-                case BluetoothService.MESSAGE_READ:
-                    int readBuf = (int) msg.obj;
-                    //String readMessage = new String(readBuf);
-                    //if(readBuf != null) {
-                    if(mListener != null)
-                        mListener.onDataReceived(readBuf);
-                    // }
+                case MESSAGE_READ:
+                    byte[] readBuf = (byte[]) msg.obj;
+                    long readNanos = ((long) msg.arg1 << 32) | (msg.arg2 & 0xFFFFFFFFL);
+                    mMetrics.dispatchLatency.record((System.nanoTime() - readNanos) / 1000);
+                    mMetrics.framesIn.increment();
+                    mListeners.onDataReceived(readBuf);
                     break;
-                case BluetoothService.MESSAGE_DEVICE_NAME:
-                    if(mListener != null) {
-                        mListener.onConnected(mCurrentDevice);
+                case MESSAGE_CONSUMED:
+                    BluetoothService service = mBluetoothService;
+                    if (service != null) {
+                        service.consumed(msg.arg1);
                     }
+                    break;
+                case MESSAGE_DEVICE_NAME:
+                    mListeners.onConnected(mCurrentDevice);
                     isConnected = true;
                     break;
-                case BluetoothService.MESSAGE_STATE_CHANGE:
+                case MESSAGE_STATE_CHANGE:
                     /*if(mBluetoothStateListener != null)
                         mBluetoothStateListener.onServiceStateChanged(msg.arg1);*/
                     if(isConnected && msg.arg1 != BluetoothService.STATE_CONNECTED) {
                         isConnected = false;
-                        if (mListener != null) {
-                            mListener.onDisconnected();
-                            mCurrentDevice = null;
-                        }
+                        mListeners.onDisconnected();
+                        mCurrentDevice = null;
                     }
                     if(!isConnecting && msg.arg1 == BluetoothService.STATE_CONNECTING) {
                         isConnecting = true;
                     } else if(isConnecting) {
                         isConnecting = false;
                         if(msg.arg1 != BluetoothService.STATE_CONNECTED) {
-                            if (mListener != null) {
-                                mListener.onConnectionFailed(mCurrentDevice);
-                                mCurrentDevice = null;
-                            }
+                            mListeners.onConnectionFailed(mCurrentDevice);
+                            mCurrentDevice = null;
                         }
                     }
                     break;
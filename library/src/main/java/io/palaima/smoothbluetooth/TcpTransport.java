@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.UUID;
+
+/**
+ * {@link Transport} over TCP, normally on localhost. Every link dials the configured host and
+ * port, bluetooth addresses and uuids are not interpreted. Incoming connections are only
+ * accepted on a listen port of its own, which must differ from the dialed one when both ends
+ * are on the same host, or the service would connect to itself.
+ */
+public class TcpTransport implements Transport {
+
+    private static final int NO_LISTEN_PORT = -1;
+
+    private final String mHost;
+    private final int mPort;
+    private final int mListenPort;
+
+    /**
+     * Dials {@code port} on localhost, doesn't accept connections.
+     */
+    public TcpTransport(int port) {
+        this("localhost", port);
+    }
+
+    /**
+     * Dials {@code host:port}, doesn't accept connections.
+     */
+    public TcpTransport(String host, int port) {
+        this(host, port, NO_LISTEN_PORT);
+    }
+
+    /**
+     * Dials {@code host:port} and accepts connections on {@code listenPort} of localhost.
+     */
+    public TcpTransport(String host, int port, int listenPort) {
+        mHost = host;
+        mPort = port;
+        mListenPort = listenPort;
+    }
+
+    @Override
+    public Link createLink(String address, UUID uuid, boolean secure) {
+        return new TcpLink(new Socket(), address);
+    }
+
+    @Override
+    public Acceptor listen(String name, UUID uuid, boolean secure) throws IOException {
+        if (mListenPort == NO_LISTEN_PORT) {
+            throw new IOException("No listen port");
+        }
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress("localhost", mListenPort));
+        return new TcpAcceptor(serverSocket);
+    }
+
+    private class TcpLink implements Link {
+        private final Socket mmSocket;
+        private final String mmAddress;
+
+        TcpLink(Socket socket, String address) {
+            mmSocket = socket;
+            mmAddress = address;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mmSocket.setTcpNoDelay(true);
+            mmSocket.connect(new InetSocketAddress(mHost, mPort));
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+
+    private class TcpAcceptor implements Acceptor {
+        private final ServerSocket mmServerSocket;
+
+        TcpAcceptor(ServerSocket serverSocket) {
+            mmServerSocket = serverSocket;
+        }
+
+        @Override
+        public Link accept() throws IOException {
+            Socket socket = mmServerSocket.accept();
+            socket.setTcpNoDelay(true);
+            return new TcpLink(socket, socket.getInetAddress().getHostAddress());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmServerSocket.close();
+        }
+    }
+}
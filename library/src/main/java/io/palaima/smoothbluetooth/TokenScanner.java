@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Finds registered tokens in the received byte stream with an Aho-Corasick automaton. Every
+ * byte is looked at once, a token split across reads is found when its last byte comes.
+ * Overlapping tokens are all reported, e.g. {@code "NO DATA"} and {@code "DATA"}.
+ *
+ * <p>The automaton is built again when tokens are added or removed, the scan goes on from the
+ * start state then. Tokens found in a read are delivered once the read is scanned, so listeners
+ * may add and remove listeners, a removed one gets nothing more.
+ */
+final class TokenScanner {
+
+    private static class Registration {
+        final byte[] mmToken;
+        final TokenListener mmListener;
+        final Executor mmExecutor;
+        volatile boolean mmRemoved;
+        private final Runnable mmDeliver = new Runnable() {
+            @Override
+            public void run() {
+                if (!mmRemoved) {
+                    mmListener.onToken(mmToken);
+                }
+            }
+        };
+
+        Registration(byte[] token, TokenListener listener, Executor executor) {
+            mmToken = token;
+            mmListener = listener;
+            mmExecutor = executor;
+        }
+
+        void deliver() {
+            if (mmRemoved) {
+                return;
+            }
+            if (mmExecutor == null) {
+                mmListener.onToken(mmToken);
+            } else {
+                mmExecutor.execute(mmDeliver);
+            }
+        }
+    }
+
+    private static final class Automaton {
+        // Next state for state << 8 | byte, failure links already followed
+        final int[] mmNext;
+        // Tokens ending in a state, those of shorter suffixes included, null if none
+        final Registration[][] mmMatches;
+
+        Automaton(int[] next, Registration[][] matches) {
+            mmNext = next;
+            mmMatches = matches;
+        }
+    }
+
+    // Guarded by this
+    private final List<Registration> mRegistrations = new ArrayList<>();
+    private Automaton mAutomaton;
+    private int mState;
+
+    synchronized void add(byte[] token, TokenListener listener, Executor executor) {
+        if (token.length == 0) {
+            throw new IllegalArgumentException("Empty token");
+        }
+        mRegistrations.add(new Registration(token.clone(), listener, executor));
+        rebuild();
+    }
+
+    synchronized boolean remove(TokenListener listener) {
+        boolean removed = false;
+        for (Iterator<Registration> it = mRegistrations.iterator(); it.hasNext(); ) {
+            Registration registration = it.next();
+            if (registration.mmListener == listener) {
+                registration.mmRemoved = true;
+                it.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            rebuild();
+        }
+        return removed;
+    }
+
+    // Bytes as they come from the socket, on the read thread
+    void onData(byte[] buffer, int offset, int length) {
+        List<Registration> found = null;
+        synchronized (this) {
+            Automaton automaton = mAutomaton;
+            if (automaton == null) {
+                return;
+            }
+            int[] next = automaton.mmNext;
+            Registration[][] matches = automaton.mmMatches;
+            int state = mState;
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                state = next[state << 8 | buffer[i] & 0xFF];
+                Registration[] matched = matches[state];
+                if (matched != null) {
+                    if (found == null) {
+                        found = new ArrayList<>();
+                    }
+                    Collections.addAll(found, matched);
+                }
+            }
+            mState = state;
+        }
+        // The state is saved, a listener adding or removing one sets it back to the start
+        if (found != null) {
+            for (Registration registration : found) {
+                registration.deliver();
+            }
+        }
+    }
+
+    // Forgets a partly seen token, the link is gone
+    synchronized void reset() {
+        mState = 0;
+    }
+
+    private void rebuild() {
+        mState = 0;
+        mAutomaton = mRegistrations.isEmpty() ? null : build(mRegistrations);
+    }
+
+    private static Automaton build(List<Registration> registrations) {
+        int capacity = 1;
+        for (Registration registration : registrations) {
+            capacity += registration.mmToken.length;
+        }
+        int[] next = new int[capacity << 8];
+        Arrays.fill(next, -1);
+        List<List<Registration>> outputs = new ArrayList<>();
+        outputs.add(new ArrayList<Registration>());
+        // Trie of the tokens
+        int states = 1;
+        for (Registration registration : registrations) {
+            int state = 0;
+            for (byte b : registration.mmToken) {
+                int index = state << 8 | b & 0xFF;
+                if (next[index] < 0) {
+                    next[index] = states++;
+                    outputs.add(new ArrayList<Registration>());
+                }
+                state = next[index];
+            }
+            outputs.get(state).add(registration);
+        }
+        // Breadth first, so the failure state of a state is complete before the state
+        int[] failure = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int b = 0; b < 256; b++) {
+            if (next[b] < 0) {
+                next[b] = 0;
+            } else {
+                queue[tail++] = next[b];
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            outputs.get(state).addAll(outputs.get(failure[state]));
+            for (int b = 0; b < 256; b++) {
+                int index = state << 8 | b;
+                int fallback = next[failure[state] << 8 | b];
+                if (next[index] < 0) {
+                    next[index] = fallback;
+                } else {
+                    failure[next[index]] = fallback;
+                    queue[tail++] = next[index];
+                }
+            }
+        }
+        Registration[][] matches = new Registration[states][];
+        for (int state = 0; state < states; state++) {
+            List<Registration> output = outputs.get(state);
+            if (!output.isEmpty()) {
+                matches[state] = output.toArray(new Registration[output.size()]);
+            }
+        }
+        return new Automaton(Arrays.copyOf(next, states << 8), matches);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file written by {@link TrafficRecorder}, from the oldest record to the newest:
+ * <pre>
+ * TrafficCapture capture = TrafficCapture.open(file);
+ * while (capture.next()) {
+ *     capture.getDirection(); capture.getNanos(); capture.getPayload();
+ * }
+ * </pre>
+ */
+public class TrafficCapture {
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    private final int mCount;
+    private final long mStartMillis;
+
+    private int mRead;
+    private int mOffset;
+    private int mNext;
+
+    private TrafficCapture(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.getInt(0) != TrafficRecorder.MAGIC) {
+            throw new IOException("Not a traffic capture");
+        }
+        if (buffer.getInt(4) != TrafficRecorder.VERSION) {
+            throw new IOException("Unsupported capture version " + buffer.getInt(4));
+        }
+        mCapacity = buffer.getInt(TrafficRecorder.OFFSET_CAPACITY);
+        mCount = buffer.getInt(TrafficRecorder.OFFSET_COUNT);
+        mStartMillis = buffer.getLong(TrafficRecorder.OFFSET_START_MILLIS);
+        mNext = buffer.getInt(TrafficRecorder.OFFSET_HEAD);
+    }
+
+    public static TrafficCapture open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new TrafficCapture(
+                    raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Moves to the next record, false once all records were read.
+     */
+    public boolean next() {
+        if (mRead >= mCount) {
+            return false;
+        }
+        mOffset = mNext;
+        mNext = TrafficRecorder.next(mBuffer, mCapacity, mOffset);
+        mRead++;
+        return true;
+    }
+
+    /**
+     * Number of records in the capture.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Wall clock time the recording started at.
+     */
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    /**
+     * {@link TrafficRecorder#DIRECTION_IN} or {@link TrafficRecorder#DIRECTION_OUT}.
+     */
+    public int getDirection() {
+        return mBuffer.get(position() + 4);
+    }
+
+    /**
+     * Time of the record since the recording started.
+     */
+    public long getNanos() {
+        return mBuffer.getLong(position() + 5);
+    }
+
+    public int getLength() {
+        return mBuffer.getInt(position());
+    }
+
+    public byte[] getPayload() {
+        byte[] payload = new byte[getLength()];
+        getPayload(payload, 0);
+        return payload;
+    }
+
+    public void getPayload(byte[] destination, int offset) {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(position() + TrafficRecorder.RECORD_HEADER_SIZE);
+        buffer.get(destination, offset, getLength());
+    }
+
+    private int position() {
+        return TrafficRecorder.FILE_HEADER_SIZE + mOffset;
+    }
+}
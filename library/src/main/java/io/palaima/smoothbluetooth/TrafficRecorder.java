@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records traffic of a connection into a memory mapped ring file. Every chunk read from or
+ * written to the socket becomes a record tagged with its direction and a timestamp. Once the
+ * file is full the oldest records are overwritten. Read the file with {@link TrafficCapture}.
+ *
+ * <p>File layout, big endian:
+ * <pre>
+ * header: magic(4) version(4) capacity(4) head(4) tail(4) count(4) startMillis(8)
+ * record: length(4) direction(1) nanosSinceStart(8) payload(length)
+ * </pre>
+ * A length of -1, or too little room for a record header, marks the end of the data before
+ * it wraps to the beginning of the data region.
+ */
+public class TrafficRecorder {
+
+    public static final int DIRECTION_IN = 0;
+    public static final int DIRECTION_OUT = 1;
+
+    static final int MAGIC = 0x53425443; // SBTC
+    static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 32;
+    static final int RECORD_HEADER_SIZE = 13;
+    static final int WRAP = -1;
+    // Room for four records of at least a byte each, a quarter of it is the largest payload
+    public static final int MIN_FILE_SIZE = FILE_HEADER_SIZE + 4 * (RECORD_HEADER_SIZE + 1);
+
+    static final int OFFSET_CAPACITY = 8;
+    static final int OFFSET_HEAD = 12;
+    static final int OFFSET_TAIL = 16;
+    static final int OFFSET_COUNT = 20;
+    static final int OFFSET_START_MILLIS = 24;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final int mMaxPayload;
+    private final long mStartNanos;
+
+    // Offsets relative to the data region, guarded by this
+    private int mHead;
+    private int mTail;
+    private int mCount;
+    private boolean mClosed;
+
+    /**
+     * @param maxBytes size of the file, at least {@link #MIN_FILE_SIZE}, older traffic is
+     *                 overwritten once it is full
+     */
+    public TrafficRecorder(File file, int maxBytes) throws IOException {
+        if (maxBytes < MIN_FILE_SIZE) {
+            throw new IllegalArgumentException("Capture file too small: " + maxBytes);
+        }
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(maxBytes);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+        mCapacity = maxBytes - FILE_HEADER_SIZE;
+        // Bigger chunks are split, so a single chunk never wipes the whole history
+        mMaxPayload = mCapacity / 4 - RECORD_HEADER_SIZE;
+        mStartNanos = System.nanoTime();
+
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(OFFSET_CAPACITY, mCapacity);
+        mBuffer.putLong(OFFSET_START_MILLIS, System.currentTimeMillis());
+        writePointers();
+    }
+
+    public void record(int direction, byte[] buffer, int offset, int length) {
+        long nanos = System.nanoTime() - mStartNanos;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            do {
+                int count = Math.min(length, mMaxPayload);
+                append(direction, nanos, buffer, offset, count);
+                offset += count;
+                length -= count;
+            } while (length > 0);
+            writePointers();
+        }
+    }
+
+    private void append(int direction, long nanos, byte[] buffer, int offset, int length) {
+        int need = RECORD_HEADER_SIZE + length;
+        if (mTail + need > mCapacity) {
+            evict(mTail, mCapacity);
+            if (mCapacity - mTail >= 4) {
+                mBuffer.putInt(FILE_HEADER_SIZE + mTail, WRAP);
+            }
+            mTail = 0;
+        }
+        evict(mTail, mTail + need);
+        if (mCount == 0) {
+            mHead = mTail;
+        }
+        int position = FILE_HEADER_SIZE + mTail;
+        mBuffer.putInt(position, length);
+        mBuffer.put(position + 4, (byte) direction);
+        mBuffer.putLong(position + 5, nanos);
+        mBuffer.position(position + RECORD_HEADER_SIZE);
+        mBuffer.put(buffer, offset, length);
+        mTail += need;
+        mCount++;
+    }
+
+    // Drops the oldest records while they start inside [from, to)
+    private void evict(int from, int to) {
+        while (mCount > 0 && mHead >= from && mHead < to) {
+            mHead = next(mBuffer, mCapacity, mHead);
+            mCount--;
+        }
+    }
+
+    private void writePointers() {
+        mBuffer.putInt(OFFSET_HEAD, mHead);
+        mBuffer.putInt(OFFSET_TAIL, mTail);
+        mBuffer.putInt(OFFSET_COUNT, mCount);
+    }
+
+    // Offset of the record following the one at offset
+    static int next(ByteBuffer buffer, int capacity, int offset) {
+        int next = offset + RECORD_HEADER_SIZE + buffer.getInt(FILE_HEADER_SIZE + offset);
+        if (next + RECORD_HEADER_SIZE > capacity || buffer.getInt(FILE_HEADER_SIZE + next) == WRAP) {
+            return 0;
+        }
+        return next;
+    }
+
+    /**
+     * Flushes the file. Recording after close is ignored.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mBuffer.force();
+        }
+        mFile.close();
+    }
+}
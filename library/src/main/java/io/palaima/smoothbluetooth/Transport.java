@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Socket layer used by {@link BluetoothService}. {@link RfcommTransport} talks to the real
+ * bluetooth stack, {@link PipeTransport} and {@link TcpTransport} are stand-ins which let the
+ * connection, read and write logic run on a plain JVM.
+ */
+public interface Transport {
+
+    /**
+     * Creates an unconnected link to the remote device. Nothing is sent until
+     * {@link Link#connect()} is called.
+     */
+    Link createLink(String address, UUID uuid, boolean secure) throws IOException;
+
+    /**
+     * Starts listening for incoming connections for the given service record.
+     */
+    Acceptor listen(String name, UUID uuid, boolean secure) throws IOException;
+
+    interface Link {
+        /**
+         * Blocks until the connection is made. {@link #close()} from another thread aborts it.
+         */
+        void connect() throws IOException;
+        InputStream getInputStream() throws IOException;
+        OutputStream getOutputStream() throws IOException;
+        String getAddress();
+        void close() throws IOException;
+    }
+
+    interface Acceptor {
+        /**
+         * Blocks until a remote device connects. {@link #close()} from another thread aborts it.
+         */
+        Link accept() throws IOException;
+        void close() throws IOException;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AdaptiveSizingTest {
+
+    private final AdaptiveSizing mSizing = new AdaptiveSizing(64, 1024, 128, 4096);
+
+    @Test
+    public void growsReadBufferWhileReadsFillIt() {
+        assertEquals(256, reads(AdaptiveSizing.READ_WINDOW, 128, 128));
+        assertEquals(512, reads(AdaptiveSizing.READ_WINDOW, 256, 256));
+    }
+
+    @Test
+    public void keepsReadBufferWhileHalfTheReadsFillIt() {
+        int size = 256;
+        for (int i = 0; i < AdaptiveSizing.READ_WINDOW; i++) {
+            size = mSizing.onRead(i % 2 == 0 ? 256 : 100, 256);
+        }
+        assertEquals(256, size);
+    }
+
+    @Test
+    public void shrinksReadBufferWhileReadsStaySmall() {
+        assertEquals(128, reads(AdaptiveSizing.READ_WINDOW, 64, 256));
+        // Just above a quarter keeps the size
+        assertEquals(128, reads(AdaptiveSizing.READ_WINDOW, 33, 128));
+    }
+
+    @Test
+    public void changesReadBufferOncePerWindow() {
+        assertEquals(256, reads(AdaptiveSizing.READ_WINDOW - 1, 256, 256));
+        assertEquals(512, mSizing.onRead(256, 256));
+    }
+
+    @Test
+    public void keepsReadBufferWithinBounds() {
+        assertEquals(1024, reads(AdaptiveSizing.READ_WINDOW, 1024, 1024));
+        assertEquals(64, reads(AdaptiveSizing.READ_WINDOW, 1, 64));
+        // A size outside of the bounds is pulled in right away
+        assertEquals(1024, mSizing.onRead(10, 5000));
+        assertEquals(64, mSizing.onRead(1, 1));
+    }
+
+    @Test
+    public void sizesChunksForTargetWriteTime() {
+        // 100 bytes per millisecond, 20 ms worth
+        assertEquals(2000, writes(AdaptiveSizing.WRITE_WINDOW, 1000, 10, 0, 1000));
+    }
+
+    @Test
+    public void doublesChunksWhileBacklogged() {
+        assertEquals(4000, writes(AdaptiveSizing.WRITE_WINDOW, 1000, 10,
+                AdaptiveSizing.BACKLOG_DEPTH, 1000));
+    }
+
+    @Test
+    public void slowWritesEndWindowEarly() {
+        // One chunk taking longer than the window, 1 byte per millisecond
+        assertEquals(128, mSizing.onWrite(300, 300 * 1000000L, 0, 1000));
+    }
+
+    @Test
+    public void smoothsRateOverWindows() {
+        writes(AdaptiveSizing.WRITE_WINDOW, 1000, 10, 0, 1000);
+        // Twice as fast, the rate moves a quarter of the way
+        assertEquals(2500, writes(AdaptiveSizing.WRITE_WINDOW, 1000, 5, 0, 2000));
+    }
+
+    @Test
+    public void keepsChunksWithinBounds() {
+        assertEquals(4096, writes(AdaptiveSizing.WRITE_WINDOW, 100000, 1, 0, 1000));
+        AdaptiveSizing sizing = new AdaptiveSizing(64, 1024, 128, 4096);
+        int size = 0;
+        for (int i = 0; i < AdaptiveSizing.WRITE_WINDOW; i++) {
+            size = sizing.onWrite(10, 10000000L, 0, 1000);
+        }
+        assertEquals(128, size);
+    }
+
+    @Test
+    public void rejectsBadBounds() {
+        assertBadBounds(0, 64, 128, 128);
+        assertBadBounds(64, 32, 128, 128);
+        assertBadBounds(64, 64, 0, 128);
+        assertBadBounds(64, 64, 128, 64);
+    }
+
+    private int reads(int count, int bytes, int bufferSize) {
+        int size = bufferSize;
+        for (int i = 0; i < count; i++) {
+            size = mSizing.onRead(bytes, bufferSize);
+        }
+        return size;
+    }
+
+    private int writes(int count, int bytes, long millis, int queueDepth, int chunkSize) {
+        int size = chunkSize;
+        for (int i = 0; i < count; i++) {
+            size = mSizing.onWrite(bytes, millis * 1000000L, queueDepth, chunkSize);
+        }
+        return size;
+    }
+
+    private static void assertBadBounds(int minRead, int maxRead, int minChunk, int maxChunk) {
+        try {
+            new AdaptiveSizing(minRead, maxRead, minChunk, maxChunk);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32cTest {
+
+    private static final byte[] CHECK = "123456789".getBytes(Charset.forName("US-ASCII"));
+
+    @Test
+    public void computesCheckValue() {
+        assertEquals(0xE3069283, Crc32c.compute(CHECK, 0, CHECK.length));
+    }
+
+    @Test
+    public void emptyInputIsZero() {
+        assertEquals(0, Crc32c.compute(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void updatesInPieces() {
+        Crc32c crc = new Crc32c();
+        crc.update(CHECK, 0, 2);
+        crc.update(CHECK[2]);
+        crc.update(CHECK, 3, 6);
+        assertEquals(0xE3069283L, crc.getValue());
+
+        crc.reset();
+        crc.update(CHECK, 0, CHECK.length);
+        assertEquals(0xE3069283L, crc.getValue());
+    }
+
+    @Test
+    public void wordAndByteStepsAgree() {
+        Random random = new Random(1);
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+        for (int offset = 0; offset < 8; offset++) {
+            for (int length = 0; length < 40; length++) {
+                Crc32c crc = new Crc32c();
+                for (int i = offset; i < offset + length; i++) {
+                    crc.update(data[i]);
+                }
+                assertEquals(crc.getValue(),
+                        Crc32c.compute(data, offset, length) & 0xFFFFFFFFL);
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileTransferChannelTest {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int FILE_SIZE = 64 * CHUNK_SIZE + 100;
+    private static final long TIMEOUT_SECONDS = 20;
+
+    // Changes records from the sender to the receiver, null drops one
+    private interface Fault {
+        byte[] onRecord(int index, byte[] record);
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDestinations;
+    private final List<Pair> mPairs = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mDestinations = mFolder.newFolder("received");
+    }
+
+    @After
+    public void tearDown() {
+        for (Pair pair : mPairs) {
+            pair.close();
+        }
+    }
+
+    @Test
+    public void sealedHeaderChecks() {
+        byte[] record = new byte[FileTransferChannel.HEADER_LENGTH + 16];
+        FileTransferChannel.seal(record, FileTransferChannel.TYPE_ACK, 16);
+        assertEquals(16, FileTransferChannel.checkHeader(record, 0));
+
+        record[4] ^= 1;
+        assertEquals(-1, FileTransferChannel.checkHeader(record, 0));
+    }
+
+    @Test
+    public void sendsFile() throws Exception {
+        byte[] data = randomBytes(1);
+        Pair pair = new Pair(null);
+
+        pair.send(write("firmware.bin", data));
+
+        pair.awaitDone();
+        assertArrayEquals(data, received("firmware.bin"));
+        assertEquals(0, pair.mmChunkOffsets.get(0).longValue());
+    }
+
+    @Test
+    public void resyncsAfterTruncatedRecord() throws Exception {
+        byte[] data = randomBytes(2);
+        Pair pair = new Pair(new Fault() {
+            @Override
+            public byte[] onRecord(int index, byte[] record) {
+                // The rest of the record is lost, the next one follows right away
+                return index == 5 ? Arrays.copyOf(record, record.length / 2) : record;
+            }
+        });
+
+        pair.send(write("firmware.bin", data));
+
+        pair.awaitDone();
+        assertArrayEquals(data, received("firmware.bin"));
+        assertTrue(pair.mmSenderMetrics.snapshot().getCounter(Metrics.FILE_BYTES_RESENT) > 0);
+    }
+
+    @Test
+    public void nackRewindsSender() throws Exception {
+        byte[] data = randomBytes(3);
+        Pair pair = new Pair(new Fault() {
+            @Override
+            public byte[] onRecord(int index, byte[] record) {
+                if (index == 3) {
+                    record[record.length - 1] ^= 0x10;
+                }
+                return record;
+            }
+        });
+
+        pair.send(write("firmware.bin", data));
+
+        pair.awaitDone();
+        assertArrayEquals(data, received("firmware.bin"));
+        assertEquals(1, pair.mmReceiverMetrics.snapshot()
+                .getCounter(Metrics.FILE_RECORDS_REJECTED));
+        // The offer is record 0, the corrupt chunk was the third one, at 2 KB. The sender
+        // went back to it after the chunks behind it.
+        List<Long> offsets = pair.mmChunkOffsets;
+        int rewind = offsets.lastIndexOf(2L * CHUNK_SIZE);
+        assertTrue(rewind > 2);
+        assertTrue(offsets.get(rewind - 1) > 2L * CHUNK_SIZE);
+    }
+
+    @Test
+    public void resumesFromVerifiedOffset() throws Exception {
+        byte[] data = randomBytes(4);
+        File file = write("firmware.bin", data);
+        long verified = abortAfter(file, 10);
+
+        Pair pair = new Pair(null);
+        pair.send(file);
+
+        pair.awaitDone();
+        assertArrayEquals(data, received("firmware.bin"));
+        assertEquals(verified, pair.mmChunkOffsets.get(0).longValue());
+        assertTrue(!new File(mDestinations, "firmware.bin.part.id").exists());
+    }
+
+    @Test
+    public void startsOverOnPartOfAnotherFile() throws Exception {
+        byte[] old = randomBytes(5);
+        abortAfter(write("firmware.bin", old), 10);
+        byte[] data = randomBytes(6);
+
+        Pair pair = new Pair(null);
+        pair.send(write("firmware.bin", data));
+
+        pair.awaitDone();
+        assertArrayEquals(data, received("firmware.bin"));
+        assertEquals(0, pair.mmChunkOffsets.get(0).longValue());
+    }
+
+    // Sends the file until the connection dies after the given number of records, returns
+    // how much the receiver verified
+    private long abortAfter(File file, final int records) throws Exception {
+        Pair pair = new Pair(new Fault() {
+            @Override
+            public byte[] onRecord(int index, byte[] record) {
+                return index < records ? record : null;
+            }
+        });
+        pair.send(file);
+        // The offer and then chunks
+        long verified = (long) (records - 1) * CHUNK_SIZE;
+        File part = new File(mDestinations, "firmware.bin" + FileTransferChannel.PART_SUFFIX);
+        long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (part.length() < verified) {
+            assertTrue("Part file not written", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        pair.close();
+        return verified;
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(mFolder.newFolder(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private byte[] received(String name) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(new File(mDestinations, name), "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] randomBytes(long seed) {
+        byte[] data = new byte[FILE_SIZE];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // Two channels wired to each other, the sender's records go through a fault
+    private class Pair implements FileTransfer.Listener {
+        final Metrics mmSenderMetrics = new Metrics();
+        final Metrics mmReceiverMetrics = new Metrics();
+        final FileTransferChannel mmSender;
+        final FileTransferChannel mmReceiver;
+        // Offsets of the chunks as they reached the receiver
+        final List<Long> mmChunkOffsets = new ArrayList<>();
+        final CountDownLatch mmDone = new CountDownLatch(2);
+        private final Fault mmFault;
+        private int mmRecords;
+        private volatile Exception mmFailure;
+
+        Pair(Fault fault) {
+            mPairs.add(this);
+            mmFault = fault;
+            mmSender = new FileTransferChannel(new FileTransferChannel.Receiver() {
+                @Override
+                public File getDestination(String name, long length) {
+                    return null;
+                }
+            }, this, null, mmSenderMetrics);
+            mmReceiver = new FileTransferChannel(new FileTransferChannel.Receiver() {
+                @Override
+                public File getDestination(String name, long length) {
+                    return new File(mDestinations, name);
+                }
+            }, this, null, mmReceiverMetrics);
+            mmSender.setChunkSize(CHUNK_SIZE);
+            ChannelMultiplexer multiplexer = new ChannelMultiplexer(null, new Counter());
+            final Channel[] channels = new Channel[2];
+            channels[0] = new Channel(1, mmSender.channelListener(), mmSender.ioExecutor(),
+                    new Channel.Writer() {
+                @Override
+                public boolean write(Channel channel, byte[] data, int offset, int length,
+                        boolean urgent) {
+                    byte[] record = forward(Arrays.copyOfRange(data, offset, offset + length));
+                    if (record != null) {
+                        channels[1].deliver(record, 0, record.length);
+                    }
+                    return true;
+                }
+            }, multiplexer);
+            channels[1] = new Channel(1, mmReceiver.channelListener(), mmReceiver.ioExecutor(),
+                    new Channel.Writer() {
+                @Override
+                public boolean write(Channel channel, byte[] data, int offset, int length,
+                        boolean urgent) {
+                    channels[0].deliver(data, offset, length);
+                    return true;
+                }
+            }, multiplexer);
+            mmSender.attach(channels[0]);
+            mmReceiver.attach(channels[1]);
+        }
+
+        // On the sender thread, one record per call
+        private synchronized byte[] forward(byte[] record) {
+            byte[] forwarded = mmFault != null ? mmFault.onRecord(mmRecords, record) : record;
+            mmRecords++;
+            if (forwarded != null && forwarded.length == record.length
+                    && record[2] == FileTransferChannel.TYPE_CHUNK) {
+                mmChunkOffsets.add(ReliableSession.getLong(record,
+                        FileTransferChannel.HEADER_LENGTH + 8));
+            }
+            return forwarded;
+        }
+
+        void send(File file) throws IOException {
+            mmSender.send(file);
+        }
+
+        void awaitDone() throws Exception {
+            assertTrue("Transfer not done", mmDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            if (mmFailure != null) {
+                throw mmFailure;
+            }
+        }
+
+        void close() {
+            mmSender.close();
+            mmReceiver.close();
+        }
+
+        @Override
+        public void onProgress(FileTransfer transfer) {
+        }
+
+        @Override
+        public void onComplete(FileTransfer transfer) {
+            mmDone.countDown();
+        }
+
+        @Override
+        public void onFailure(FileTransfer transfer, Exception error) {
+            mmFailure = error;
+            mmDone.countDown();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FlowControlTest {
+
+    private static final int WINDOW = 4096;
+    private static final int PAYLOAD_SIZE = 5 * WINDOW;
+    private static final int CHUNK_SIZE = 1000;
+    private static final long TIMEOUT_MILLIS = 5000;
+    // How long data that should not come gets to show up anyway
+    private static final long QUIET_MILLIS = 200;
+
+    private final PipeTransport mTransport = new PipeTransport();
+    private final Receiver mReceiver = new Receiver();
+    private final BluetoothService mServer = new BluetoothService(mTransport, mReceiver);
+    private final BluetoothService mClient = new BluetoothService(mTransport, new Receiver());
+    private final byte[] mPayload = new byte[PAYLOAD_SIZE];
+
+    @Before
+    public void connect() throws Exception {
+        new Random(1).nextBytes(mPayload);
+        mServer.setFlowControl(true, WINDOW);
+        mClient.setFlowControl(true, WINDOW);
+        mServer.start(true, true);
+        mClient.start(true, true);
+        mClient.connect("peer");
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mServer.getState() != BluetoothService.STATE_CONNECTED
+                || mClient.getState() != BluetoothService.STATE_CONNECTED) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Not connected");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @After
+    public void stop() {
+        mClient.stop();
+        mServer.stop();
+    }
+
+    @Test
+    public void senderWaitsOnceWindowIsUsedUp() throws Exception {
+        send();
+
+        mReceiver.awaitReceived(WINDOW);
+        Thread.sleep(QUIET_MILLIS);
+
+        assertEquals(WINDOW, mReceiver.received());
+        Metrics.Snapshot metrics = mClient.getMetrics().snapshot();
+        assertEquals(0, metrics.getCounter(Metrics.FLOW_WINDOW));
+        assertTrue(metrics.getCounter(Metrics.FLOW_STALLS) >= 1);
+        assertEquals(WINDOW, mServer.getMetrics().snapshot().getCounter(Metrics.FLOW_BACKLOG));
+    }
+
+    @Test
+    public void smallGrantsWaitForQuarterWindow() throws Exception {
+        send();
+        mReceiver.awaitReceived(WINDOW);
+
+        mServer.consumed(WINDOW / 4 - 1);
+        Thread.sleep(QUIET_MILLIS);
+        assertEquals(WINDOW, mReceiver.received());
+
+        mServer.consumed(1);
+        mReceiver.awaitReceived(WINDOW + WINDOW / 4);
+        Thread.sleep(QUIET_MILLIS);
+        assertEquals(WINDOW + WINDOW / 4, mReceiver.received());
+    }
+
+    @Test
+    public void consumedDataLetsEverythingThrough() throws Exception {
+        send();
+        mReceiver.awaitReceived(WINDOW);
+
+        mReceiver.consumeAll(mServer);
+
+        assertArrayEquals(mPayload, mReceiver.awaitReceived(PAYLOAD_SIZE));
+    }
+
+    private void send() {
+        for (int i = 0; i < PAYLOAD_SIZE; i += CHUNK_SIZE) {
+            mClient.write(mPayload, i, Math.min(CHUNK_SIZE, PAYLOAD_SIZE - i), false);
+        }
+    }
+
+    private static class Receiver implements BluetoothService.Callback {
+
+        private final ByteArrayOutputStream mmReceived = new ByteArrayOutputStream();
+        private BluetoothService mmService;
+
+        @Override
+        public void onStateChanged(int oldState, int newState) {
+        }
+
+        @Override
+        public void onConnected(String address) {
+        }
+
+        @Override
+        public void onDataRead(byte[] buffer, int length) {
+            BluetoothService service;
+            synchronized (this) {
+                mmReceived.write(buffer, 0, length);
+                notifyAll();
+                service = mmService;
+            }
+            if (service != null) {
+                service.consumed(length);
+            }
+        }
+
+        @Override
+        public void onDataWritten(byte[] buffer) {
+        }
+
+        @Override
+        public void onChannelData(int channel, byte[] buffer, int offset, int length) {
+        }
+
+        // Hands back what arrived so far and everything arriving from now on
+        void consumeAll(BluetoothService service) {
+            int received;
+            synchronized (this) {
+                mmService = service;
+                received = mmReceived.size();
+            }
+            service.consumed(received);
+        }
+
+        synchronized int received() {
+            return mmReceived.size();
+        }
+
+        synchronized byte[] awaitReceived(int bytes) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (mmReceived.size() < bytes) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    fail("Received " + mmReceived.size() + " of " + bytes + " bytes");
+                }
+                wait(remaining);
+            }
+            return mmReceived.toByteArray();
+        }
+    }
+}
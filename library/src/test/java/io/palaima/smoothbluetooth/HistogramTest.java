@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void emptySnapshotIsZero() {
+        Histogram.Snapshot snapshot = new Histogram().snapshot();
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getMean(), 0);
+        assertEquals(0, snapshot.getPercentile(50));
+    }
+
+    @Test
+    public void countsSumAndMax() {
+        Histogram histogram = new Histogram();
+        histogram.record(3);
+        histogram.record(10);
+        histogram.record(5);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(3, snapshot.getCount());
+        assertEquals(18, snapshot.getSum());
+        assertEquals(10, snapshot.getMax());
+        assertEquals(6, snapshot.getMean(), 0);
+    }
+
+    @Test
+    public void recordsNegativeValuesAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+
+        assertEquals(0, histogram.snapshot().getSum());
+        assertEquals(0, histogram.snapshot().getPercentile(100));
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        // Each value falls into a bucket whose bounds hold it, buckets never go backwards
+        int last = -1;
+        for (long value : new long[] {0, 1, 2, 3, 4, 5, 7, 8, 100, 1000, 123456789L,
+                Long.MAX_VALUE / 2, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucketOf(value);
+            assertTrue(bucket >= last);
+            assertTrue(value <= Histogram.upperBoundOf(bucket));
+            if (bucket > 0) {
+                assertTrue(value > Histogram.upperBoundOf(bucket - 1));
+            }
+            last = bucket;
+        }
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (int value = 0; value < 8; value++) {
+            assertEquals(value, Histogram.upperBoundOf(Histogram.bucketOf(value)));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertWithin(500, snapshot.getPercentile(50));
+        assertWithin(990, snapshot.getPercentile(99));
+        assertEquals(1000, snapshot.getPercentile(100));
+        assertEquals(1, snapshot.getPercentile(0));
+    }
+
+    @Test
+    public void percentileNeverExceedsMax() {
+        Histogram histogram = new Histogram();
+        histogram.record(1025);
+
+        assertEquals(1025, histogram.snapshot().getPercentile(50));
+    }
+
+    // Buckets are a quarter of their power of two wide, so no more than 25% above
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 5 / 4);
+    }
+}
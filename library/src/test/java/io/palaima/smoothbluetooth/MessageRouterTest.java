@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class MessageRouterTest {
+
+    // Two byte varint 0xAC 0x02
+    private static final int TYPE_ID = 300;
+
+    private static final MessageCodec<byte[]> CODEC = new MessageCodec<byte[]>() {
+        @Override
+        public void encode(byte[] message, MessageBuffer out) {
+            for (byte b : message) {
+                out.writeByte(b);
+            }
+        }
+
+        @Override
+        public byte[] decode(MessageBuffer in) {
+            byte[] message = new byte[in.remaining()];
+            for (int i = 0; i < message.length; i++) {
+                message[i] = (byte) in.readByte();
+            }
+            return message;
+        }
+    };
+
+    private final Metrics mMetrics = new Metrics();
+    private final ByteArrayOutputStream mSent = new ByteArrayOutputStream();
+    private final List<byte[]> mReceived = new ArrayList<>();
+    private boolean mRejectSends;
+    private MessageRouter mRouter;
+
+    @Before
+    public void setUp() {
+        mRouter = new MessageRouter(new MessageRouter.Sender() {
+            @Override
+            public boolean send(MessageBuffer buffer, int offset, int priority) {
+                if (mRejectSends) {
+                    return false;
+                }
+                mSent.write(buffer.array(), offset, buffer.position() - offset);
+                buffer.release();
+                return true;
+            }
+        }, mMetrics);
+        mRouter.register(TYPE_ID, byte[].class, CODEC);
+        mRouter.addListener(byte[].class, new MessageListener<byte[]>() {
+            @Override
+            public void onMessage(byte[] message) {
+                mReceived.add(message);
+            }
+        }, null);
+    }
+
+    @Test
+    public void framesWithVarintLengthAndTypeId() {
+        mRouter.send(new byte[] {1, 2, 3}, 0);
+
+        assertArrayEquals(new byte[] {5, (byte) 0xAC, 0x02, 1, 2, 3}, mSent.toByteArray());
+        assertEquals(1, counter(Metrics.MESSAGES_OUT));
+    }
+
+    @Test
+    public void framesLongMessageWithMultiByteLength() {
+        byte[] message = bytes(200, 7);
+        mRouter.send(message, 0);
+
+        byte[] sent = mSent.toByteArray();
+        // 202 = 0xCA 0x01
+        assertEquals((byte) 0xCA, sent[0]);
+        assertEquals(0x01, sent[1]);
+        assertEquals(2 + 2 + 200, sent.length);
+
+        mRouter.onData(sent, 0, sent.length);
+        assertEquals(1, mReceived.size());
+        assertArrayEquals(message, mReceived.get(0));
+    }
+
+    @Test
+    public void decodesSeveralMessagesOfOneRead() {
+        mRouter.send(bytes(10, 1), 0);
+        mRouter.send(new byte[0], 0);
+        mRouter.send(bytes(300, 2), 0);
+
+        byte[] sent = mSent.toByteArray();
+        mRouter.onData(sent, 0, sent.length);
+
+        assertEquals(3, mReceived.size());
+        assertArrayEquals(bytes(10, 1), mReceived.get(0));
+        assertArrayEquals(new byte[0], mReceived.get(1));
+        assertArrayEquals(bytes(300, 2), mReceived.get(2));
+        assertEquals(3, counter(Metrics.MESSAGES_IN));
+    }
+
+    @Test
+    public void decodesMessagesSplitAcrossReads() {
+        mRouter.send(bytes(10, 1), 0);
+        mRouter.send(bytes(300, 2), 0);
+        mRouter.send(bytes(1, 3), 0);
+        byte[] sent = mSent.toByteArray();
+
+        // Every split point, including inside the length and the type id
+        for (int split = 1; split < sent.length; split++) {
+            mReceived.clear();
+            mRouter.onData(sent, 0, split);
+            mRouter.onData(sent, split, sent.length - split);
+            assertEquals("split at " + split, 3, mReceived.size());
+            assertArrayEquals(bytes(300, 2), mReceived.get(1));
+        }
+    }
+
+    @Test
+    public void decodesOneByteAtATime() {
+        mRouter.send(bytes(300, 2), 0);
+        mRouter.send(bytes(5, 1), 0);
+        byte[] sent = mSent.toByteArray();
+
+        for (int i = 0; i < sent.length; i++) {
+            mRouter.onData(sent, i, 1);
+        }
+
+        assertEquals(2, mReceived.size());
+        assertArrayEquals(bytes(300, 2), mReceived.get(0));
+        assertArrayEquals(bytes(5, 1), mReceived.get(1));
+    }
+
+    @Test
+    public void waitsForLengthOfUpToFiveBytes() {
+        byte[] length = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80};
+        mRouter.onData(length, 0, length.length);
+
+        assertEquals(0, counter(Metrics.MESSAGES_DROPPED));
+    }
+
+    @Test
+    public void dropsStreamWhenLengthRunsPastFiveBytes() {
+        byte[] length = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+        mRouter.onData(length, 0, 4);
+        mRouter.onData(length, 4, 2);
+
+        assertEquals(1, counter(Metrics.MESSAGES_DROPPED));
+
+        // The broken bytes are gone, a new message decodes
+        mRouter.send(bytes(3, 1), 0);
+        byte[] sent = mSent.toByteArray();
+        mRouter.onData(sent, 0, sent.length);
+        assertEquals(1, mReceived.size());
+    }
+
+    @Test
+    public void dropsStreamWhenLengthIsOverLimit() {
+        int length = MessageRouter.MAX_MESSAGE_LENGTH + 1;
+        byte[] header = new byte[5];
+        int end = MessageBuffer.putVarint(header, 0, length);
+        mRouter.onData(header, 0, end);
+
+        assertEquals(1, counter(Metrics.MESSAGES_DROPPED));
+        assertEquals(0, mReceived.size());
+    }
+
+    @Test
+    public void dropsStreamWhenLengthIsZero() {
+        mRouter.onData(new byte[] {0, 2, (byte) 0xAC, 0x02}, 0, 4);
+
+        assertEquals(1, counter(Metrics.MESSAGES_DROPPED));
+        assertEquals(0, mReceived.size());
+    }
+
+    @Test
+    public void rejectsSendingMessageOverLimit() {
+        try {
+            mRouter.send(new byte[MessageRouter.MAX_MESSAGE_LENGTH], 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, mSent.size());
+        assertEquals(0, counter(Metrics.MESSAGES_OUT));
+    }
+
+    @Test
+    public void dropsUnknownTypeIdAndGoesOn() {
+        // Type 7 with a two byte body, then a registered one
+        mRouter.send(bytes(4, 1), 0);
+        byte[] known = mSent.toByteArray();
+        byte[] data = new byte[4 + known.length];
+        data[0] = 3;
+        data[1] = 7;
+        System.arraycopy(known, 0, data, 4, known.length);
+
+        mRouter.onData(data, 0, data.length);
+
+        assertEquals(1, counter(Metrics.MESSAGES_DROPPED));
+        assertEquals(1, counter(Metrics.MESSAGES_IN));
+        assertEquals(1, mReceived.size());
+        assertArrayEquals(bytes(4, 1), mReceived.get(0));
+    }
+
+    @Test
+    public void dropsMessageWhichFailsToDecode() {
+        mRouter.addListener(byte[].class, new MessageListener<byte[]>() {
+            @Override
+            public void onMessage(byte[] message) {
+                throw new IllegalStateException();
+            }
+        }, null);
+        mRouter.send(bytes(4, 1), 0);
+        mRouter.send(bytes(4, 2), 0);
+        byte[] sent = mSent.toByteArray();
+
+        mRouter.onData(sent, 0, sent.length);
+
+        assertEquals(2, counter(Metrics.MESSAGES_DROPPED));
+        assertEquals(2, mReceived.size());
+    }
+
+    @Test
+    public void reportsMessageSenderTurnedAway() {
+        mRejectSends = true;
+
+        assertFalse(mRouter.send(bytes(4, 1), 0));
+        assertEquals(0, counter(Metrics.MESSAGES_OUT));
+    }
+
+    @Test
+    public void resetDropsPartialMessage() {
+        mRouter.send(bytes(10, 1), 0);
+        byte[] sent = mSent.toByteArray();
+        mRouter.onData(sent, 0, 5);
+
+        mRouter.reset();
+        mRouter.onData(sent, 0, sent.length);
+
+        assertEquals(1, mReceived.size());
+        assertArrayEquals(bytes(10, 1), mReceived.get(0));
+    }
+
+    @Test
+    public void latestListenerGetsNewestMessagePerKey() {
+        ManualExecutor executor = new ManualExecutor();
+        final List<byte[]> latest = new ArrayList<>();
+        mRouter.addLatestListener(byte[].class, new MessageKey<byte[]>() {
+            @Override
+            public Object keyOf(byte[] message) {
+                return message[0];
+            }
+        }, new MessageListener<byte[]>() {
+            @Override
+            public void onMessage(byte[] message) {
+                latest.add(message);
+            }
+        }, executor);
+
+        receiveAll(new byte[] {1, 1}, new byte[] {2, 1}, new byte[] {1, 2}, new byte[] {1, 3});
+
+        // One drain is scheduled however many messages come before it runs
+        assertEquals(1, executor.mmTasks.size());
+        executor.runAll();
+        assertEquals(2, latest.size());
+        assertArrayEquals(new byte[] {1, 3}, find(latest, 1));
+        assertArrayEquals(new byte[] {2, 1}, find(latest, 2));
+        assertEquals(2, counter(Metrics.MESSAGES_CONFLATED));
+        // Plain listeners still get every message
+        assertEquals(4, mReceived.size());
+    }
+
+    @Test
+    public void latestListenerWithoutKeyKeepsOneMessage() {
+        ManualExecutor executor = new ManualExecutor();
+        final List<byte[]> latest = new ArrayList<>();
+        mRouter.addLatestListener(byte[].class, null, new MessageListener<byte[]>() {
+            @Override
+            public void onMessage(byte[] message) {
+                latest.add(message);
+            }
+        }, executor);
+
+        receiveAll(new byte[] {1}, new byte[] {2}, new byte[] {3});
+        executor.runAll();
+        receiveAll(new byte[] {4});
+        executor.runAll();
+
+        assertEquals(2, latest.size());
+        assertArrayEquals(new byte[] {3}, latest.get(0));
+        assertArrayEquals(new byte[] {4}, latest.get(1));
+        assertEquals(2, counter(Metrics.MESSAGES_CONFLATED));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void latestListenerNeedsExecutor() {
+        mRouter.addLatestListener(byte[].class, null, new MessageListener<byte[]>() {
+            @Override
+            public void onMessage(byte[] message) {
+            }
+        }, null);
+    }
+
+    private void receiveAll(byte[]... messages) {
+        mSent.reset();
+        for (byte[] message : messages) {
+            mRouter.send(message, 0);
+        }
+        byte[] sent = mSent.toByteArray();
+        mRouter.onData(sent, 0, sent.length);
+    }
+
+    private static byte[] find(List<byte[]> messages, int key) {
+        for (byte[] message : messages) {
+            if (message[0] == key) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private static class ManualExecutor implements Executor {
+        final Queue<Runnable> mmTasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            mmTasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = mmTasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private long counter(String name) {
+        return mMetrics.snapshot().getCounter(name);
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) seed);
+        for (int i = 0; i < length; i += 7) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+    private static final int HIGH = 0;
+    private static final int NORMAL = 1;
+    private static final int CHUNK = 10;
+
+    private final Counter mDepth = new Counter();
+    private final OutboundQueue mQueue = new OutboundQueue(2, mDepth);
+    private final Map<OutboundQueue.Message, String> mNames = new IdentityHashMap<>();
+
+    @Test
+    public void takesMostUrgentLaneFirst() throws Exception {
+        offer("n1", 5, NORMAL, 1);
+        offer("h1", 5, HIGH, 1);
+        offer("n2", 5, NORMAL, 2);
+        offer("h2", 5, HIGH, 2);
+
+        assertEquals("[h1, h2, n1, n2]", drain().toString());
+    }
+
+    @Test
+    public void keepsOrderWithinChannel() throws Exception {
+        offer("a1", 5, NORMAL, 1);
+        offer("a2", 5, NORMAL, 1);
+        offer("b1", 5, NORMAL, 2);
+
+        assertEquals("[a1, b1, a2]", drain().toString());
+    }
+
+    @Test
+    public void channelsTakeTurnsChunkAtATime() throws Exception {
+        offer("a", 3 * CHUNK, NORMAL, 1);
+        offer("b", 3 * CHUNK, NORMAL, 2);
+        offer("c", CHUNK, NORMAL, 3);
+
+        assertEquals("[a, b, c, a, b, a, b]", drain().toString());
+    }
+
+    @Test
+    public void urgentMessageWaitsForPartialMessageOfItsChannel() throws Exception {
+        offer("bulk", 3 * CHUNK, NORMAL, 1);
+        assertEquals("bulk", writeChunk());
+
+        offer("h1", 5, HIGH, 1);
+        offer("h2", 5, HIGH, 2);
+
+        // Other channels still go between the chunks
+        assertEquals("[h2, bulk, bulk, h1]", drain().toString());
+    }
+
+    @Test
+    public void turnsAwayNonBlockingOfferWhenFull() throws Exception {
+        offer("full", OutboundQueue.MAX_QUEUED_BYTES, NORMAL, 1);
+
+        assertFalse(mQueue.offer(message("n", 1, NORMAL, 2), false));
+        // The urgent lane never waits for room
+        assertTrue(mQueue.offer(message("h", 1, HIGH, 2), false));
+        assertEquals(2, mQueue.size());
+        assertEquals(2, mDepth.get());
+    }
+
+    @Test
+    public void blockingOfferWaitsForRoom() throws Exception {
+        offer("full", OutboundQueue.MAX_QUEUED_BYTES, NORMAL, 1);
+        final CountDownLatch offered = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (mQueue.offer(message("n", 1, NORMAL, 2), true)) {
+                        offered.countDown();
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        thread.start();
+
+        assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+        OutboundQueue.Message full = mQueue.peek();
+        full.mOffset = full.mEnd;
+        mQueue.advance(full);
+        assertTrue(offered.await(5, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    @Test
+    public void suspendedQueueTurnsAwayOfferWhichWouldWait() throws Exception {
+        offer("full", OutboundQueue.MAX_QUEUED_BYTES, NORMAL, 1);
+        mQueue.suspend();
+
+        assertFalse(mQueue.offer(message("n", 1, NORMAL, 2), true));
+
+        mQueue.resume();
+        assertFalse(mQueue.offer(message("n", 1, NORMAL, 2), false));
+    }
+
+    @Test
+    public void wakeReturnsWakeupOnce() throws Exception {
+        offer("a", 5, NORMAL, 1);
+        mQueue.wake();
+
+        assertSame(OutboundQueue.WAKEUP, mQueue.peek());
+        assertEquals("a", writeChunk());
+    }
+
+    @Test
+    public void closeDropsEverything() throws Exception {
+        offer("a", 3 * CHUNK, NORMAL, 1);
+        offer("b", 5, HIGH, 2);
+        writeChunk();
+
+        mQueue.close();
+
+        assertNull(mQueue.peek());
+        assertEquals(0, mQueue.size());
+        assertEquals(0, mDepth.get());
+        assertFalse(mQueue.offer(message("c", 5, NORMAL, 1), false));
+    }
+
+    private void offer(String name, int length, int priority, int channel) throws Exception {
+        assertTrue(mQueue.offer(message(name, length, priority, channel), false));
+    }
+
+    private OutboundQueue.Message message(String name, int length, int priority, int channel) {
+        OutboundQueue.Message message = new OutboundQueue.Message(new byte[length], 0, length,
+                false, priority, channel, null);
+        mNames.put(message, name);
+        return message;
+    }
+
+    // Does what the write thread does for one chunk, returns the name of the message
+    private String writeChunk() throws InterruptedException {
+        OutboundQueue.Message message = mQueue.peek();
+        message.mOffset += Math.min(CHUNK, message.remaining());
+        mQueue.advance(message);
+        return mNames.get(message);
+    }
+
+    private List<String> drain() throws InterruptedException {
+        List<String> written = new ArrayList<>();
+        while (mQueue.size() > 0) {
+            written.add(writeChunk());
+        }
+        return written;
+    }
+}
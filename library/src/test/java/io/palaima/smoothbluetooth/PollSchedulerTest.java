@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PollSchedulerTest {
+
+    private final ScheduledExecutorService mLink = Executors.newSingleThreadScheduledExecutor();
+    private final Link mRequester = new Link();
+    private final PollScheduler mScheduler = new PollScheduler(mRequester);
+
+    // Answers every request after a fixed delay, like a link with that round trip time
+    private class Link implements PollScheduler.Requester {
+        volatile long mmDelayMillis;
+        private final Map<String, Integer> mmOutstanding = new HashMap<>();
+        private int mmTotal;
+        private int mmMaxTotal;
+        private boolean mmOverlapped;
+
+        @Override
+        public RequestFuture request(byte[] command, long timeoutMillis) {
+            final String key = new String(command);
+            final RequestFuture future = new RequestFuture();
+            synchronized (this) {
+                Integer outstanding = mmOutstanding.get(key);
+                if (outstanding != null && outstanding > 0) {
+                    mmOverlapped = true;
+                }
+                mmOutstanding.put(key, outstanding == null ? 1 : outstanding + 1);
+                mmMaxTotal = Math.max(mmMaxTotal, ++mmTotal);
+            }
+            mLink.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Link.this) {
+                        mmOutstanding.put(key, mmOutstanding.get(key) - 1);
+                        mmTotal--;
+                    }
+                    future.complete(new byte[0]);
+                }
+            }, mmDelayMillis, TimeUnit.MILLISECONDS);
+            return future;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.stop();
+        mLink.shutdownNow();
+    }
+
+    @Test
+    public void keepsPhaseWhileResponsesTakeTime() throws Exception {
+        // 30 ms per response and a 50 ms period, drifting by the response time would
+        // make it 12.5 per second
+        mRequester.mmDelayMillis = 30;
+        PollScheduler.Poll poll = mScheduler.add("0100", 20, null);
+        mScheduler.start();
+        Thread.sleep(2000);
+        mScheduler.stop();
+
+        long responses = poll.getResponses();
+        assertTrue("responses=" + responses, responses >= 36 && responses <= 42);
+        assertEquals(20, poll.getScheduledRate(), 0);
+    }
+
+    @Test
+    public void cutsFastestPollsWhenLinkIsSaturated() throws Exception {
+        mRequester.mmDelayMillis = 20;
+        PollScheduler.Poll[] fast = new PollScheduler.Poll[3];
+        for (int i = 0; i < fast.length; i++) {
+            fast[i] = mScheduler.add("fast" + i, 100, null);
+        }
+        PollScheduler.Poll medium = mScheduler.add("medium", 5, null);
+        PollScheduler.Poll slow = mScheduler.add("slow", 1, null);
+        mScheduler.start();
+        Thread.sleep(1600);
+        mScheduler.stop();
+
+        // Polls below an equal share keep their rate, the fast ones split the rest evenly
+        assertEquals(5, medium.getScheduledRate(), 0);
+        assertEquals(1, slow.getScheduledRate(), 0);
+        assertTrue(medium.getResponses() > 0 && slow.getResponses() > 0);
+        double rate = fast[0].getScheduledRate();
+        assertEquals(rate, fast[1].getScheduledRate(), 1e-9);
+        assertEquals(rate, fast[2].getScheduledRate(), 1e-9);
+        // About 45 requests a second fit at 90% of a 20 ms round trip
+        double capacity = PollScheduler.UTILIZATION * 1e6 / mScheduler.getRoundTripMicros();
+        double total = 3 * rate + 5 + 1;
+        assertTrue("total=" + total + " capacity=" + capacity,
+                total > capacity * 0.8 && total < capacity * 1.2);
+        assertTrue(rate < 15);
+    }
+
+    @Test
+    public void restoresRatesOnceTheyFit() throws Exception {
+        mRequester.mmDelayMillis = 20;
+        PollScheduler.Poll a = mScheduler.add("a", 100, null);
+        PollScheduler.Poll b = mScheduler.add("b", 100, null);
+        mScheduler.start();
+        Thread.sleep(1100);
+        assertTrue(a.getScheduledRate() < 100);
+
+        a.setRequestedRate(2);
+        b.setRequestedRate(3);
+
+        assertEquals(2, a.getScheduledRate(), 0);
+        assertEquals(3, b.getScheduledRate(), 0);
+    }
+
+    @Test
+    public void keepsOneRequestPerPollAndLimitOutstanding() throws Exception {
+        mRequester.mmDelayMillis = 15;
+        mScheduler.setMaxOutstanding(2);
+        for (int i = 0; i < 5; i++) {
+            mScheduler.add("poll" + i, 50, null);
+        }
+        mScheduler.start();
+        Thread.sleep(800);
+        mScheduler.stop();
+
+        synchronized (mRequester) {
+            assertTrue(!mRequester.mmOverlapped);
+            assertEquals(2, mRequester.mmMaxTotal);
+        }
+    }
+
+    @Test
+    public void rejectsBadSettings() {
+        try {
+            mScheduler.add("0100", 0, null);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mScheduler.setMaxOutstanding(0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
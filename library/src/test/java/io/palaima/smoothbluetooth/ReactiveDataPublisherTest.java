@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReactiveDataPublisherTest {
+
+    private final DataPublisher mPublisher = new DataPublisher();
+    private final ReactiveDataPublisher mReactive = new ReactiveDataPublisher(mPublisher);
+    private final Recorder mSubscriber = new Recorder();
+
+    @Test
+    public void deliversReadsAsDemanded() throws Exception {
+        mReactive.subscribe(mSubscriber);
+        mSubscriber.mSubscription.request(1);
+
+        assertTrue(mPublisher.onData(new byte[] {1, 2, 3}, 2));
+        final CountDownLatch read = new CountDownLatch(1);
+        Thread readThread = new Thread() {
+            @Override
+            public void run() {
+                mPublisher.onData(new byte[] {4}, 1);
+                read.countDown();
+            }
+        };
+        readThread.start();
+
+        // No demand, the read thread waits
+        assertFalse(read.await(100, TimeUnit.MILLISECONDS));
+        mSubscriber.mSubscription.request(1);
+        assertTrue(read.await(5, TimeUnit.SECONDS));
+        readThread.join();
+        assertEquals("[[1, 2], [4]]", mSubscriber.mSignals.toString());
+    }
+
+    @Test
+    public void completesOnDisconnect() {
+        mReactive.subscribe(mSubscriber);
+
+        mPublisher.onDisconnected();
+
+        assertEquals("[complete]", mSubscriber.mSignals.toString());
+        assertFalse(mPublisher.hasSubscriber());
+    }
+
+    @Test
+    public void cancelGivesDataBack() {
+        mReactive.subscribe(mSubscriber);
+        mSubscriber.mSubscription.request(Long.MAX_VALUE);
+
+        mSubscriber.mSubscription.cancel();
+
+        assertFalse(mPublisher.onData(new byte[1], 1));
+        assertTrue(mSubscriber.mSignals.isEmpty());
+    }
+
+    @Test
+    public void signalsErrorForNonPositiveRequest() {
+        mReactive.subscribe(mSubscriber);
+
+        mSubscriber.mSubscription.request(0);
+
+        assertEquals(1, mSubscriber.mSignals.size());
+        assertTrue(mSubscriber.mSignals.get(0) instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void rejectsNullSubscriber() {
+        try {
+            mReactive.subscribe(null);
+            fail();
+        } catch (NullPointerException expected) {
+        }
+    }
+
+    private static class Recorder implements Subscriber<ByteBuffer> {
+        final List<Object> mSignals = new ArrayList<>();
+        Subscription mSubscription;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            mSubscription = subscription;
+        }
+
+        @Override
+        public synchronized void onNext(ByteBuffer data) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            mSignals.add(Arrays.toString(bytes));
+        }
+
+        @Override
+        public synchronized void onError(Throwable error) {
+            mSignals.add(error);
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            mSignals.add("complete");
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReliableSessionTest {
+
+    private final Counter mUnacked = new Counter();
+    private final ReliableSession mSession = new ReliableSession(1000, mUnacked);
+    private final ReliableSession mPeer = new ReliableSession(1000, new Counter());
+
+    @Test
+    public void firstConnectionHasNothingToResume() throws Exception {
+        assertEquals(0, mSession.getPeerId());
+
+        long[] resendFrom = connect(mSession, mPeer);
+
+        assertEquals(-1, resendFrom[0]);
+        assertEquals(-1, resendFrom[1]);
+        assertEquals(mPeer.getId(), mSession.getPeerId());
+        assertEquals(mSession.getId(), mPeer.getPeerId());
+    }
+
+    @Test
+    public void appendReturnsStreamOffsets() {
+        assertEquals(0, append(mSession, 50));
+        assertEquals(50, append(mSession, 30));
+        assertEquals(80, mUnacked.get());
+    }
+
+    @Test
+    public void ackDropsAcknowledgedRecords() throws Exception {
+        append(mSession, 50);
+        append(mSession, 50);
+        append(mSession, 50);
+
+        mSession.ack(60);
+
+        ReliableSession.Record[] unacked = mSession.unacked();
+        assertEquals(2, unacked.length);
+        assertEquals(50, unacked[0].mSeq);
+        assertEquals(100, unacked[1].mSeq);
+        assertEquals(90, mUnacked.get());
+    }
+
+    @Test
+    public void rejectsAckOutsideOfSentData() throws Exception {
+        append(mSession, 50);
+        mSession.ack(20);
+
+        assertBadAck(51);
+        assertBadAck(19);
+    }
+
+    @Test
+    public void resumesFromWhatPeerReceived() throws Exception {
+        connect(mSession, mPeer);
+        byte[] data = new byte[150];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        mSession.append(3, data, 0, 50);
+        mSession.append(3, data, 50, 50);
+        mSession.append(4, data, 100, 50);
+        // The link went down with 60 bytes delivered and none of it acknowledged
+        mPeer.received(60);
+
+        long[] resendFrom = connect(mSession, mPeer);
+
+        assertEquals(60, resendFrom[0]);
+        assertEquals(0, resendFrom[1]);
+        ReliableSession.Record[] unacked = mSession.unacked();
+        assertEquals(2, unacked.length);
+        assertEquals(50, unacked[0].mSeq);
+        assertEquals(3, unacked[0].mChannel);
+        assertArrayEquals(Arrays.copyOfRange(data, 50, 100), unacked[0].mData);
+        assertEquals(100, unacked[1].mSeq);
+        assertEquals(4, unacked[1].mChannel);
+        // The first 10 bytes of the record sent again are duplicates to the peer
+        assertEquals(10, mPeer.inboundNext() - unacked[0].mSeq);
+        assertEquals(90, mUnacked.get());
+    }
+
+    @Test
+    public void newPeerSessionDropsUnackedData() throws Exception {
+        connect(mSession, mPeer);
+        append(mSession, 50);
+        mSession.received(40);
+        ReliableSession restarted = new ReliableSession(1000, new Counter());
+
+        long[] resendFrom = connect(mSession, restarted);
+
+        assertEquals(-1, resendFrom[0]);
+        assertEquals(0, mSession.unacked().length);
+        assertEquals(0, mUnacked.get());
+        assertEquals(restarted.getId(), mSession.getPeerId());
+        assertEquals(0, mSession.inboundNext());
+    }
+
+    @Test
+    public void failsWhenPeerDroppedDataNotReceived() throws Exception {
+        connect(mSession, mPeer);
+        append(mPeer, 50);
+        // The peer took 50 bytes as acknowledged which never arrived here
+        mPeer.ack(50);
+        byte[] state = new byte[ReliableSession.STATE_LENGTH];
+        mPeer.writeState(state, 0);
+
+        try {
+            mSession.onPeerState(state, 0);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void hasRoomUpToCapacity() throws Exception {
+        assertTrue(mSession.hasRoom(5000));
+        append(mSession, 800);
+
+        assertTrue(mSession.hasRoom(200));
+        assertFalse(mSession.hasRoom(201));
+
+        mSession.ack(800);
+        assertTrue(mSession.hasRoom(5000));
+    }
+
+    @Test
+    public void stateRoundTrips() {
+        mSession.received(1234);
+        byte[] state = new byte[ReliableSession.STATE_LENGTH + 4];
+        mSession.writeState(state, 4);
+
+        assertEquals(mSession.getId(), ReliableSession.getLong(state, 4));
+        assertEquals(0, ReliableSession.getLong(state, 12));
+        assertEquals(1234, ReliableSession.getLong(state, 20));
+        assertEquals(0, ReliableSession.getLong(state, 28));
+    }
+
+    // Both ends send their state as on a new connection, returns where each resends from
+    private static long[] connect(ReliableSession a, ReliableSession b) throws IOException {
+        byte[] stateA = new byte[ReliableSession.STATE_LENGTH];
+        byte[] stateB = new byte[ReliableSession.STATE_LENGTH];
+        a.writeState(stateA, 0);
+        b.writeState(stateB, 0);
+        return new long[] {a.onPeerState(stateB, 0), b.onPeerState(stateA, 0)};
+    }
+
+    private static long append(ReliableSession session, int length) {
+        return session.append(1, new byte[length], 0, length);
+    }
+
+    private void assertBadAck(long next) {
+        try {
+            mSession.ack(next);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestPipelineTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final long LONG_TIMEOUT = 10000;
+
+    private final Metrics mMetrics = new Metrics();
+    private final List<String> mWritten = new ArrayList<>();
+    private final RequestPipeline mPipeline = new RequestPipeline(new RequestPipeline.Writer() {
+        @Override
+        public boolean write(byte[] command) {
+            synchronized (mWritten) {
+                mWritten.add(new String(command, ASCII));
+            }
+            return true;
+        }
+    }, mMetrics, new byte[] {'\r'}, '>');
+
+    @After
+    public void tearDown() {
+        mPipeline.close();
+    }
+
+    @Test
+    public void matchesRepliesInOrder() throws Exception {
+        mPipeline.setMaxInFlight(2);
+        RequestFuture a = submit("0100");
+        RequestFuture b = submit("010C");
+        RequestFuture c = submit("010D");
+
+        // The third waits for a place
+        assertEquals("[0100\r, 010C\r]", written());
+
+        receive("41 00 BE 1F>");
+        assertEquals("41 00 BE 1F", response(a));
+        assertEquals("[0100\r, 010C\r, 010D\r]", written());
+
+        receive("41 0C 1A F8>41 0D");
+        receive(" 32>");
+        assertEquals("41 0C 1A F8", response(b));
+        assertEquals("41 0D 32", response(c));
+        assertEquals(3, mMetrics.snapshot().getHistogram(Metrics.REQUEST_ROUND_TRIP).getCount());
+    }
+
+    @Test
+    public void ignoresPromptWithoutRequest() throws Exception {
+        receive("ELM327 v1.5>");
+        RequestFuture a = submit("ATZ");
+        receive("OK>");
+
+        assertEquals("OK", response(a));
+    }
+
+    @Test
+    public void dropsDataWhileNoRequestIsInFlight() throws Exception {
+        // The adapter's banner after a reset, without a prompt
+        receive("\r\rELM327 v1.5\r\r");
+
+        RequestFuture a = submit("ATE0");
+        receive("OK>");
+
+        assertEquals("OK", response(a));
+    }
+
+    @Test
+    public void failsResponseLongerThanMaximum() throws Exception {
+        mPipeline.setMaxInFlight(2);
+        RequestFuture a = submit("ATMA");
+        RequestFuture b = submit("0100");
+        byte[] monitor = new byte[RequestPipeline.MAX_RESPONSE_LENGTH + 1];
+        Arrays.fill(monitor, (byte) 'A');
+
+        mPipeline.onData(monitor, monitor.length);
+        assertFalse(a.isDone());
+        receive(">41 00>");
+
+        assertFailure(IOException.class, a);
+        // The prompt of the long reply still counts, the next reply goes to the next request
+        assertEquals("41 00", response(b));
+    }
+
+    @Test
+    public void timedOutRequestKeepsItsPlaceUntilReply() throws Exception {
+        RequestFuture a = mPipeline.submit(bytes("0100"), 50);
+        RequestFuture b = submit("010C");
+
+        assertFailure(TimeoutException.class, a);
+        assertEquals("[0100\r]", written());
+
+        // The late reply belongs to the timed out request, not to the next one
+        receive("41 00 BE 1F>");
+        assertEquals("[0100\r, 010C\r]", written());
+        receive("41 0C 1A F8>");
+        assertEquals("41 0C 1A F8", response(b));
+        assertEquals(1, mMetrics.snapshot().getCounter(Metrics.REQUEST_TIMEOUTS));
+    }
+
+    @Test
+    public void lostReplyFreesItsPlace() throws Exception {
+        mPipeline.submit(bytes("0100"), 50);
+        RequestFuture b = submit("010C");
+
+        long deadline = System.currentTimeMillis() + RequestPipeline.MIN_REPLY_LOST_MILLIS + 5000;
+        while (written().equals("[0100\r]")) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals("[0100\r, 010C\r]", written());
+        receive("41 0C 1A F8>");
+        assertEquals("41 0C 1A F8", response(b));
+    }
+
+    @Test
+    public void queuedRequestTimesOut() throws Exception {
+        RequestFuture a = submit("0100");
+        RequestFuture b = mPipeline.submit(bytes("010C"), 50);
+
+        assertFailure(TimeoutException.class, b);
+        receive("41 00 BE 1F>");
+        assertEquals("41 00 BE 1F", response(a));
+        assertEquals("[0100\r]", written());
+    }
+
+    @Test
+    public void skipsCancelledQueuedRequest() throws Exception {
+        RequestFuture a = submit("0100");
+        RequestFuture b = submit("010C");
+        RequestFuture c = submit("010D");
+        assertTrue(b.cancel(false));
+
+        receive("41 00 BE 1F>");
+        receive("41 0D 32>");
+
+        assertEquals("41 00 BE 1F", response(a));
+        assertEquals("41 0D 32", response(c));
+        assertEquals("[0100\r, 010D\r]", written());
+    }
+
+    @Test
+    public void disconnectFailsEverythingPending() throws Exception {
+        RequestFuture a = submit("0100");
+        RequestFuture b = submit("010C");
+        receive("41 00");
+
+        mPipeline.onDisconnected();
+
+        assertFailure(IOException.class, a);
+        assertFailure(IOException.class, b);
+        // The partial reply is gone with the link
+        RequestFuture c = submit("ATZ");
+        receive("OK>");
+        assertEquals("OK", response(c));
+    }
+
+    @Test
+    public void disconnectFailsRequestsWithoutCallingBack() throws Exception {
+        // Stands in for the service's lock, which onDisconnected() is called holding
+        final Object service = new Object();
+        final CountDownLatch failed = new CountDownLatch(1);
+        final Thread[] callbackThread = new Thread[1];
+        RequestFuture a = submit("0100");
+        a.setCallback(new RequestFuture.Callback() {
+            @Override
+            public void onResponse(byte[] response) {
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                synchronized (service) {
+                    callbackThread[0] = Thread.currentThread();
+                }
+                failed.countDown();
+            }
+        });
+
+        synchronized (service) {
+            mPipeline.onDisconnected();
+            assertFalse(failed.await(100, TimeUnit.MILLISECONDS));
+        }
+
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), callbackThread[0]);
+        assertFailure(IOException.class, a);
+    }
+
+    @Test
+    public void rejectsZeroInFlight() {
+        try {
+            mPipeline.setMaxInFlight(0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private RequestFuture submit(String command) {
+        return mPipeline.submit(bytes(command), LONG_TIMEOUT);
+    }
+
+    private void receive(String data) {
+        byte[] bytes = bytes(data);
+        mPipeline.onData(bytes, bytes.length);
+    }
+
+    private String written() {
+        synchronized (mWritten) {
+            return mWritten.toString();
+        }
+    }
+
+    private static String response(RequestFuture future) throws Exception {
+        assertTrue(future.isDone());
+        return new String(future.get(), ASCII);
+    }
+
+    private static void assertFailure(Class<? extends Throwable> type, RequestFuture future)
+            throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), type.isInstance(e.getCause()));
+        }
+        assertFalse(future.isCancelled());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(ASCII);
+    }
+}
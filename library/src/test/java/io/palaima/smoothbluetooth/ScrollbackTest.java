@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ScrollbackTest {
+
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    private static void append(Scrollback scrollback, String data) {
+        scrollback.append(data.getBytes(LATIN_1));
+    }
+
+    @Test
+    public void keepsLinesWithTheirDelimiter() {
+        Scrollback scrollback = new Scrollback(64, 10, '>');
+        append(scrollback, "41 0C>41 0D>41");
+
+        assertEquals(2, scrollback.getLineCount());
+        assertEquals("41 0C>", scrollback.getLine(0));
+        assertEquals("41 0D>", scrollback.getLine(1));
+        assertEquals(6, scrollback.getLineLength(1));
+
+        // The line being received counts once its delimiter comes
+        append(scrollback, " 0F>");
+        assertEquals(3, scrollback.getLineCount());
+        assertEquals("41 0F>", scrollback.getLine(2));
+    }
+
+    @Test
+    public void evictsOldestLinesByBytes() {
+        Scrollback scrollback = new Scrollback(10, 100, '\n');
+        append(scrollback, "aaa\nbbb\ncc\n");
+
+        // 11 bytes don't fit, the first line went
+        assertEquals(2, scrollback.getLineCount());
+        assertEquals("bbb\n", scrollback.getLine(0));
+        assertEquals("cc\n", scrollback.getLine(1));
+        assertEquals(1, scrollback.getFirstLineNumber());
+    }
+
+    @Test
+    public void evictsOldestLinesByCount() {
+        Scrollback scrollback = new Scrollback(1024, 3, '\n');
+        for (int i = 0; i < 10; i++) {
+            append(scrollback, i + "\n");
+        }
+
+        assertEquals(3, scrollback.getLineCount());
+        assertEquals("7\n", scrollback.getLine(0));
+        assertEquals("9\n", scrollback.getLine(2));
+        assertEquals(7, scrollback.getFirstLineNumber());
+    }
+
+    @Test
+    public void lineLongerThanRingKeepsItsEnd() {
+        Scrollback scrollback = new Scrollback(8, 10, '\n');
+        append(scrollback, "ab\n");
+        append(scrollback, "0123456789ABCDEF\n");
+
+        assertEquals(1, scrollback.getLineCount());
+        assertEquals("9ABCDEF\n", scrollback.getLine(0));
+
+        append(scrollback, "x\n");
+        assertEquals(1, scrollback.getLineCount());
+        assertEquals("x\n", scrollback.getLine(0));
+    }
+
+    @Test
+    public void appendsAfterClear() {
+        Scrollback scrollback = new Scrollback(16, 4, '\n');
+        append(scrollback, "one\ntwo\npartial");
+        scrollback.clear();
+        assertEquals(0, scrollback.getLineCount());
+
+        append(scrollback, "three\n");
+        assertEquals(1, scrollback.getLineCount());
+        assertEquals("three\n", scrollback.getLine(0));
+        assertEquals(2, scrollback.getFirstLineNumber());
+    }
+
+    @Test
+    public void copiesLineAcrossWrap() {
+        Scrollback scrollback = new Scrollback(10, 10, '\n');
+        // 7 + 6 bytes, the second line starts at 7 and wraps after 3 bytes
+        append(scrollback, "012345\n");
+        append(scrollback, "abcde\n");
+
+        assertEquals(1, scrollback.getLineCount());
+        byte[] buffer = new byte[2 + 6];
+        assertEquals(6, scrollback.copyLine(0, buffer, 2));
+        assertArrayEquals(new byte[] {0, 0, 'a', 'b', 'c', 'd', 'e', '\n'}, buffer);
+        assertEquals("abcde\n", scrollback.getLine(0));
+    }
+
+    @Test
+    public void keepsBytesAbove0x7F() {
+        Scrollback scrollback = new Scrollback(16, 4, 0xFF);
+        scrollback.append(new byte[] {(byte) 0xE9, 0x41, (byte) 0xFF});
+
+        assertEquals(1, scrollback.getLineCount());
+        assertEquals("\u00E9A\u00FF", scrollback.getLine(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndexOfEvictedLine() {
+        Scrollback scrollback = new Scrollback(1024, 2, '\n');
+        append(scrollback, "a\nb\nc\n");
+        scrollback.getLine(2);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenScannerTest {
+
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    private static class Recorder implements TokenListener {
+        final List<String> mTokens = new ArrayList<>();
+
+        @Override
+        public void onToken(byte[] token) {
+            mTokens.add(new String(token, LATIN_1));
+        }
+    }
+
+    private final TokenScanner mScanner = new TokenScanner();
+
+    private void feed(String data) {
+        byte[] bytes = data.getBytes(LATIN_1);
+        mScanner.onData(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void reportsOverlappingTokens() {
+        Recorder noData = new Recorder();
+        Recorder data = new Recorder();
+        mScanner.add("NO DATA".getBytes(LATIN_1), noData, null);
+        mScanner.add("DATA".getBytes(LATIN_1), data, null);
+
+        feed("41 0C\r\rNO DATA\r\r>DATA");
+
+        assertEquals(1, noData.mTokens.size());
+        assertEquals(2, data.mTokens.size());
+    }
+
+    @Test
+    public void findsTokenSplitAcrossReads() {
+        Recorder recorder = new Recorder();
+        mScanner.add("NO DATA".getBytes(LATIN_1), recorder, null);
+        mScanner.add("DATA".getBytes(LATIN_1), recorder, null);
+
+        feed("\rNO D");
+        assertTrue(recorder.mTokens.isEmpty());
+        feed("A");
+        feed("TA\r");
+
+        assertEquals(2, recorder.mTokens.size());
+        assertTrue(recorder.mTokens.contains("NO DATA"));
+        assertTrue(recorder.mTokens.contains("DATA"));
+    }
+
+    @Test
+    public void findsRepeatedPrefixes() {
+        Recorder recorder = new Recorder();
+        mScanner.add("aab".getBytes(LATIN_1), recorder, null);
+
+        // The failure links have to fall back to "aa", not to the start
+        feed("aaaab");
+
+        assertEquals(1, recorder.mTokens.size());
+    }
+
+    @Test
+    public void rebuildsAfterAddAndRemove() {
+        Recorder ok = new Recorder();
+        Recorder error = new Recorder();
+        mScanner.add("OK".getBytes(LATIN_1), ok, null);
+        feed("O");
+        // Adding starts the scan over, the half seen "OK" is gone
+        mScanner.add("ERROR".getBytes(LATIN_1), error, null);
+        feed("K OK ERROR");
+        assertEquals(1, ok.mTokens.size());
+        assertEquals(1, error.mTokens.size());
+
+        assertTrue(mScanner.remove(ok));
+        assertFalse(mScanner.remove(ok));
+        feed("OK ERROR");
+        assertEquals(1, ok.mTokens.size());
+        assertEquals(2, error.mTokens.size());
+
+        assertTrue(mScanner.remove(error));
+        feed("OK ERROR");
+        assertEquals(2, error.mTokens.size());
+    }
+
+    @Test
+    public void listenerRemovesItself() {
+        final List<String> tokens = new ArrayList<>();
+        TokenListener once = new TokenListener() {
+            @Override
+            public void onToken(byte[] token) {
+                tokens.add(new String(token, LATIN_1));
+                assertTrue(mScanner.remove(this));
+            }
+        };
+        mScanner.add("OK".getBytes(LATIN_1), once, null);
+
+        feed("OK OK");
+        feed("OK");
+
+        assertEquals(1, tokens.size());
+    }
+
+    @Test
+    public void listenerRemovesOtherListenerMidScan() {
+        final Recorder longToken = new Recorder();
+        mScanner.add("ABCDEFGH".getBytes(LATIN_1), longToken, null);
+        final Recorder shortToken = new Recorder();
+        mScanner.add("A".getBytes(LATIN_1), new TokenListener() {
+            @Override
+            public void onToken(byte[] token) {
+                shortToken.onToken(token);
+                mScanner.remove(longToken);
+            }
+        }, null);
+
+        // The scan was in the long token's states when the automaton got smaller
+        feed("ABCD");
+        feed("ZEFGH A");
+
+        assertEquals(2, shortToken.mTokens.size());
+        assertTrue(longToken.mTokens.isEmpty());
+    }
+
+    @Test
+    public void removedListenerMissesTokensOfSameRead() {
+        final Recorder removed = new Recorder();
+        mScanner.add("B".getBytes(LATIN_1), removed, null);
+        mScanner.add("A".getBytes(LATIN_1), new TokenListener() {
+            @Override
+            public void onToken(byte[] token) {
+                mScanner.remove(removed);
+            }
+        }, null);
+
+        feed("AB");
+
+        assertTrue(removed.mTokens.isEmpty());
+    }
+
+    @Test
+    public void listenerAddsListener() {
+        final Recorder added = new Recorder();
+        mScanner.add("START".getBytes(LATIN_1), new TokenListener() {
+            @Override
+            public void onToken(byte[] token) {
+                mScanner.add("OK".getBytes(LATIN_1), added, null);
+            }
+        }, null);
+
+        // Tokens of the read which added it are scanned already
+        feed("START OK");
+        feed(" OK");
+
+        assertEquals(1, added.mTokens.size());
+    }
+
+    @Test
+    public void resetForgetsPartialToken() {
+        Recorder recorder = new Recorder();
+        mScanner.add("STOPPED".getBytes(LATIN_1), recorder, null);
+        feed("STOP");
+        mScanner.reset();
+        feed("PED");
+        assertTrue(recorder.mTokens.isEmpty());
+    }
+
+    @Test
+    public void matchesBytesAbove0x7F() {
+        Recorder recorder = new Recorder();
+        byte[] token = {(byte) 0x80, (byte) 0xFF, 0x00, (byte) 0xC3};
+        mScanner.add(token, recorder, null);
+        byte[] data = {0x00, (byte) 0x80, (byte) 0xFF, 0x00, (byte) 0xC3, (byte) 0x80, (byte) 0xFF,
+                0x00, (byte) 0xC3, 0x7F};
+
+        mScanner.onData(data, 0, 3);
+        mScanner.onData(data, 3, data.length - 3);
+
+        assertEquals(2, recorder.mTokens.size());
+    }
+
+    @Test
+    public void deliversThroughExecutor() {
+        final List<Runnable> posted = new ArrayList<>();
+        Recorder recorder = new Recorder();
+        mScanner.add("OK".getBytes(LATIN_1), recorder, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                posted.add(command);
+            }
+        });
+
+        feed("OK OK");
+        assertTrue(recorder.mTokens.isEmpty());
+        assertEquals(2, posted.size());
+        for (Runnable runnable : posted) {
+            runnable.run();
+        }
+        assertEquals(2, recorder.mTokens.size());
+    }
+
+    @Test
+    public void countsMatchNaiveSearch() {
+        Random random = new Random(1);
+        for (int round = 0; round < 50; round++) {
+            byte[][] tokens = new byte[1 + random.nextInt(6)][];
+            Recorder[] recorders = new Recorder[tokens.length];
+            TokenScanner scanner = new TokenScanner();
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = randomBytes(random, 1 + random.nextInt(4));
+                recorders[i] = new Recorder();
+                scanner.add(tokens[i], recorders[i], null);
+            }
+            byte[] data = randomBytes(random, 2000);
+            for (int offset = 0; offset < data.length; ) {
+                int length = Math.min(data.length - offset, 1 + random.nextInt(50));
+                scanner.onData(data, offset, length);
+                offset += length;
+            }
+            for (int i = 0; i < tokens.length; i++) {
+                assertEquals(countOccurrences(data, tokens[i]), recorders[i].mTokens.size());
+            }
+        }
+    }
+
+    // A three letter alphabet, with one byte above 0x7F, so tokens overlap a lot
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] alphabet = {'a', 'b', (byte) 0xE9};
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        return bytes;
+    }
+
+    private static int countOccurrences(byte[] data, byte[] token) {
+        int count = 0;
+        for (int i = 0; i + token.length <= data.length; i++) {
+            int j = 0;
+            while (j < token.length && data[i + j] == token[j]) {
+                j++;
+            }
+            if (j == token.length) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
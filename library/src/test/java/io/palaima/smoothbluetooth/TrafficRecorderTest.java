@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 Mantas Palaima
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.palaima.smoothbluetooth;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TrafficRecorderTest {
+
+    // 200 bytes of data region, chunks over 37 bytes are split
+    private static final int SIZE = TrafficRecorder.FILE_HEADER_SIZE + 200;
+    private static final int MAX_PAYLOAD = 200 / 4 - TrafficRecorder.RECORD_HEADER_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsRecordsBackInOrder() throws Exception {
+        File file = mFolder.newFile();
+        TrafficRecorder recorder = new TrafficRecorder(file, SIZE);
+        recorder.record(TrafficRecorder.DIRECTION_OUT, bytes("ATZ\r"), 0, 4);
+        recorder.record(TrafficRecorder.DIRECTION_IN, bytes("xxELM327>"), 2, 7);
+        recorder.record(TrafficRecorder.DIRECTION_IN, new byte[0], 0, 0);
+        recorder.close();
+
+        TrafficCapture capture = TrafficCapture.open(file);
+        assertEquals(3, capture.getCount());
+        assertTrue(capture.next());
+        assertEquals(TrafficRecorder.DIRECTION_OUT, capture.getDirection());
+        assertArrayEquals(bytes("ATZ\r"), capture.getPayload());
+        long nanos = capture.getNanos();
+        assertTrue(capture.next());
+        assertEquals(TrafficRecorder.DIRECTION_IN, capture.getDirection());
+        assertArrayEquals(bytes("ELM327>"), capture.getPayload());
+        assertTrue(capture.getNanos() >= nanos);
+        assertTrue(capture.next());
+        assertEquals(0, capture.getLength());
+        assertFalse(capture.next());
+    }
+
+    @Test
+    public void splitsChunksBiggerThanQuarterOfFile() throws Exception {
+        File file = mFolder.newFile();
+        TrafficRecorder recorder = new TrafficRecorder(file, SIZE);
+        byte[] chunk = random(new Random(1), 100);
+        recorder.record(TrafficRecorder.DIRECTION_IN, chunk, 0, chunk.length);
+        recorder.close();
+
+        TrafficCapture capture = TrafficCapture.open(file);
+        assertEquals(3, capture.getCount());
+        byte[] joined = new byte[chunk.length];
+        int length = 0;
+        while (capture.next()) {
+            assertTrue(capture.getLength() <= MAX_PAYLOAD);
+            capture.getPayload(joined, length);
+            length += capture.getLength();
+        }
+        assertArrayEquals(chunk, joined);
+    }
+
+    @Test
+    public void keepsNewestRecordsOnceFull() throws Exception {
+        File file = mFolder.newFile();
+        TrafficRecorder recorder = new TrafficRecorder(file, SIZE);
+        for (int i = 0; i < 30; i++) {
+            recorder.record(TrafficRecorder.DIRECTION_IN, new byte[] {(byte) i}, 0, 1);
+        }
+        recorder.close();
+
+        // 14 bytes a record, 14 of them fit into 200
+        TrafficCapture capture = TrafficCapture.open(file);
+        assertEquals(14, capture.getCount());
+        for (int i = 16; i < 30; i++) {
+            assertTrue(capture.next());
+            assertEquals(i, capture.getPayload()[0]);
+        }
+        assertFalse(capture.next());
+    }
+
+    @Test
+    public void wrapsAtEveryOffset() throws Exception {
+        // Random lengths make the wrap land at every distance from the end of the file,
+        // including too little room left for a wrap marker
+        Random random = new Random(2);
+        File file = mFolder.newFile();
+        TrafficRecorder recorder = new TrafficRecorder(file, SIZE);
+        List<byte[]> recorded = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] chunk = random(random, random.nextInt(MAX_PAYLOAD + 1));
+            recorder.record(i % 2, chunk, 0, chunk.length);
+            recorded.add(chunk);
+            assertNewest(TrafficCapture.open(file), recorded);
+        }
+        recorder.close();
+    }
+
+    @Test
+    public void smallestFileKeepsFourOneByteRecords() throws Exception {
+        File file = mFolder.newFile();
+        TrafficRecorder recorder = new TrafficRecorder(file, TrafficRecorder.MIN_FILE_SIZE);
+        byte[] chunk = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+        recorder.record(TrafficRecorder.DIRECTION_IN, chunk, 0, chunk.length);
+        recorder.close();
+
+        TrafficCapture capture = TrafficCapture.open(file);
+        assertEquals(4, capture.getCount());
+        for (int i = 6; i < 10; i++) {
+            assertTrue(capture.next());
+            assertArrayEquals(new byte[] {(byte) i}, capture.getPayload());
+        }
+        assertFalse(capture.next());
+    }
+
+    @Test
+    public void ignoresRecordsAfterClose() throws Exception {
+        File file = mFolder.newFile();
+        TrafficRecorder recorder = new TrafficRecorder(file, SIZE);
+        recorder.record(TrafficRecorder.DIRECTION_IN, new byte[1], 0, 1);
+        recorder.close();
+        recorder.record(TrafficRecorder.DIRECTION_IN, new byte[1], 0, 1);
+        recorder.close();
+
+        assertEquals(1, TrafficCapture.open(file).getCount());
+    }
+
+    @Test
+    public void rejectsFileTooSmall() throws Exception {
+        try {
+            new TrafficRecorder(mFolder.newFile(), TrafficRecorder.MIN_FILE_SIZE - 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws Exception {
+        File file = mFolder.newFile();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(SIZE);
+        raf.close();
+        try {
+            TrafficCapture.open(file);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    // The capture holds the newest records, in order and without a gap
+    private static void assertNewest(TrafficCapture capture, List<byte[]> recorded) {
+        int count = capture.getCount();
+        assertTrue(count > 0 && count <= recorded.size());
+        int used = 0;
+        for (int i = recorded.size() - count; i < recorded.size(); i++) {
+            assertTrue(capture.next());
+            assertEquals(i % 2, capture.getDirection());
+            assertArrayEquals(recorded.get(i), capture.getPayload());
+            used += TrafficRecorder.RECORD_HEADER_SIZE + recorded.get(i).length;
+        }
+        assertFalse(capture.next());
+        // The record before the oldest one kept would not have fit as well
+        if (count < recorded.size()) {
+            byte[] evicted = recorded.get(recorded.size() - count - 1);
+            assertTrue(used + TrafficRecorder.RECORD_HEADER_SIZE + evicted.length
+                    > SIZE - TrafficRecorder.FILE_HEADER_SIZE - MAX_PAYLOAD
+                    - TrafficRecorder.RECORD_HEADER_SIZE);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static byte[] random(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}